@@ -0,0 +1,147 @@
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic ledger fixtures for the benchmarks: keys, genesis coins and signed epochs. A small
+ * set of RSA keys is generated once and reused, key generation would otherwise dominate set up.
+ */
+public class BenchmarkFixtures {
+
+    private static final int KEY_COUNT = 8;
+    private static final double GENESIS_VALUE = 1000d;
+
+    private final Random random;
+    private final KeyPair[] keys = new KeyPair[KEY_COUNT];
+
+    public BenchmarkFixtures(long seed) throws NoSuchAlgorithmException {
+        random = new Random(seed);
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(seed);
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048, keyRandom);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = keyPairGenerator.generateKeyPair();
+        }
+    }
+
+    public KeyPair key(int i) {
+        return keys[Math.floorMod(i, KEY_COUNT)];
+    }
+
+    public Random random() {
+        return random;
+    }
+
+    /** @return a coin created out of thin air, owned by {@code owner} */
+    public Coin genesisCoin(int owner) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        Transaction.Output output = new Transaction().new Output(GENESIS_VALUE, key(owner).getPublic());
+        return new Coin(new UTXO(hash, 0), output, owner);
+    }
+
+    /** @return a pool holding {@code size} genesis coins */
+    public UTXOPool pool(List<Coin> coins) {
+        UTXOPool pool = new UTXOPool();
+        for (Coin coin : coins) {
+            pool.addUTXO(coin.utxo, coin.output);
+        }
+        return pool;
+    }
+
+    /**
+     * @return a signed transaction spending {@code spent}, paying everything but {@code fee} in
+     *         {@code outputs} equal parts to the owners following the first input's owner
+     */
+    public Transaction spend(List<Coin> spent, int outputs, double fee) {
+        Transaction tx = new Transaction();
+        double total = 0;
+        for (Coin coin : spent) {
+            tx.addInput(coin.utxo.getTxHash(), coin.utxo.getIndex());
+            total += coin.output.value;
+        }
+        int owner = spent.get(0).owner;
+        double value = (total - fee) / outputs;
+        for (int i = 0; i < outputs; i++) {
+            tx.addOutput(value, key(owner + 1 + i).getPublic());
+        }
+        try {
+            for (int i = 0; i < spent.size(); i++) {
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign(key(spent.get(i).owner).getPrivate());
+                signature.update(tx.getRawDataToSign(i));
+                tx.addSignature(signature.sign(), i);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        tx.computeHash();
+        return tx;
+    }
+
+    /** @return the coin created by output {@code index} of {@code tx} */
+    public Coin coin(Transaction tx, int index, Coin parent) {
+        return new Coin(new UTXO(tx.getHash(), index), tx.getOutput(index), parent.owner + 1 + index);
+    }
+
+    /**
+     * Builds an epoch of {@code size} transactions over a fresh genesis pool. Honest transactions
+     * form chains of {@code chainDepth} transactions, each spending the previous one's output, and
+     * {@code doubleSpendRatio} of the epoch consists of conflicting spends of coins that an honest
+     * transaction already spends. The result is shuffled so the handlers see no useful order.
+     */
+    public Epoch epoch(int size, int chainDepth, double doubleSpendRatio) {
+        int conflicts = (int) Math.round(size * doubleSpendRatio);
+        int honest = size - conflicts;
+        int chains = (honest + chainDepth - 1) / chainDepth;
+
+        List<Coin> genesis = new ArrayList<>();
+        List<Coin> spentByHonest = new ArrayList<>();
+        List<Transaction> txs = new ArrayList<>(size);
+        for (int c = 0; c < chains; c++) {
+            Coin coin = genesisCoin(c);
+            genesis.add(coin);
+            for (int d = 0; d < chainDepth && txs.size() < honest; d++) {
+                Transaction tx = spend(Collections.singletonList(coin), 1, fee());
+                txs.add(tx);
+                spentByHonest.add(coin);
+                coin = coin(tx, 0, coin);
+            }
+        }
+        for (int i = 0; i < conflicts && !spentByHonest.isEmpty(); i++) {
+            Coin coin = spentByHonest.get(random.nextInt(spentByHonest.size()));
+            txs.add(spend(Collections.singletonList(coin), 2, fee()));
+        }
+        Collections.shuffle(txs, random);
+        return new Epoch(pool(genesis), txs.toArray(new Transaction[0]));
+    }
+
+    private double fee() {
+        return 0.01 + random.nextInt(100) / 1000d;
+    }
+
+    public static class Coin {
+        public final UTXO utxo;
+        public final Transaction.Output output;
+        public final int owner;
+
+        public Coin(UTXO utxo, Transaction.Output output, int owner) {
+            this.utxo = utxo;
+            this.output = output;
+            this.owner = owner;
+        }
+    }
+
+    public static class Epoch {
+        public final UTXOPool pool;
+        public final Transaction[] txs;
+
+        public Epoch(UTXOPool pool, Transaction[] txs) {
+            this.pool = pool;
+            this.txs = txs;
+        }
+    }
+}
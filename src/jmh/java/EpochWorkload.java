@@ -0,0 +1,35 @@
+import benchmarks.Workload;
+
+import java.util.Map;
+
+/** Runs one epoch through a {@link TxHandler} or a {@link MaxFeeTxHandler} built over a fresh pool */
+public class EpochWorkload implements Workload {
+
+    private BenchmarkFixtures.Epoch epoch;
+    private boolean maxFee;
+    private TxHandler txHandler;
+    private MaxFeeTxHandler maxFeeTxHandler;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(42);
+        epoch = fixtures.epoch(Integer.parseInt(params.get("epochSize")),
+                Integer.parseInt(params.get("chainDepth")),
+                Double.parseDouble(params.get("doubleSpendRatio")));
+        maxFee = "MaxFeeTxHandler".equals(params.get("handler"));
+    }
+
+    @Override
+    public void reset() {
+        if (maxFee) {
+            maxFeeTxHandler = new MaxFeeTxHandler(epoch.pool);
+        } else {
+            txHandler = new TxHandler(epoch.pool);
+        }
+    }
+
+    @Override
+    public Object run() {
+        return maxFee ? maxFeeTxHandler.handleTxs(epoch.txs) : txHandler.handleTxs(epoch.txs);
+    }
+}
@@ -0,0 +1,29 @@
+import benchmarks.Workload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Serializes a signed transaction, either whole or as the data signed by its last input */
+public class SerializationWorkload implements Workload {
+
+    private Transaction tx;
+    private boolean rawTx;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(42);
+        int inputs = Integer.parseInt(params.get("inputs"));
+        List<BenchmarkFixtures.Coin> coins = new ArrayList<>(inputs);
+        for (int i = 0; i < inputs; i++) {
+            coins.add(fixtures.genesisCoin(i));
+        }
+        tx = fixtures.spend(coins, Integer.parseInt(params.get("outputs")), 0.1);
+        rawTx = "rawTx".equals(params.get("operation"));
+    }
+
+    @Override
+    public Object run() {
+        return rawTx ? tx.getRawTx() : tx.getRawDataToSign(tx.numInputs() - 1);
+    }
+}
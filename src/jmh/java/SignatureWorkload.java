@@ -0,0 +1,31 @@
+import benchmarks.Workload;
+
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Map;
+
+/** Verifies the signature of a single transaction input, optionally with a corrupted signature */
+public class SignatureWorkload implements Workload {
+
+    private PublicKey key;
+    private byte[] message;
+    private byte[] signature;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(42);
+        BenchmarkFixtures.Coin coin = fixtures.genesisCoin(0);
+        Transaction tx = fixtures.spend(Collections.singletonList(coin), 1, 0.1);
+        key = coin.output.address;
+        message = tx.getRawDataToSign(0);
+        signature = tx.getInput(0).signature.clone();
+        if (!Boolean.parseBoolean(params.get("valid"))) {
+            signature[signature.length / 2] ^= 1;
+        }
+    }
+
+    @Override
+    public Object run() {
+        return Crypto.verifySignature(key, message, signature);
+    }
+}
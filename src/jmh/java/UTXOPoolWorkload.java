@@ -0,0 +1,62 @@
+import benchmarks.Workload;
+
+import java.util.Map;
+import java.util.Random;
+
+/** Looks coins up in, adds them to, removes them from and copies a pool of a given size and store */
+public class UTXOPoolWorkload implements Workload {
+
+    private static final int KEYS = 1024;
+
+    private UTXOPool pool;
+    private UTXO[] present;
+    private UTXO[] absent;
+    private Transaction.Output output;
+    private String operation;
+    private int next;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        int poolSize = Integer.parseInt(params.get("poolSize"));
+        operation = params.get("operation");
+        Random random = new Random(42);
+        output = new Transaction().new Output(1d, null);
+
+        pool = "offHeap".equals(params.get("store")) ? new UTXOPool(new OffHeapUTXOStore(poolSize)) : new UTXOPool();
+        present = new UTXO[Math.min(KEYS, poolSize)];
+        for (int i = 0; i < poolSize; i++) {
+            UTXO utxo = randomUtxo(random);
+            pool.addUTXO(utxo, output);
+            if (i < present.length) present[i] = utxo;
+        }
+        absent = new UTXO[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            absent[i] = randomUtxo(random);
+        }
+    }
+
+    private static UTXO randomUtxo(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return new UTXO(hash, random.nextInt(4));
+    }
+
+    @Override
+    public Object run() {
+        next = (next + 1) & (KEYS - 1);
+        switch (operation) {
+            case "get":
+                return pool.getTxOutput(present[next % present.length]);
+            case "miss":
+                return pool.contains(absent[next]);
+            case "addRemove":
+                pool.addUTXO(absent[next], output);
+                pool.removeUTXO(absent[next]);
+                return pool;
+            case "copy":
+                return new UTXOPool(pool);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+}
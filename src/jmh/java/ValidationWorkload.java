@@ -0,0 +1,31 @@
+import benchmarks.Workload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Validates a transaction with a given number of inputs against a pool of a given size */
+public class ValidationWorkload implements Workload {
+
+    private TxHandler handler;
+    private Transaction tx;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(42);
+        int poolSize = Integer.parseInt(params.get("poolSize"));
+        int inputs = Integer.parseInt(params.get("inputs"));
+
+        List<BenchmarkFixtures.Coin> coins = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            coins.add(fixtures.genesisCoin(i));
+        }
+        handler = new TxHandler(fixtures.pool(coins));
+        tx = fixtures.spend(coins.subList(0, inputs), 2, 0.1);
+    }
+
+    @Override
+    public Object run() {
+        return handler.isValidTx(tx);
+    }
+}
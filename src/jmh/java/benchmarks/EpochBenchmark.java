@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole epoch processing: {@code TxHandler.handleTxs} and {@code MaxFeeTxHandler.handleTxs} over a
+ * freshly copied pool. Setting up the largest epochs signs every transaction and takes a while.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EpochBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int epochSize;
+
+    @Param({"1", "8", "64"})
+    public int chainDepth;
+
+    @Param({"0.0", "0.1", "0.5"})
+    public double doubleSpendRatio;
+
+    @Param({"TxHandler", "MaxFeeTxHandler"})
+    public String handler;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("epochSize", String.valueOf(epochSize));
+        params.put("chainDepth", String.valueOf(chainDepth));
+        params.put("doubleSpendRatio", String.valueOf(doubleSpendRatio));
+        params.put("handler", handler);
+        workload = Workload.create("EpochWorkload", params);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        workload.reset();
+    }
+
+    @Benchmark
+    public void handleTxs(Blackhole blackhole) {
+        blackhole.consume(workload.run());
+    }
+}
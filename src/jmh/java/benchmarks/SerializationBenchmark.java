@@ -0,0 +1,43 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** {@code Transaction.getRawTx} and {@code Transaction.getRawDataToSign} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+
+    @Param({"rawTx", "rawDataToSign"})
+    public String operation;
+
+    @Param({"1", "4", "16"})
+    public int inputs;
+
+    @Param({"1", "4", "16"})
+    public int outputs;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("operation", operation);
+        params.put("inputs", String.valueOf(inputs));
+        params.put("outputs", String.valueOf(outputs));
+        workload = Workload.create("SerializationWorkload", params);
+    }
+
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        blackhole.consume(workload.run());
+    }
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** {@code Crypto.verifySignature} for valid and forged signatures */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SignatureBenchmark {
+
+    @Param({"true", "false"})
+    public boolean valid;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("valid", String.valueOf(valid));
+        workload = Workload.create("SignatureWorkload", params);
+    }
+
+    @Benchmark
+    public void verifySignature(Blackhole blackhole) {
+        blackhole.consume(workload.run());
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code UTXOPool} lookups of present and absent coins, and an add followed by a remove so the
+ * pool keeps its size across invocations, over the default trie store and the off-heap one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UTXOPoolBenchmark {
+
+    @Param({"get", "miss", "addRemove", "copy"})
+    public String operation;
+
+    @Param({"1000", "100000", "1000000"})
+    public int poolSize;
+
+    @Param({"trie", "offHeap"})
+    public String store;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("operation", operation);
+        params.put("poolSize", String.valueOf(poolSize));
+        params.put("store", store);
+        workload = Workload.create("UTXOPoolWorkload", params);
+    }
+
+    @Benchmark
+    public void pool(Blackhole blackhole) {
+        blackhole.consume(workload.run());
+    }
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** {@code TxHandler.isValidTx} for single transactions against pools of different sizes */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ValidationBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int poolSize;
+
+    @Param({"1", "4", "16"})
+    public int inputs;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("poolSize", String.valueOf(poolSize));
+        params.put("inputs", String.valueOf(inputs));
+        workload = Workload.create("ValidationWorkload", params);
+    }
+
+    @Benchmark
+    public void isValidTx(Blackhole blackhole) {
+        blackhole.consume(workload.run());
+    }
+}
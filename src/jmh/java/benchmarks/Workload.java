@@ -0,0 +1,27 @@
+package benchmarks;
+
+import java.util.Map;
+
+/**
+ * The ledger classes live in the default package, which JMH refuses to generate benchmarks for and
+ * which a named package cannot import. Every measured operation is therefore written as a
+ * {@code Workload} in the default package and driven from here through this interface.
+ */
+public interface Workload {
+
+    /** Builds the fixtures for one trial, {@code params} holds the JMH parameters of the benchmark */
+    void setUp(Map<String, String> params) throws Exception;
+
+    /** Restores the state consumed by {@link #run()}, called before every invocation if needed */
+    default void reset() {
+    }
+
+    /** Performs the measured operation and returns its result so it can be sunk into a Blackhole */
+    Object run();
+
+    static Workload create(String className, Map<String, String> params) throws Exception {
+        Workload workload = (Workload) Class.forName(className).newInstance();
+        workload.setUp(params);
+        return workload;
+    }
+}
@@ -1,9 +1,19 @@
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+
 @SpringBootApplication
 public class Application {
     public static void main(String[] args) {
@@ -16,4 +26,53 @@ public class Application {
             System.out.print("Scrooge start!");
         };
     }
+
+    /**
+     * The coins of the ledger kept on disk in {@code scrooge.data-dir}, if it is set. Closed after
+     * the services using it, so the epochs they handled are on disk when the application stops.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("!'${scrooge.data-dir:}'.isEmpty()")
+    public DurableUTXOStore utxoStore(@Value("${scrooge.data-dir}") String dataDir) throws IOException {
+        return new DurableUTXOStore(Paths.get(dataDir));
+    }
+
+    /** The handler of the ledger, over {@link #utxoStore} if there is one, and in memory otherwise */
+    @Bean
+    public TxHandler txHandler(ObjectProvider<DurableUTXOStore> utxoStore, EpochMetrics epochMetrics) {
+        DurableUTXOStore store = utxoStore.getIfAvailable();
+        TxHandler txHandler = store == null ? new TxHandler(new UTXOPool()) : TxHandler.adopting(new UTXOPool(store));
+        txHandler.setMetrics(epochMetrics);
+        return txHandler;
+    }
+
+    /** Metrics of the epochs of the handler, recorded unless {@code scrooge.metrics.enabled} is false */
+    @Bean
+    public EpochMetrics epochMetrics(@Value("${scrooge.metrics.enabled:true}") boolean enabled) {
+        return new EpochMetrics(enabled);
+    }
+
+    /** Publishes {@link EpochMetrics} with the other metrics of the actuator, under /metrics */
+    @Bean
+    public PublicMetrics epochPublicMetrics(EpochMetrics epochMetrics) {
+        return () -> {
+            Collection<Metric<?>> metrics = new ArrayList<>();
+            epochMetrics.snapshot().forEach((name, value) -> metrics.add(new Metric<>(name, value)));
+            return metrics;
+        };
+    }
+
+    @Bean(destroyMethod = "close")
+    public IngestService ingestService(TxHandler txHandler,
+                                       @Value("${scrooge.mempool.max-ready:100000}") int maxReady,
+                                       @Value("${scrooge.mempool.max-orphans:10000}") int maxOrphans,
+                                       @Value("${scrooge.mempool.max-orphan-age-ms:600000}") long maxOrphanAge,
+                                       @Value("${scrooge.ingest.queue-capacity:10000}") int queueCapacity,
+                                       @Value("${scrooge.epoch.max-size:1000}") int maxEpochSize,
+                                       @Value("${scrooge.epoch.max-delay-ms:1000}") long maxEpochDelay) {
+        Mempool mempool = new Mempool(txHandler, maxReady, maxOrphans, maxOrphanAge);
+        IngestService ingest = new IngestService(mempool, queueCapacity, maxEpochSize, maxEpochDelay);
+        ingest.start();
+        return ingest;
+    }
 }
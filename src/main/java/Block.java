@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The transactions accepted by an epoch, in the order given by {@link BlockBuilder}, with the
+ * Merkle tree of their hashes, see {@link MerkleProof}. Each level of the tree is kept in one
+ * array of {@value MerkleProof#HASH_BYTES} bytes per node, leaves first and the root last, so
+ * proofs are read from it without hashing anything.
+ */
+public class Block {
+
+    private final Transaction[] transactions;
+    /** {@code levels[0]} holds the leaves and the last level the root alone */
+    private final byte[][] levels;
+    private final Map<ByteBuffer, Integer> positions;
+
+    Block(Transaction[] transactions, byte[][] levels) {
+        this.transactions = transactions;
+        this.levels = levels;
+        positions = new HashMap<>(transactions.length * 2);
+        for (int i = 0; i < transactions.length; i++) {
+            positions.putIfAbsent(ByteBuffer.wrap(transactions[i].getHash()), i);
+        }
+    }
+
+    /** @return the transactions of the block, in order; the array must not be modified */
+    public Transaction[] getTransactions() {
+        return transactions;
+    }
+
+    public int size() {
+        return transactions.length;
+    }
+
+    /** @return the root of the Merkle tree of the block, the digest of nothing if it is empty */
+    public byte[] getMerkleRoot() {
+        if (transactions.length == 0) return MerkleProof.emptyRoot();
+        return levels[levels.length - 1].clone();
+    }
+
+    /** @return the position in the block of the transaction of hash {@code txHash}, or -1 */
+    public int indexOf(byte[] txHash) {
+        Integer position = positions.get(ByteBuffer.wrap(txHash));
+        return position == null ? -1 : position;
+    }
+
+    /** @return the proof that the transaction at {@code index} is in the block */
+    public MerkleProof proof(int index) {
+        if (index < 0 || index >= transactions.length) throw new IndexOutOfBoundsException("No transaction " + index);
+        byte[][] siblings = new byte[levels.length - 1][];
+        boolean[] onLeft = new boolean[levels.length - 1];
+        int count = 0;
+        int position = index;
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = position ^ 1;
+            if (sibling * MerkleProof.HASH_BYTES < levels[level].length) {
+                int from = sibling * MerkleProof.HASH_BYTES;
+                siblings[count] = Arrays.copyOfRange(levels[level], from, from + MerkleProof.HASH_BYTES);
+                onLeft[count] = sibling < position;
+                count++;
+            }
+            position >>>= 1;
+        }
+        return new MerkleProof(transactions[index].getHash(), index, Arrays.copyOf(siblings, count), Arrays.copyOf(onLeft, count));
+    }
+
+    /** @return the proof that the transaction of hash {@code txHash} is in the block, or null */
+    public MerkleProof proof(byte[] txHash) {
+        int index = indexOf(txHash);
+        return index < 0 ? null : proof(index);
+    }
+}
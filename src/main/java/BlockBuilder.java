@@ -0,0 +1,134 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Assembles the transactions accepted by an epoch into a {@link Block} that downstream nodes can
+ * check against its Merkle root. Transactions are ordered deterministically, whatever order the
+ * handler returned them in: each one comes after the transactions of the block whose outputs it
+ * spends, so the block can be applied in order, and otherwise by the unsigned order of their
+ * hashes. The tree is reduced level by level, the nodes of a level being hashed in parallel on
+ * the builder's pool once there are at least {@value #PARALLEL_NODES} of them.
+ */
+public class BlockBuilder {
+
+    /** nodes of a level below which it is hashed on the calling thread */
+    private static final int PARALLEL_NODES = 256;
+
+    private final ForkJoinPool pool;
+
+    public BlockBuilder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Creates a builder hashing large trees on {@code pool} */
+    public BlockBuilder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the block of {@code accepted}, transactions that are mutually valid and have their
+     *         hash set, such as the ones returned by {@link TxHandler#handleTxs}
+     */
+    public Block build(Transaction[] accepted) {
+        Transaction[] ordered = order(accepted);
+        return new Block(ordered, tree(ordered));
+    }
+
+    /**
+     * @return {@code txs} with every transaction after the ones it spends from, the first ready
+     *         by hash going first
+     */
+    static Transaction[] order(Transaction[] txs) {
+        int n = txs.length;
+        Map<ByteBuffer, Integer> positions = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            if (txs[i].getHash() == null) throw new IllegalArgumentException("Transaction without hash");
+            positions.putIfAbsent(ByteBuffer.wrap(txs[i].getHash()), i);
+        }
+        int[] waiting = new int[n];
+        List<List<Integer>> spenders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            spenders.add(new ArrayList<>(0));
+        }
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input input : txs[i].getInputs()) {
+                if (input.prevTxHash == null) continue;
+                Integer parent = positions.get(ByteBuffer.wrap(input.prevTxHash));
+                if (parent == null || parent == i) continue;
+                waiting[i]++;
+                spenders.get(parent).add(i);
+            }
+        }
+
+        PriorityQueue<Integer> ready = new PriorityQueue<>((a, b) -> compareHashes(txs[a].getHash(), txs[b].getHash()));
+        for (int i = 0; i < n; i++) {
+            if (waiting[i] == 0) ready.add(i);
+        }
+        Transaction[] ordered = new Transaction[n];
+        int count = 0;
+        while (!ready.isEmpty()) {
+            int next = ready.poll();
+            ordered[count++] = txs[next];
+            for (int spender : spenders.get(next)) {
+                if (--waiting[spender] == 0) ready.add(spender);
+            }
+        }
+        if (count < n) throw new IllegalArgumentException("Transactions spend each other in a cycle");
+        return ordered;
+    }
+
+    /** @return the levels of the Merkle tree of {@code txs}, leaves first, none if it is empty */
+    private byte[][] tree(Transaction[] txs) {
+        if (txs.length == 0) return new byte[0][];
+        List<byte[]> levels = new ArrayList<>();
+        byte[] leaves = new byte[txs.length * MerkleProof.HASH_BYTES];
+        forEachNode(txs.length, i -> put(MerkleProof.leafHash(txs[i].getHash()), leaves, i));
+        levels.add(leaves);
+        for (int count = txs.length; count > 1; count = (count + 1) / 2) {
+            byte[] level = levels.get(levels.size() - 1);
+            int children = count;
+            byte[] parents = new byte[(count + 1) / 2 * MerkleProof.HASH_BYTES];
+            forEachNode((count + 1) / 2, p -> {
+                int left = 2 * p * MerkleProof.HASH_BYTES;
+                if (2 * p + 1 < children) {
+                    put(MerkleProof.nodeHash(level, left, level, left + MerkleProof.HASH_BYTES), parents, p);
+                } else {
+                    System.arraycopy(level, left, parents, p * MerkleProof.HASH_BYTES, MerkleProof.HASH_BYTES);
+                }
+            });
+            levels.add(parents);
+        }
+        return levels.toArray(new byte[0][]);
+    }
+
+    private void forEachNode(int count, IntConsumer hash) {
+        if (count < PARALLEL_NODES) {
+            for (int i = 0; i < count; i++) {
+                hash.accept(i);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(hash)).join();
+        }
+    }
+
+    private static void put(byte[] node, byte[] level, int index) {
+        System.arraycopy(node, 0, level, index * MerkleProof.HASH_BYTES, MerkleProof.HASH_BYTES);
+    }
+
+    /** @return the unsigned lexicographic order of {@code a} and {@code b} */
+    static int compareHashes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+/**
+ * Dense ids for the coins of an epoch, given from 0 in the order the coins are added. A coin is
+ * looked up straight from the hash and index of the output, or of the input spending it, in an open
+ * addressing table over {@link UTXO#hashOf}, so neither adding nor finding a coin creates a UTXO.
+ * The hashes are kept, not copied. Not thread safe.
+ */
+final class CoinIds {
+
+    /** per id, the key of the coin */
+    private byte[][] hashes;
+    private int[] indexes;
+    private int[] keyHashes;
+    /** id + 1 of the coin in each slot, 0 for an empty slot; never more than half full */
+    private int[] slots;
+    private int size;
+
+    /** Creates ids for about {@code expected} coins, growing past them as needed */
+    CoinIds(int expected) {
+        int capacity = Math.max(4, expected);
+        hashes = new byte[capacity][];
+        indexes = new int[capacity];
+        keyHashes = new int[capacity];
+        slots = new int[Integer.highestOneBit(capacity - 1) << 2];
+    }
+
+    /** @return the number of coins added, which is also the id the next new coin gets */
+    int size() {
+        return size;
+    }
+
+    /** @return the id of the output {@code index} of the tx {@code txHash}, or -1 if it was not added */
+    int find(byte[] txHash, int index) {
+        int slot = slot(txHash, index, UTXO.hashOf(txHash, index));
+        return slots[slot] - 1;
+    }
+
+    /** @return the id of the output {@code index} of the tx {@code txHash}, {@link #size} before if new */
+    int add(byte[] txHash, int index) {
+        int keyHash = UTXO.hashOf(txHash, index);
+        int slot = slot(txHash, index, keyHash);
+        if (slots[slot] != 0) return slots[slot] - 1;
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            indexes = Arrays.copyOf(indexes, size * 2);
+            keyHashes = Arrays.copyOf(keyHashes, size * 2);
+        }
+        hashes[size] = txHash;
+        indexes[size] = index;
+        keyHashes[size] = keyHash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) rehash();
+        return size - 1;
+    }
+
+    /** @return the slot holding the coin, or the empty slot where it would go */
+    private int slot(byte[] txHash, int index, int keyHash) {
+        int mask = slots.length - 1;
+        for (int slot = start(keyHash, mask); ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0 || keyHashes[id] == keyHash && indexes[id] == index && Arrays.equals(hashes[id], txHash)) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = start(keyHashes[id], mask);
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int start(int keyHash, int mask) {
+        return (keyHash ^ keyHash >>> 16) & mask;
+    }
+}
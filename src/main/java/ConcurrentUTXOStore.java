@@ -0,0 +1,135 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Thread safe {@link UTXOStore} over a {@link ConcurrentHashMap}: lookups take no lock and writes
+ * only lock the bin of the coin they change, so threads changing different coins do not wait for
+ * each other. {@link #remove(UTXO, Transaction.Output)} removes a coin only if it still maps to the
+ * output the caller read, in one atomic step, which is what lets several threads spend coins of the
+ * same pool optimistically: of two threads spending the same coin exactly one succeeds.
+ * <p>
+ * {@link #forEach} and {@link #size} are weakly consistent while other threads write, and
+ * {@link #copy} copies the coins one by one.
+ * <p>
+ * Lookups by hash and index go through a {@link Probe} of the calling thread rather than a new
+ * UTXO: the map compares the key it is given with {@code equals} to the keys it holds, so a key
+ * that only matches UTXOs finds them without being one.
+ */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    /** stands for null outputs, which the map cannot hold */
+    private static final Object NULL = new Object();
+
+    private static final ThreadLocal<Probe> PROBES = ThreadLocal.withInitial(Probe::new);
+
+    private final ConcurrentHashMap<UTXO, Object> coins;
+
+    public ConcurrentUTXOStore() {
+        coins = new ConcurrentHashMap<>();
+    }
+
+    /** Creates a store holding the coins of {@code store} */
+    public ConcurrentUTXOStore(UTXOStore store) {
+        coins = new ConcurrentHashMap<>(Math.max(16, store.size() * 4 / 3 + 1));
+        store.forEach(this::put);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return unmask(coins.get(utxo));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return coins.containsKey(utxo);
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        Probe probe = PROBES.get().of(txHash, index);
+        try {
+            return unmask(coins.get(probe));
+        } finally {
+            probe.clear();
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        Probe probe = PROBES.get().of(txHash, index);
+        try {
+            return coins.containsKey(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        coins.put(utxo, output == null ? NULL : output);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        coins.remove(utxo);
+    }
+
+    /** Removes {@code utxo} atomically, if it is still mapped to the very same {@code expected} */
+    @Override
+    public boolean remove(UTXO utxo, Transaction.Output expected) {
+        return coins.remove(utxo, expected == null ? NULL : expected);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return coins.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        coins.forEach((utxo, output) -> action.accept(utxo, unmask(output)));
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new ConcurrentUTXOStore(this);
+    }
+
+    private static Transaction.Output unmask(Object output) {
+        return output == NULL ? null : (Transaction.Output) output;
+    }
+
+    /** Key equal to the UTXO of a hash and index while it is set, only ever passed to lookups */
+    private static final class Probe {
+        private byte[] txHash;
+        private int index;
+        private int hash;
+
+        Probe of(byte[] txHash, int index) {
+            this.txHash = txHash;
+            this.index = index;
+            this.hash = UTXO.hashOf(txHash, index);
+            return this;
+        }
+
+        /** Drops the hash looked up, so the thread does not keep it alive */
+        void clear() {
+            txHash = null;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof UTXO && other.hashCode() == hash && ((UTXO) other).matches(txHash, index);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.*;
+
+/**
+ * Index of contested coins: for each UTXO that more than one proposed transaction spends, the
+ * candidate spenders ordered by fee rate, highest first. It outlives epochs, so a spender that
+ * lost against an earlier one can take over when the winner is replaced, and it decides
+ * replace-by-fee: a transaction replaces the spenders it conflicts with only if its fee rate beats
+ * each of theirs by {@code minFeeRateIncrease} and its fee covers the sum of the fees of everything
+ * it evicts, the descendants of those spenders included.
+ * <p>
+ * Memory is bounded twice: an outpoint keeps at most {@code maxCandidatesPerOutpoint} candidates,
+ * dropping the lowest fee rate, and at most {@code maxOutpoints} outpoints are tracked, the one
+ * contested first being forgotten first. Adding and removing a candidate take O(log n) in the
+ * number of candidates of the outpoint.
+ */
+public class ConflictIndex {
+
+    public static final int DEFAULT_MAX_OUTPOINTS = 1 << 16;
+    public static final int DEFAULT_MAX_CANDIDATES_PER_OUTPOINT = 8;
+    public static final double DEFAULT_MIN_FEE_RATE_INCREASE = 0.1;
+
+    /** Highest fee rate first, then first come first */
+    private static final Comparator<Candidate> BY_FEE_RATE =
+            Comparator.comparingDouble((Candidate c) -> -c.feeRate).thenComparingLong(c -> c.sequence);
+
+    private final int maxOutpoints;
+    private final int maxCandidatesPerOutpoint;
+    private final double minFeeRateIncrease;
+    private final LinkedHashMap<UTXO, TreeSet<Candidate>> outpoints = new LinkedHashMap<>();
+    private long nextSequence;
+
+    public ConflictIndex() {
+        this(DEFAULT_MAX_OUTPOINTS, DEFAULT_MAX_CANDIDATES_PER_OUTPOINT, DEFAULT_MIN_FEE_RATE_INCREASE);
+    }
+
+    public ConflictIndex(int maxOutpoints, int maxCandidatesPerOutpoint, double minFeeRateIncrease) {
+        this.maxOutpoints = maxOutpoints;
+        this.maxCandidatesPerOutpoint = maxCandidatesPerOutpoint;
+        this.minFeeRateIncrease = minFeeRateIncrease;
+    }
+
+    /** @return a candidate for {@code tx}, paying {@code fee} over its encoded size */
+    public Candidate candidate(Transaction tx, double fee) {
+        return new Candidate(tx, fee, TransactionCodec.encodedLength(tx), nextSequence++);
+    }
+
+    /**
+     * @return true if {@code replacement} may replace all of {@code replaced}, the transactions it
+     *         conflicts with, evicting {@code evicted}, those transactions and their descendants
+     */
+    public boolean mayReplace(Candidate replacement, Collection<Candidate> replaced, Collection<Candidate> evicted) {
+        for (Candidate candidate : replaced) {
+            if (replacement.feeRate < candidate.feeRate * (1 + minFeeRateIncrease)) return false;
+        }
+        double fees = 0;
+        for (Candidate candidate : evicted) {
+            fees += candidate.fee;
+        }
+        return replacement.fee >= fees;
+    }
+
+    /**
+     * @return true if {@code candidate} would be kept as a candidate spender of {@code utxo}, that
+     *         is if the outpoint has room left or the candidate beats its lowest fee rate
+     */
+    public boolean wouldKeep(UTXO utxo, Candidate candidate) {
+        TreeSet<Candidate> candidates = outpoints.get(utxo);
+        return candidates == null || candidates.size() < maxCandidatesPerOutpoint ||
+                BY_FEE_RATE.compare(candidate, candidates.last()) < 0;
+    }
+
+    /**
+     * Records {@code candidate} as a spender of {@code utxo}, dropping the lowest one if full
+     *
+     * @return the candidates dropped to make room, those of the outpoint contested first included
+     *         if it had to be forgotten
+     */
+    public Collection<Candidate> add(UTXO utxo, Candidate candidate) {
+        if (maxOutpoints <= 0 || maxCandidatesPerOutpoint <= 0) return Collections.singletonList(candidate);
+        List<Candidate> dropped = new ArrayList<>();
+        TreeSet<Candidate> candidates = outpoints.get(utxo);
+        if (candidates == null) {
+            if (outpoints.size() >= maxOutpoints) {
+                Iterator<TreeSet<Candidate>> eldest = outpoints.values().iterator();
+                dropped.addAll(eldest.next());
+                eldest.remove();
+            }
+            candidates = new TreeSet<>(BY_FEE_RATE);
+            outpoints.put(utxo, candidates);
+        }
+        candidates.add(candidate);
+        if (candidates.size() > maxCandidatesPerOutpoint) dropped.add(candidates.pollLast());
+        return dropped;
+    }
+
+    public void remove(UTXO utxo, Candidate candidate) {
+        TreeSet<Candidate> candidates = outpoints.get(utxo);
+        if (candidates == null) return;
+        candidates.remove(candidate);
+        if (candidates.isEmpty()) outpoints.remove(utxo);
+    }
+
+    /**
+     * Forgets {@code utxo}, once it is spent for good
+     *
+     * @return the candidate spenders it had
+     */
+    public Collection<Candidate> removeOutpoint(UTXO utxo) {
+        TreeSet<Candidate> candidates = outpoints.remove(utxo);
+        return candidates == null ? Collections.emptyList() : candidates;
+    }
+
+    /** @return the candidate spenders of {@code utxo}, highest fee rate first */
+    public Collection<Candidate> candidates(UTXO utxo) {
+        TreeSet<Candidate> candidates = outpoints.get(utxo);
+        return candidates == null ? Collections.emptyList() : Collections.unmodifiableSet(candidates);
+    }
+
+    /** @return true if {@code tx} is still a candidate spender of one of the coins it spends */
+    public boolean isCandidate(Transaction tx) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            TreeSet<Candidate> candidates = outpoints.get(new UTXO(input.prevTxHash, input.outputIndex));
+            if (candidates == null) continue;
+            for (Candidate candidate : candidates) {
+                if (candidate.tx.equals(tx)) return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isContested(UTXO utxo) {
+        return outpoints.containsKey(utxo);
+    }
+
+    public int outpointCount() {
+        return outpoints.size();
+    }
+
+    /** A proposed transaction with its fee and fee rate, the fee per byte of its encoding */
+    public static class Candidate {
+        public final Transaction tx;
+        public final double fee;
+        public final double feeRate;
+        private final long sequence;
+
+        Candidate(Transaction tx, double fee, int size, long sequence) {
+            this.tx = tx;
+            this.fee = fee;
+            this.feeRate = fee / Math.max(size, 1);
+            this.sequence = sequence;
+        }
+    }
+}
@@ -1,36 +1,123 @@
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Crypto {
 
+    public static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    public static final String KEY_ALGORITHM = "RSA";
+
+    /** Keys kept by each of the key caches before it starts over */
+    static final int MAX_CACHED_KEYS = 1 << 14;
+
+    /** Signature engines of the current thread by algorithm, created on first use */
+    private static final ThreadLocal<Map<String, Signature>> ENGINES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance(KEY_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(KEY_ALGORITHM + " is not supported by any provider", e);
+        }
+    });
+
+    /** Keys translated into the signature provider's own representation */
+    private static final Map<PublicKey, PublicKey> TRANSLATED_KEYS = new ConcurrentHashMap<>();
+    /** Keys decoded from their X.509 encoding */
+    private static final Map<ByteBuffer, PublicKey> DECODED_KEYS = new ConcurrentHashMap<>();
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
      *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         algorithm. Keys and signatures that are malformed are not valid
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        return verify(engine(SIGNATURE_ALGORITHM), pubKey, message, signature);
+    }
+
+    /**
+     * Verifies {@code signatures[i]} of {@code messages[i]} under {@code pubKeys[i]} for every i
+     * with the engine of the calling thread. Each thread has engines of its own, so callers can
+     * split a large batch across threads.
+     *
+     * @return for every i, whether the signature is valid
+     */
+    public static boolean[] verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        if (pubKeys.length != messages.length || pubKeys.length != signatures.length)
+            throw new IllegalArgumentException("Keys, messages and signatures differ in length");
+        Signature sig = engine(SIGNATURE_ALGORITHM);
+        boolean[] valid = new boolean[pubKeys.length];
+        for (int i = 0; i < valid.length; i++) {
+            valid[i] = verify(sig, pubKeys[i], messages[i], signatures[i]);
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        return valid;
+    }
+
+    /**
+     * @return the public key with X.509 encoding {@code encoded}. Decoded keys are cached, so
+     *         decoding the same address again returns the same instance
+     * @throws IllegalArgumentException if {@code encoded} is not an encoded RSA public key
+     */
+    public static PublicKey decodePublicKey(byte[] encoded) {
+        ByteBuffer id = ByteBuffer.wrap(encoded);
+        PublicKey key = DECODED_KEYS.get(id);
+        if (key == null) {
+            try {
+                key = KEY_FACTORY.get().generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalArgumentException("Malformed public key", e);
+            }
+            cache(DECODED_KEYS, ByteBuffer.wrap(encoded.clone()), key);
+            cache(TRANSLATED_KEYS, key, key);
         }
+        return key;
+    }
+
+    private static boolean verify(Signature sig, PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || message == null || signature == null) return false;
         try {
+            sig.initVerify(translate(pubKey));
             sig.update(message);
             return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+        } catch (InvalidKeyException | SignatureException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code pubKey} in the representation of the signature provider, so that the engine
+     *         does not have to convert keys coming from other providers on every verification
+     */
+    private static PublicKey translate(PublicKey pubKey) throws InvalidKeyException {
+        PublicKey translated = TRANSLATED_KEYS.get(pubKey);
+        if (translated == null) {
+            translated = KEY_ALGORITHM.equals(pubKey.getAlgorithm())
+                    ? (PublicKey) KEY_FACTORY.get().translateKey(pubKey) : pubKey;
+            cache(TRANSLATED_KEYS, pubKey, translated);
         }
-        return false;
+        return translated;
+    }
+
+    private static Signature engine(String algorithm) {
+        Map<String, Signature> engines = ENGINES.get();
+        Signature sig = engines.get(algorithm);
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(algorithm + " is not supported by any provider", e);
+            }
+            engines.put(algorithm, sig);
+        }
+        return sig;
+    }
 
+    private static <K> void cache(Map<K, PublicKey> cache, K key, PublicKey value) {
+        if (cache.size() >= MAX_CACHED_KEYS) cache.clear();
+        cache.put(key, value);
     }
 }
@@ -0,0 +1,996 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.PublicKey;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * {@link UTXOStore} kept on disk in a directory, so that a restart reopens the coins instead of
+ * replaying every epoch. The coins are layered:
+ * <ul>
+ * <li>a data file of all the coins as of some epoch, sorted by UTXO in blocks of
+ * {@value #BLOCK_RECORDS} records and memory mapped, with the first UTXO of every block and a
+ * bloom filter of all of them kept on the heap, so a missing coin rarely touches the file and a
+ * present one reads a single block;</li>
+ * <li>the coins added or removed since, in persistent {@link UTXOTrie}s, removals being
+ * tombstones.</li>
+ * </ul>
+ * {@link #commit} appends the changes since the previous commit to a write-ahead log, as one
+ * record checked by a CRC32, and waits until the record is on disk, so an epoch reported as
+ * accepted survives a crash. A writer thread writes the records that pile up while it forces the
+ * log to disk all at once. Stores opened without {@code syncOnCommit} return from their commits at
+ * once, so the epochs committed in quick succession share one fsync, but those committed since the
+ * last {@link #sync} are lost on a crash. Once the log has grown past
+ * {@code compactionThresholdBytes} the writer starts a new log file and a compaction thread merges
+ * the data file with the changes into a new data file, that atomically replaces the old one and
+ * makes the old logs obsolete. Writes are not held up by a compaction.
+ * <p>
+ * Opening a directory loads the data file and replays the logs written after it, dropping a torn
+ * or corrupt record at the end of the last one; such a record in an earlier log fails the opening.
+ * Each record holds a whole epoch, so the coins reopened are exactly those of the last epoch whose
+ * record reached the disk.
+ * <p>
+ * The log has a single owner: a store that writes one cannot be {@link #copy copied}, so it must
+ * be handed to a handler that adopts it, see {@link TxHandler#adopting}, rather than one that copies
+ * the pool it is given. {@link #snapshot} and copies of a closed store keep their coins in memory
+ * only. Both take O(1) and share the data file.
+ */
+public class DurableUTXOStore implements UTXOStore, Closeable {
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD_BYTES = 64L << 20;
+
+    static final String DATA_FILE = "utxo.dat";
+    static final int BLOCK_RECORDS = 64;
+
+    private static final int MAGIC = 0x5554584F;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    /** bytes of one mapping of the data file, no block crosses a chunk boundary */
+    private static final long CHUNK_BYTES = 1L << 30;
+    private static final int FRAME_BYTES = 2 * Integer.BYTES;
+
+    private static final byte REMOVE = 0;
+    private static final byte PUT_NULL = 1;
+    private static final byte PUT = 2;
+
+    /** enclosing instance of the outputs read from disk */
+    private static final Transaction OUTPUTS = new Transaction();
+    /** tombstone of the removed coins in the tries, and missing coin marker on lookups */
+    private static final Transaction.Output REMOVED = OUTPUTS.new Output(Double.NaN, null);
+
+    private DataFile data;
+    /** changes being merged into the next data file by the compaction in progress, if any */
+    private UTXOTrie frozen;
+    private UTXOTrie overlay;
+    private int size;
+
+    /** the log, if this store writes it; null once closed and for snapshots */
+    private Log log;
+    /** changes since the last commit, tombstones for removals */
+    private LinkedHashMap<UTXO, Transaction.Output> delta = new LinkedHashMap<>();
+    private long epoch;
+
+    /**
+     * Opens or creates the store of {@code directory}, with the default compaction threshold, whose
+     * commits wait for the log to be on disk
+     */
+    public DurableUTXOStore(Path directory) throws IOException {
+        this(directory, DEFAULT_COMPACTION_THRESHOLD_BYTES, true);
+    }
+
+    /**
+     * Opens or creates the store of {@code directory}, replaying the log written since the last
+     * compaction.
+     *
+     * @param compactionThresholdBytes size of log after which the changes are merged into a new
+     *                                 data file
+     * @param syncOnCommit             whether {@link #commit} waits for the log to be on disk; if
+     *                                 not, the caller must {@link #sync} before it reports epochs as
+     *                                 accepted
+     */
+    public DurableUTXOStore(Path directory, long compactionThresholdBytes, boolean syncOnCommit) throws IOException {
+        Files.createDirectories(directory);
+        Path dataFile = directory.resolve(DATA_FILE);
+        Files.deleteIfExists(directory.resolve(DATA_FILE + ".tmp"));
+        data = Files.exists(dataFile) ? DataFile.open(dataFile) : DataFile.EMPTY;
+        overlay = new UTXOTrie();
+        size = (int) data.count;
+
+        long generation = data.nextWal;
+        long replayed = 0;
+        while (Files.exists(walFile(directory, generation))) {
+            boolean last = !Files.exists(walFile(directory, generation + 1));
+            replayed += replay(walFile(directory, generation), last);
+            if (last) break;
+            generation++;
+        }
+        deleteLogsBefore(directory, data.nextWal);
+        log = new Log(directory, generation, compactionThresholdBytes, syncOnCommit);
+        log.bytesSinceCompaction = replayed;
+    }
+
+    private DurableUTXOStore(DurableUTXOStore store) {
+        data = store.data;
+        frozen = store.frozen;
+        overlay = store.overlay.copy();
+        size = store.size;
+        epoch = store.epoch;
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return get(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        Transaction.Output output = find(txHash, index);
+        return output == REMOVED ? null : output;
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return find(txHash, index) != REMOVED;
+    }
+
+    /** @return the output in the top layer that has it, or REMOVED */
+    private Transaction.Output find(byte[] txHash, int index) {
+        if (overlay.contains(txHash, index)) return overlay.get(txHash, index);
+        if (frozen != null && frozen.contains(txHash, index)) return frozen.get(txHash, index);
+        return data.find(txHash, index);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        apply(utxo, output);
+        if (log != null) delta.put(utxo, output);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (apply(utxo, REMOVED) && log != null) delta.put(utxo, REMOVED);
+    }
+
+    /** @return true if the coins changed, a removal of a missing coin does not change them */
+    private boolean apply(UTXO utxo, Transaction.Output output) {
+        boolean present = contains(utxo);
+        if (output == REMOVED && !present) return false;
+        if (output == REMOVED) size--;
+        else if (!present) size++;
+        overlay.put(utxo, output);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        data.forEach((utxo, output) -> {
+            if (!overlay.contains(utxo) && (frozen == null || !frozen.contains(utxo))) action.accept(utxo, output);
+        });
+        if (frozen != null) {
+            frozen.forEach((utxo, output) -> {
+                if (output != REMOVED && !overlay.contains(utxo)) action.accept(utxo, output);
+            });
+        }
+        overlay.forEach((utxo, output) -> {
+            if (output != REMOVED) action.accept(utxo, output);
+        });
+    }
+
+    /**
+     * @return a store with the same coins, kept in memory only
+     * @throws IllegalStateException if this store writes a log, whose epochs the copy would not
+     *                               commit; a handler should adopt the store instead
+     */
+    @Override
+    public DurableUTXOStore copy() {
+        if (log != null) throw new IllegalStateException("A UTXO store writing a log cannot be copied");
+        return new DurableUTXOStore(this);
+    }
+
+    /** @return a store with the same coins, kept in memory only */
+    @Override
+    public DurableUTXOStore snapshot() {
+        return new DurableUTXOStore(this);
+    }
+
+    @Override
+    public boolean hasCheapSnapshot() {
+        return true;
+    }
+
+    /**
+     * Appends the changes since the last commit to the log as one epoch, waits for it to be on
+     * disk unless the store was opened without {@code syncOnCommit}, and starts a compaction if the
+     * log has grown past the threshold. Does nothing if the store writes no log.
+     *
+     * @throws UncheckedIOException if writing the log or compacting failed
+     */
+    @Override
+    public void commit() {
+        if (log == null) return;
+        log.checkFailure();
+        DataFile compacted = log.compacted;
+        if (compacted != null) {
+            data = compacted;
+            frozen = null;
+            log.compacted = null;
+        }
+        if (delta.isEmpty()) return;
+
+        byte[] record = encodeEpoch(epoch++, delta);
+        delta = new LinkedHashMap<>();
+        CompletableFuture<Void> written = log.append(record);
+        if (frozen == null && log.bytesSinceCompaction >= log.compactionThresholdBytes) {
+            frozen = overlay;
+            overlay = new UTXOTrie();
+            log.compact(data, frozen);
+        }
+        if (log.syncOnCommit) await(written);
+    }
+
+    /** @return the number of epochs committed to this store, including those reopened */
+    public long committedEpochs() {
+        return epoch;
+    }
+
+    /**
+     * Waits until every epoch committed so far is on disk.
+     *
+     * @throws UncheckedIOException if writing the log failed
+     */
+    @Override
+    public void sync() {
+        if (log != null) await(log.append(null));
+    }
+
+    /**
+     * Waits for the log and any compaction in progress and stops the threads of the store. Changes
+     * that were not committed are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        if (log == null) return;
+        try {
+            log.close();
+        } finally {
+            log = null;
+        }
+    }
+
+    private static void await(CompletableFuture<Void> written) {
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw (UncheckedIOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies the records of {@code file} one by one. A record that is torn or corrupt can only be
+     * the last one written before a crash, so the {@code last} log is cut before it; in an earlier
+     * log the epochs after it would be replayed on top of a missing one, and opening fails.
+     *
+     * @return the bytes of valid records
+     */
+    private long replay(Path file, boolean last) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+            long valid = 0;
+            while (size - valid >= FRAME_BYTES) {
+                frame.clear();
+                readFully(channel, frame, valid);
+                frame.flip();
+                int length = frame.getInt();
+                int crc = frame.getInt();
+                if (length < 0 || length > size - valid - FRAME_BYTES) break;
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(channel, record, valid + FRAME_BYTES);
+                if (crc32(record.array()) != crc) break;
+                epoch = decodeEpoch(record.array()) + 1;
+                valid += FRAME_BYTES + length;
+            }
+            if (valid < size) {
+                if (!last) throw new IOException("Corrupt record at " + valid + " of UTXO log " + file);
+                channel.truncate(valid);
+            }
+            return valid;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Truncated UTXO file");
+        }
+    }
+
+    private static byte[] encodeEpoch(long epoch, Map<UTXO, Transaction.Output> changes) {
+        Map<PublicKey, byte[]> encoded = new IdentityHashMap<>();
+        int length = Long.BYTES + TransactionCodec.varIntLength(changes.size());
+        for (Map.Entry<UTXO, Transaction.Output> change : changes.entrySet()) {
+            length += keyLength(change.getKey()) + 1;
+            Transaction.Output output = change.getValue();
+            if (output != REMOVED && output != null) {
+                byte[] address = output.address == null ? null : encoded.computeIfAbsent(output.address, PublicKey::getEncoded);
+                length += Double.BYTES + arrayLength(address);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putLong(epoch);
+        TransactionCodec.putVarInt(buffer, changes.size());
+        for (Map.Entry<UTXO, Transaction.Output> change : changes.entrySet()) {
+            putKey(buffer, change.getKey());
+            Transaction.Output output = change.getValue();
+            if (output == REMOVED) {
+                buffer.put(REMOVE);
+            } else if (output == null) {
+                buffer.put(PUT_NULL);
+            } else {
+                buffer.put(PUT);
+                buffer.putDouble(output.value);
+                putArray(buffer, output.address == null ? null : encoded.get(output.address));
+            }
+        }
+        return buffer.array();
+    }
+
+    private long decodeEpoch(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long epoch = buffer.getLong();
+        int changes = TransactionCodec.getVarInt(buffer);
+        for (int i = 0; i < changes; i++) {
+            UTXO utxo = getKey(buffer);
+            byte kind = buffer.get();
+            if (kind == REMOVE) {
+                apply(utxo, REMOVED);
+            } else if (kind == PUT_NULL) {
+                apply(utxo, null);
+            } else {
+                double value = buffer.getDouble();
+                byte[] address = getArray(buffer);
+                apply(utxo, OUTPUTS.new Output(value, address == null ? null : Crypto.decodePublicKey(address)));
+            }
+        }
+        return epoch;
+    }
+
+    static Path walFile(Path directory, long generation) {
+        return directory.resolve(String.format("wal-%016d.log", generation));
+    }
+
+    private static void deleteLogsBefore(Path directory, long generation) throws IOException {
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : logs) {
+                String name = file.getFileName().toString();
+                if (Long.parseLong(name.substring(4, name.length() - 4)) < generation) Files.delete(file);
+            }
+        }
+    }
+
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory, renames are durable there anyway
+        }
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /** Order of the data file: hashes compared as unsigned bytes, then by length, then indexes */
+    private static int compareKeys(byte[] hash1, int index1, byte[] hash2, int index2) {
+        int common = Math.min(hash1.length, hash2.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (hash1[i] & 0xFF) - (hash2[i] & 0xFF);
+            if (diff != 0) return diff;
+        }
+        if (hash1.length != hash2.length) return Integer.compare(hash1.length, hash2.length);
+        return Integer.compare(index1, index2);
+    }
+
+    private static long keyHash(byte[] hash, int index) {
+        long h = index * 0x9E3779B97F4A7C15L;
+        for (byte b : hash) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int keyLength(UTXO utxo) {
+        return arrayLength(utxo.getTxHash()) + TransactionCodec.varIntLength(utxo.getIndex());
+    }
+
+    private static void putKey(ByteBuffer buffer, UTXO utxo) {
+        putArray(buffer, utxo.getTxHash());
+        TransactionCodec.putVarInt(buffer, utxo.getIndex());
+    }
+
+    private static UTXO getKey(ByteBuffer buffer) {
+        byte[] hash = getArray(buffer);
+        return new UTXO(hash, TransactionCodec.getVarInt(buffer));
+    }
+
+    private static int arrayLength(byte[] array) {
+        return array == null ? 1 : TransactionCodec.varIntLength(array.length + 1) + array.length;
+    }
+
+    private static void putArray(ByteBuffer buffer, byte[] array) {
+        TransactionCodec.putVarInt(buffer, array == null ? 0 : array.length + 1);
+        if (array != null) buffer.put(array);
+    }
+
+    private static byte[] getArray(ByteBuffer buffer) {
+        int length = TransactionCodec.getVarInt(buffer) - 1;
+        if (length < 0) return null;
+        byte[] array = new byte[length];
+        buffer.get(array);
+        return array;
+    }
+
+    /**
+     * Log files and the threads writing them. The writer thread owns the current log file, the
+     * compaction thread writes data files and publishes them through {@link #compacted}.
+     */
+    private static final class Log {
+        private static final Object STOP = new Object();
+
+        final Path directory;
+        final long compactionThresholdBytes;
+        final boolean syncOnCommit;
+        /** bytes of log written since the last compaction started, counted by the store */
+        long bytesSinceCompaction;
+        /** data file written by the last compaction, not yet picked up by the store */
+        volatile DataFile compacted;
+        private volatile Throwable failure;
+
+        private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "utxo-compactor"));
+        private final Thread writer;
+        private FileChannel wal;
+        private long generation;
+
+        Log(Path directory, long generation, long compactionThresholdBytes, boolean syncOnCommit) throws IOException {
+            this.directory = directory;
+            this.generation = generation;
+            this.compactionThresholdBytes = compactionThresholdBytes;
+            this.syncOnCommit = syncOnCommit;
+            wal = openWal();
+            writer = daemon(this::write, "utxo-wal");
+            writer.start();
+        }
+
+        private static Thread daemon(Runnable runnable, String name) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        private FileChannel openWal() throws IOException {
+            FileChannel channel = FileChannel.open(walFile(directory, generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            forceDirectory(directory);
+            return channel;
+        }
+
+        /** @return a future completed once {@code record} is on disk; a null record only waits */
+        CompletableFuture<Void> append(byte[] record) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            if (record != null) bytesSinceCompaction += FRAME_BYTES + record.length;
+            queue.add(new Append(record, written));
+            return written;
+        }
+
+        /** Starts a new log file after the records appended so far, then merges {@code changes} */
+        void compact(DataFile data, UTXOTrie changes) {
+            bytesSinceCompaction = 0;
+            queue.add(new Rotate(data, changes));
+        }
+
+        void checkFailure() {
+            Throwable cause = failure;
+            if (cause != null) throw new UncheckedIOException(new IOException("UTXO store failed", cause));
+        }
+
+        void close() throws IOException {
+            queue.add(STOP);
+            try {
+                writer.join();
+                compactor.shutdown();
+                compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing the UTXO store", e);
+            }
+            Throwable cause = failure;
+            if (cause != null) throw new IOException("UTXO store failed", cause);
+        }
+
+        /** Writer thread: writes whatever was appended meanwhile and forces it with one fsync */
+        private void write() {
+            List<Object> batch = new ArrayList<>();
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            boolean stop = false;
+            while (!stop) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch);
+                try {
+                    for (Object message : batch) {
+                        if (message == STOP) {
+                            stop = true;
+                        } else if (message instanceof Append) {
+                            Append append = (Append) message;
+                            if (append.record != null) writeRecord(append.record);
+                            pending.add(append.written);
+                        } else {
+                            Rotate rotate = (Rotate) message;
+                            wal.force(false);
+                            complete(pending, null);
+                            wal.close();
+                            generation++;
+                            wal = openWal();
+                            long nextWal = generation;
+                            compactor.execute(() -> merge(rotate, nextWal));
+                        }
+                    }
+                    if (failure != null) throw new IOException("UTXO store failed", failure);
+                    wal.force(false);
+                    complete(pending, null);
+                    if (stop) wal.close();
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null) failure = e;
+                    complete(pending, e);
+                }
+                batch.clear();
+            }
+        }
+
+        private void writeRecord(byte[] record) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES + record.length);
+            frame.putInt(record.length).putInt(crc32(record)).put(record).flip();
+            while (frame.hasRemaining()) {
+                wal.write(frame);
+            }
+        }
+
+        private static void complete(List<CompletableFuture<Void>> pending, Throwable cause) {
+            for (CompletableFuture<Void> written : pending) {
+                if (cause == null) written.complete(null);
+                else written.completeExceptionally(new UncheckedIOException(new IOException("UTXO log failed", cause)));
+            }
+            pending.clear();
+        }
+
+        /** Compaction thread: writes the data file that makes the logs before {@code nextWal} obsolete */
+        private void merge(Rotate rotate, long nextWal) {
+            try {
+                compacted = DataFile.write(directory, rotate.data, rotate.changes, nextWal);
+                deleteLogsBefore(directory, nextWal);
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) failure = e;
+            }
+        }
+
+        private static final class Append {
+            final byte[] record;
+            final CompletableFuture<Void> written;
+
+            Append(byte[] record, CompletableFuture<Void> written) {
+                this.record = record;
+                this.written = written;
+            }
+        }
+
+        private static final class Rotate {
+            final DataFile data;
+            final UTXOTrie changes;
+
+            Rotate(DataFile data, UTXOTrie changes) {
+                this.data = data;
+                this.changes = changes;
+            }
+        }
+    }
+
+    /**
+     * Immutable sorted file of coins. Layout: a header, the blocks of records, then the index of
+     * the blocks, the table of encoded addresses and the bloom filter. A record is the key, an
+     * address code, 0 for a null output, 1 for a null address or the address id plus 2, and the
+     * value of the output unless it is null.
+     */
+    private static final class DataFile {
+        static final DataFile EMPTY = new DataFile(0, 0, new MappedByteBuffer[0], new long[0], new int[0],
+                new byte[0][], new int[0], new byte[0][], new Bloom(0));
+
+        final long nextWal;
+        final long count;
+        private final MappedByteBuffer[] chunks;
+        private final long[] blockOffsets;
+        private final int[] blockRecords;
+        private final byte[][] firstHashes;
+        private final int[] firstIndexes;
+        private final byte[][] encodedAddresses;
+        private final PublicKey[] addresses;
+        private final Bloom bloom;
+
+        private DataFile(long nextWal, long count, MappedByteBuffer[] chunks, long[] blockOffsets, int[] blockRecords,
+                         byte[][] firstHashes, int[] firstIndexes, byte[][] encodedAddresses, Bloom bloom) {
+            this.nextWal = nextWal;
+            this.count = count;
+            this.chunks = chunks;
+            this.blockOffsets = blockOffsets;
+            this.blockRecords = blockRecords;
+            this.firstHashes = firstHashes;
+            this.firstIndexes = firstIndexes;
+            this.encodedAddresses = encodedAddresses;
+            this.addresses = new PublicKey[encodedAddresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = Crypto.decodePublicKey(encodedAddresses[i]);
+            }
+            this.bloom = bloom;
+        }
+
+        static DataFile open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                    throw new IOException("Not a UTXO data file: " + file);
+                long nextWal = header.getLong();
+                long count = header.getLong();
+                long blocksEnd = header.getLong();
+
+                MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((blocksEnd + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long from = i * CHUNK_BYTES;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(CHUNK_BYTES, blocksEnd - from));
+                }
+                long trailerBytes = channel.size() - blocksEnd;
+                if (trailerBytes > Integer.MAX_VALUE) throw new IOException("UTXO data file index too large: " + file);
+                ByteBuffer trailer = ByteBuffer.allocate((int) trailerBytes);
+                readFully(channel, trailer, blocksEnd);
+                trailer.flip();
+
+                int blocks = TransactionCodec.getVarInt(trailer);
+                long[] blockOffsets = new long[blocks];
+                int[] blockRecords = new int[blocks];
+                byte[][] firstHashes = new byte[blocks][];
+                int[] firstIndexes = new int[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    blockOffsets[i] = trailer.getLong();
+                    blockRecords[i] = TransactionCodec.getVarInt(trailer);
+                    firstHashes[i] = getArray(trailer);
+                    firstIndexes[i] = TransactionCodec.getVarInt(trailer);
+                }
+                byte[][] encodedAddresses = new byte[TransactionCodec.getVarInt(trailer)][];
+                for (int i = 0; i < encodedAddresses.length; i++) {
+                    encodedAddresses[i] = getArray(trailer);
+                }
+                long[] bits = new long[trailer.getInt()];
+                trailer.asLongBuffer().get(bits);
+                return new DataFile(nextWal, count, chunks, blockOffsets, blockRecords, firstHashes, firstIndexes,
+                        encodedAddresses, new Bloom(bits));
+            }
+        }
+
+        /** @return the output of the coin, or REMOVED if the file does not hold it */
+        Transaction.Output find(byte[] hash, int index) {
+            if (!bloom.mightContain(keyHash(hash, index))) return REMOVED;
+            int low = 0;
+            int high = blockOffsets.length - 1;
+            int block = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compareKeys(firstHashes[mid], firstIndexes[mid], hash, index) <= 0) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (block < 0) return REMOVED;
+
+            ByteBuffer buffer = block(block);
+            for (int i = 0; i < blockRecords[block]; i++) {
+                int length = TransactionCodec.getVarInt(buffer) - 1;
+                int start = buffer.position();
+                int cmp = 0;
+                for (int j = 0; j < Math.min(length, hash.length) && cmp == 0; j++) {
+                    cmp = (buffer.get(start + j) & 0xFF) - (hash[j] & 0xFF);
+                }
+                if (cmp == 0) cmp = Integer.compare(length, hash.length);
+                buffer.position(start + length);
+                int recordIndex = TransactionCodec.getVarInt(buffer);
+                if (cmp == 0) cmp = Integer.compare(recordIndex, index);
+                int address = TransactionCodec.getVarInt(buffer);
+                double value = address == 0 ? 0 : buffer.getDouble();
+                if (cmp == 0) return output(address, value);
+                if (cmp > 0) break;
+            }
+            return REMOVED;
+        }
+
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            Cursor cursor = new Cursor();
+            while (cursor.next()) {
+                action.accept(new UTXO(cursor.hash, cursor.index), output(cursor.address, cursor.value));
+            }
+        }
+
+        private Transaction.Output output(int address, double value) {
+            if (address == 0) return null;
+            return OUTPUTS.new Output(value, address == 1 ? null : addresses[address - 2]);
+        }
+
+        private ByteBuffer block(int block) {
+            ByteBuffer buffer = chunks[(int) (blockOffsets[block] / CHUNK_BYTES)].duplicate();
+            buffer.position((int) (blockOffsets[block] % CHUNK_BYTES));
+            return buffer;
+        }
+
+        /** Reads the records in order */
+        private final class Cursor {
+            int block = -1;
+            int remaining;
+            ByteBuffer buffer;
+            byte[] hash;
+            int index;
+            int address;
+            double value;
+
+            boolean next() {
+                while (remaining == 0) {
+                    if (++block >= blockOffsets.length) return false;
+                    buffer = block(block);
+                    remaining = blockRecords[block];
+                }
+                remaining--;
+                hash = getArray(buffer);
+                index = TransactionCodec.getVarInt(buffer);
+                address = TransactionCodec.getVarInt(buffer);
+                value = address == 0 ? 0 : buffer.getDouble();
+                return true;
+            }
+        }
+
+        /**
+         * Writes the coins of {@code data} changed by {@code changes} to a new data file, that
+         * replaces the file of {@code directory} atomically once it is on disk.
+         */
+        static DataFile write(Path directory, DataFile data, UTXOTrie changes, long nextWal) throws IOException {
+            List<Map.Entry<UTXO, Transaction.Output>> sorted = new ArrayList<>(changes.size());
+            changes.forEach((utxo, output) -> sorted.add(new AbstractMap.SimpleImmutableEntry<>(utxo, output)));
+            sorted.sort((a, b) -> compareKeys(a.getKey().getTxHash(), a.getKey().getIndex(),
+                    b.getKey().getTxHash(), b.getKey().getIndex()));
+
+            Path tmp = directory.resolve(DATA_FILE + ".tmp");
+            Files.deleteIfExists(tmp);
+            Writer writer = new Writer(tmp, data.count + sorted.size());
+            try {
+                Cursor cursor = data.new Cursor();
+                boolean more = cursor.next();
+                int[] addressIds = new int[data.encodedAddresses.length];
+                Arrays.fill(addressIds, -1);
+                for (Map.Entry<UTXO, Transaction.Output> change : sorted) {
+                    UTXO utxo = change.getKey();
+                    int cmp;
+                    while (more && (cmp = compareKeys(cursor.hash, cursor.index, utxo.getTxHash(), utxo.getIndex())) <= 0) {
+                        if (cmp < 0) writer.add(cursor.hash, cursor.index, writer.remap(data, cursor.address, addressIds), cursor.value);
+                        more = cursor.next();
+                    }
+                    Transaction.Output output = change.getValue();
+                    if (output != REMOVED) {
+                        writer.add(utxo.getTxHash(), utxo.getIndex(), writer.code(output), output == null ? 0 : output.value);
+                    }
+                }
+                while (more) {
+                    writer.add(cursor.hash, cursor.index, writer.remap(data, cursor.address, addressIds), cursor.value);
+                    more = cursor.next();
+                }
+                writer.finish(nextWal);
+            } finally {
+                writer.channel.close();
+            }
+            Path file = directory.resolve(DATA_FILE);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory(directory);
+            return open(file);
+        }
+
+        /** Appends records to a new data file in blocks that never cross a chunk boundary */
+        private static final class Writer {
+            final FileChannel channel;
+            private final Bloom bloom;
+            private ByteBuffer trailer = ByteBuffer.allocate(1 << 16);
+            private final Map<ByteBuffer, Integer> addressIds = new HashMap<>();
+            private final Map<PublicKey, Integer> keyIds = new IdentityHashMap<>();
+            private final List<byte[]> addresses = new ArrayList<>();
+            private ByteBuffer blockBuffer = ByteBuffer.allocate(1 << 16);
+            private long position = HEADER_BYTES;
+            private long count;
+            private int blocks;
+            private int blockCount;
+            private byte[] firstHash;
+            private int firstIndex;
+
+            Writer(Path file, long expected) throws IOException {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                bloom = new Bloom(expected);
+            }
+
+            int remap(DataFile data, int address, int[] ids) {
+                if (address < 2) return address;
+                if (ids[address - 2] < 0) ids[address - 2] = id(data.encodedAddresses[address - 2]);
+                return ids[address - 2] + 2;
+            }
+
+            int code(Transaction.Output output) {
+                if (output == null) return 0;
+                if (output.address == null) return 1;
+                Integer id = keyIds.get(output.address);
+                if (id == null) {
+                    id = id(output.address.getEncoded());
+                    keyIds.put(output.address, id);
+                }
+                return id + 2;
+            }
+
+            private int id(byte[] encoded) {
+                return addressIds.computeIfAbsent(ByteBuffer.wrap(encoded), bytes -> {
+                    addresses.add(encoded);
+                    return addresses.size() - 1;
+                });
+            }
+
+            void add(byte[] hash, int index, int address, double value) throws IOException {
+                int length = arrayLength(hash) + TransactionCodec.varIntLength(index) +
+                        TransactionCodec.varIntLength(address) + (address == 0 ? 0 : Double.BYTES);
+                if (blockBuffer.remaining() < length) blockBuffer = grow(blockBuffer, length);
+                if (blockCount == 0) {
+                    firstHash = hash;
+                    firstIndex = index;
+                }
+                putArray(blockBuffer, hash);
+                TransactionCodec.putVarInt(blockBuffer, index);
+                TransactionCodec.putVarInt(blockBuffer, address);
+                if (address != 0) blockBuffer.putDouble(value);
+                bloom.add(keyHash(hash, index));
+                count++;
+                if (++blockCount == BLOCK_RECORDS) flushBlock();
+            }
+
+            private void flushBlock() throws IOException {
+                if (blockCount == 0) return;
+                blockBuffer.flip();
+                int length = blockBuffer.remaining();
+                if (length > CHUNK_BYTES) throw new IOException("UTXO block larger than a chunk");
+                if (position / CHUNK_BYTES != (position + length - 1) / CHUNK_BYTES) {
+                    position = (position / CHUNK_BYTES + 1) * CHUNK_BYTES;
+                }
+                long offset = position;
+                while (blockBuffer.hasRemaining()) {
+                    position += channel.write(blockBuffer, position);
+                }
+                blockBuffer.clear();
+
+                int entry = Long.BYTES + TransactionCodec.varIntLength(blockCount) + arrayLength(firstHash) +
+                        TransactionCodec.varIntLength(firstIndex);
+                if (trailer.remaining() < entry) trailer = grow(trailer, entry);
+                trailer.putLong(offset);
+                TransactionCodec.putVarInt(trailer, blockCount);
+                putArray(trailer, firstHash);
+                TransactionCodec.putVarInt(trailer, firstIndex);
+                blocks++;
+                blockCount = 0;
+            }
+
+            void finish(long nextWal) throws IOException {
+                flushBlock();
+                long blocksEnd = position;
+                int length = TransactionCodec.varIntLength(blocks) + trailer.position() +
+                        TransactionCodec.varIntLength(addresses.size()) + Integer.BYTES + bloom.bits.length * Long.BYTES;
+                for (byte[] address : addresses) {
+                    length += arrayLength(address);
+                }
+                trailer.flip();
+                ByteBuffer tail = ByteBuffer.allocate(length);
+                TransactionCodec.putVarInt(tail, blocks);
+                tail.put(trailer);
+                TransactionCodec.putVarInt(tail, addresses.size());
+                for (byte[] address : addresses) {
+                    putArray(tail, address);
+                }
+                tail.putInt(bloom.bits.length);
+                for (long word : bloom.bits) {
+                    tail.putLong(word);
+                }
+                tail.flip();
+                while (tail.hasRemaining()) {
+                    position += channel.write(tail, position);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(nextWal).putLong(count).putLong(blocksEnd).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+
+            private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+                buffer.flip();
+                grown.put(buffer);
+                return grown;
+            }
+        }
+    }
+
+    /** Bloom filter of 10 bits per key and 7 probes, about 1% of false positives */
+    private static final class Bloom {
+        private static final int BITS_PER_KEY = 10;
+        private static final int PROBES = 7;
+
+        final long[] bits;
+
+        Bloom(long expected) {
+            this(new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (expected * BITS_PER_KEY + 63) / 64))]);
+        }
+
+        Bloom(long[] bits) {
+            this.bits = bits;
+        }
+
+        void add(long hash) {
+            long size = (long) bits.length * 64;
+            long h1 = hash;
+            long h2 = Long.rotateLeft(hash, 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(long hash) {
+            long size = (long) bits.length * 64;
+            long h1 = hash;
+            long h2 = Long.rotateLeft(hash, 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+    }
+}
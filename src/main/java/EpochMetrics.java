@@ -0,0 +1,236 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of the epochs of {@link TxHandler} and {@link MaxFeeTxHandler}: a latency
+ * histogram per {@link Phase} of an epoch, the checks of {@code isValidTx} passed and failed per
+ * {@link Rule}, the signatures checked and actually verified, and the size of the pool after the
+ * last epoch. Handlers share one instance between threads; everything is kept in
+ * {@link LongAdder}s, so recording never locks.
+ * <p>
+ * A disabled instance records nothing and costs a read of a volatile flag per call: timers are
+ * started with {@link #start}, which returns {@link #NOT_TIMED} instead of reading the clock, and
+ * nothing is allocated either way. Histograms have one bucket per power of two of nanoseconds, so
+ * their quantiles are upper bounds within a factor of two.
+ */
+public class EpochMetrics {
+
+    public enum Phase {
+        /** packing the proposed transactions into a {@link TransactionBatch} */
+        PACK,
+        /** verifying the signatures of the epoch up front, see {@link SignatureBatch} */
+        SIGNATURES,
+        /** searching for the transactions of highest total fee, see {@link MaxFeeSolver} */
+        SOLVE,
+        /** building the graph of coins and spenders and weighing it */
+        GRAPH,
+        /** choosing and performing the accepted transactions, pool updates included */
+        RESOLVE,
+        /** removing the spent coins from the pool and adding the created ones */
+        POOL_UPDATE,
+        /** committing the pool, see {@link UTXOPool#commit} */
+        COMMIT,
+        /** the whole epoch */
+        EPOCH
+    }
+
+    /** The checks of {@code isValidTx}, in the order they are made */
+    public enum Rule {
+        INPUTS_IN_POOL,
+        SIGNATURES,
+        DISTINCT_INPUTS,
+        NON_NEGATIVE_OUTPUTS,
+        INPUTS_COVER_OUTPUTS
+    }
+
+    /** returned by {@link #start} when disabled, {@link #stop} ignores it */
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private static final EpochMetrics DISABLED = new EpochMetrics(false);
+
+    private volatile boolean enabled;
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final LongAdder[] failures = new LongAdder[Rule.values().length];
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder epochs = new LongAdder();
+    private final LongAdder proposed = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder signaturesChecked = new LongAdder();
+    private final LongAdder signaturesVerified = new LongAdder();
+    private volatile long lastEpochSignaturesVerified;
+    private volatile long poolSize;
+
+    /** Creates enabled metrics */
+    public EpochMetrics() {
+        this(true);
+    }
+
+    public EpochMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /** @return metrics that are always disabled, the default of the handlers */
+    public static EpochMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (this == DISABLED) throw new UnsupportedOperationException("The shared disabled metrics cannot be enabled");
+        this.enabled = enabled;
+    }
+
+    /** @return the start of a timer, to pass to {@link #stop}, or {@link #NOT_TIMED} when disabled */
+    public long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /** Records the time elapsed in {@code phase} since {@code start}, returned by {@link #start} */
+    public void stop(Phase phase, long start) {
+        if (start != NOT_TIMED) phases[phase.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /** Counts a transaction passing all the checks of {@code isValidTx}, @return true */
+    public boolean pass() {
+        if (enabled) passed.increment();
+        return true;
+    }
+
+    /** Counts a transaction failing the check {@code rule} of {@code isValidTx}, @return false */
+    public boolean fail(Rule rule) {
+        if (enabled) failures[rule.ordinal()].increment();
+        return false;
+    }
+
+    /**
+     * Counts an epoch of {@code proposed} transactions of which {@code accepted} were accepted,
+     * whose inputs had {@code signaturesChecked} signatures of which {@code signaturesVerified} were
+     * not found in a cache, leaving {@code poolSize} coins in the pool
+     */
+    public void epoch(int proposed, int accepted, long signaturesChecked, long signaturesVerified, int poolSize) {
+        if (!enabled) return;
+        epochs.increment();
+        this.proposed.add(proposed);
+        this.accepted.add(accepted);
+        this.signaturesChecked.add(signaturesChecked);
+        this.signaturesVerified.add(signaturesVerified);
+        lastEpochSignaturesVerified = signaturesVerified;
+        this.poolSize = poolSize;
+    }
+
+    public Histogram histogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public long failures(Rule rule) {
+        return failures[rule.ordinal()].sum();
+    }
+
+    public long passed() {
+        return passed.sum();
+    }
+
+    public long epochs() {
+        return epochs.sum();
+    }
+
+    public long signaturesVerified() {
+        return signaturesVerified.sum();
+    }
+
+    public long poolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return every metric by a dotted name, such as {@code epoch.phase.signatures.p99} in
+     *         nanoseconds or {@code epoch.rule.inputs_in_pool.failed}
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("epoch.count", epochs.sum());
+        metrics.put("epoch.txs.proposed", proposed.sum());
+        metrics.put("epoch.txs.accepted", accepted.sum());
+        metrics.put("epoch.txs.valid", passed.sum());
+        for (Rule rule : Rule.values()) {
+            metrics.put("epoch.rule." + rule.name().toLowerCase() + ".failed", failures(rule));
+        }
+        metrics.put("epoch.signatures.checked", signaturesChecked.sum());
+        metrics.put("epoch.signatures.verified", signaturesVerified.sum());
+        metrics.put("epoch.signatures.verified.last", lastEpochSignaturesVerified);
+        metrics.put("epoch.pool.size", poolSize);
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = histogram(phase);
+            String name = "epoch.phase." + phase.name().toLowerCase();
+            metrics.put(name + ".count", histogram.count());
+            metrics.put(name + ".total", histogram.totalNanos());
+            metrics.put(name + ".max", histogram.maxNanos());
+            metrics.put(name + ".p50", histogram.quantile(0.5));
+            metrics.put(name + ".p99", histogram.quantile(0.99));
+        }
+        return metrics;
+    }
+
+    /** Latencies in nanoseconds, counted in one bucket per power of two */
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return total.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+
+        /** @return a bound of the {@code q} quantile of the latencies, at most twice too high */
+        public long quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long all = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                all += counts[i];
+            }
+            if (all == 0) return 0;
+            long rank = (long) Math.ceil(q * all);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(i == Long.SIZE - 2 ? Long.MAX_VALUE : (2L << i) - 1, maxNanos());
+            }
+            return maxNanos();
+        }
+    }
+}
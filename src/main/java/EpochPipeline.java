@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Handles epochs in stages, each on a thread of its own, so the work of an epoch that does not
+ * depend on the pool overlaps with the resolution of the epochs before it:
+ * <ol>
+ * <li>pack: the epoch is packed into a {@link TransactionBatch}, which makes the checks that do not
+ * depend on the pool, distinct inputs and non-negative outputs;</li>
+ * <li>signatures: the signatures of its inputs are verified into the {@link SignatureCache} of the
+ * handler, taking keys from a readable view of the pool and from the outputs of the epochs
+ * submitted since the view was taken;</li>
+ * <li>apply: the handler resolves the epoch over its pool and finds its signatures in the cache.</li>
+ * </ol>
+ * Stages are linked by queues of {@code depth} epochs, and {@link #submit} blocks once the first
+ * one is full. Epochs are applied one at a time in the order they were submitted and accept exactly
+ * what calling the handler directly would: verifying ahead only fills the cache with signatures
+ * valid under the key they were verified with, and the handler still checks every input against
+ * the key of the coin it spends. So the throughput approaches the one of the slowest stage instead
+ * of the sum of all, as long as the cache holds the signatures of the epochs in flight.
+ * <p>
+ * The view is the pool itself if it is concurrent, and a snapshot taken after every epoch if the
+ * pool takes one in O(1). Other pools are copied once as many transactions as the last copy held
+ * coins were submitted since, so the copies cost O(1) per transaction instead of a full copy per
+ * epoch; coins spent since the copy only let the stage verify signatures the handler rejects anyway.
+ * <p>
+ * The handler must not be used by anything else while the pipeline is open.
+ */
+public class EpochPipeline implements Closeable {
+
+    private static final Epoch END = new Epoch(null, 0);
+
+    private final Function<TransactionBatch, Transaction[]> handler;
+    private final UTXOPool unspentCoins;
+    private final SignatureCache signatureCache;
+    private final ForkJoinPool verificationPool;
+    private final BlockingQueue<Epoch> packing;
+    private final BlockingQueue<Epoch> verifying;
+    private final BlockingQueue<Epoch> applying;
+    private final List<Thread> stages = new ArrayList<>();
+    /** epochs verified ahead and not in the readable view yet, only touched by the signatures stage */
+    private final Deque<Epoch> inFlight = new ArrayDeque<>();
+    /** the transactions of {@link #inFlight} by hash, only touched by the signatures stage */
+    private final Map<ByteBuffer, Transaction> pending = new HashMap<>();
+
+    /** the readable view of the pool, as of the epoch it was taken after */
+    private volatile Applied applied;
+    /** transactions submitted since the view was taken, only touched by the apply stage */
+    private long sinceView;
+    private long submitted;
+    private boolean closed;
+
+    /** Creates a pipeline of {@code handler} whose stages hold up to {@code depth} epochs each */
+    public EpochPipeline(TxHandler handler, int depth) {
+        this(handler::handleTxs, handler.getUnspentCoins(), handler.getSignatureCache(), depth);
+    }
+
+    /** Creates a pipeline of {@code handler} whose stages hold up to {@code depth} epochs each */
+    public EpochPipeline(MaxFeeTxHandler handler, int depth) {
+        this(handler::handleTxs, handler.getUnspentCoins(), handler.getSignatureCache(), depth);
+    }
+
+    private EpochPipeline(Function<TransactionBatch, Transaction[]> handler, UTXOPool unspentCoins,
+                          SignatureCache signatureCache, int depth) {
+        if (depth < 1) throw new IllegalArgumentException("Depth must be positive: " + depth);
+        this.handler = handler;
+        this.unspentCoins = unspentCoins;
+        this.signatureCache = signatureCache;
+        this.verificationPool = ForkJoinPool.commonPool();
+        packing = new ArrayBlockingQueue<>(depth);
+        verifying = new ArrayBlockingQueue<>(depth);
+        applying = new ArrayBlockingQueue<>(depth);
+        applied = new Applied(0, readable(unspentCoins));
+        stages.add(stage("epoch-pack", packing, verifying, this::pack));
+        stages.add(stage("epoch-signatures", verifying, applying, this::verify));
+        stages.add(stage("epoch-apply", applying, null, this::apply));
+    }
+
+    /**
+     * Submits the next epoch, waiting while the pipeline is full.
+     *
+     * @return the transactions the epoch accepts, once it is applied
+     */
+    public synchronized CompletableFuture<Transaction[]> submit(Transaction[] possibleTxs) throws InterruptedException {
+        if (closed) throw new IllegalStateException("Pipeline closed");
+        Epoch epoch = new Epoch(possibleTxs, ++submitted);
+        packing.put(epoch);
+        return epoch.result;
+    }
+
+    private Thread stage(String name, BlockingQueue<Epoch> in, BlockingQueue<Epoch> out, Consumer<Epoch> work) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (Epoch epoch = in.take(); epoch != END; epoch = in.take()) {
+                    if (!epoch.result.isDone()) {
+                        try {
+                            work.accept(epoch);
+                        } catch (RuntimeException e) {
+                            epoch.result.completeExceptionally(e);
+                        }
+                    }
+                    if (out != null) out.put(epoch);
+                }
+                if (out != null) out.put(END);
+            } catch (InterruptedException ignored) {
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void pack(Epoch epoch) {
+        epoch.batch = TransactionBatch.of(epoch.possibleTxs);
+    }
+
+    /** Fills the cache with the signatures of {@code epoch}, failing to find a key only skips it */
+    private void verify(Epoch epoch) {
+        Applied last = applied;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().sequence <= last.sequence) {
+            for (Transaction tx : inFlight.pollFirst().possibleTxs) {
+                if (tx.getHash() == null) continue;
+                ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+                if (pending.get(hash) == tx) pending.remove(hash);
+            }
+        }
+        SignatureBatch.verify(epoch.possibleTxs, last.unspentCoins, pending, verificationPool, signatureCache);
+        for (Transaction tx : epoch.possibleTxs) {
+            if (tx.getHash() != null) pending.put(ByteBuffer.wrap(tx.getHash()), tx);
+        }
+        inFlight.addLast(epoch);
+    }
+
+    private void apply(Epoch epoch) {
+        try {
+            epoch.result.complete(handler.apply(epoch.batch));
+        } finally {
+            sinceView += epoch.possibleTxs.length;
+            if (unspentCoins.isConcurrent() || unspentCoins.hasCheapSnapshot() ||
+                    sinceView >= applied.unspentCoins.size()) {
+                applied = new Applied(epoch.sequence, readable(unspentCoins));
+                sinceView = 0;
+            }
+        }
+    }
+
+    /** @return a view of {@code pool} that the signatures stage may read while it is written */
+    private static UTXOPool readable(UTXOPool pool) {
+        return pool.isConcurrent() ? pool : pool.snapshot();
+    }
+
+    /** Applies the epochs already submitted, then stops the stages */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            packing.put(END);
+            for (Thread stage : stages) {
+                stage.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread stage : stages) {
+                stage.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Epoch {
+        final Transaction[] possibleTxs;
+        final long sequence;
+        final CompletableFuture<Transaction[]> result = new CompletableFuture<>();
+        TransactionBatch batch;
+
+        Epoch(Transaction[] possibleTxs, long sequence) {
+            this.possibleTxs = possibleTxs;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Applied {
+        final long sequence;
+        final UTXOPool unspentCoins;
+
+        Applied(long sequence, UTXOPool unspentCoins) {
+            this.sequence = sequence;
+            this.unspentCoins = unspentCoins;
+        }
+    }
+}
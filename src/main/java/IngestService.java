@@ -0,0 +1,244 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous front of a {@link Mempool} for callers on many threads, such as the requests of
+ * {@link LedgerController}. {@link #offer} only puts the transaction in a bounded queue and returns,
+ * or returns false at once when the queue is full, so callers get backpressure instead of waiting
+ * and the cost of a submission does not depend on the epochs being handled.
+ * <p>
+ * One thread of the service, the only one touching the mempool, takes the transactions from the
+ * queue and submits them, and seals an epoch once {@code maxEpochSize} transactions are ready or
+ * {@code maxEpochDelayMillis} have gone by since the previous one with some ready. After each epoch
+ * it publishes a {@link UTXOPool#snapshot} of the pool for {@link #getUnspentCoins}, so lookups
+ * never wait for it either. The state of the last {@value #TRACKED_TXS} transactions offered is
+ * kept for {@link #getState}, following the changes of status the mempool reports to its listener
+ * as well as the ones {@link Mempool#submit} returns. A transaction that fails to be submitted is
+ * logged and rejected, and the thread goes on with the next ones. An epoch that fails, for instance
+ * because the log of the pool could not be written, stops the service: the pool in memory may be
+ * ahead of its log, so nothing more is applied to it, every transaction still in flight is
+ * {@link State#FAILED} and further offers are refused.
+ */
+public class IngestService implements Closeable {
+
+    public enum State {
+        /** waiting in the queue */
+        QUEUED,
+        /** in the mempool, waiting for the next epoch */
+        READY,
+        /** in the mempool, waiting for the outputs it spends */
+        ORPHAN,
+        /** in the mempool, waiting for the transactions spending the same coins to be replaced */
+        CONFLICTED,
+        /** rejected by the mempool or by the epoch */
+        REJECTED,
+        /** accepted by an epoch */
+        ACCEPTED,
+        /** in flight when an epoch failed and the service stopped, whether it is in the pool is unknown */
+        FAILED
+    }
+
+    public static final int TRACKED_TXS = 1 << 16;
+
+    private static final Logger LOG = Logger.getLogger(IngestService.class.getName());
+
+    private final Mempool mempool;
+    private final int maxEpochSize;
+    private final long maxEpochDelayMillis;
+    private final BlockingQueue<Transaction> queue;
+    private final Map<ByteBuffer, State> states = new LinkedHashMap<ByteBuffer, State>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, State> eldest) {
+            return size() > TRACKED_TXS;
+        }
+    };
+    private final Thread worker;
+    /** transactions found ready since the last epoch, only touched by the worker */
+    private final Set<Transaction> ready = new HashSet<>();
+
+    private volatile UTXOPool unspentCoins;
+    private volatile long epochs;
+    private volatile boolean closed;
+    private volatile boolean failed;
+
+    public IngestService(Mempool mempool, int queueCapacity, int maxEpochSize, long maxEpochDelayMillis) {
+        this.mempool = mempool;
+        this.maxEpochSize = maxEpochSize;
+        this.maxEpochDelayMillis = maxEpochDelayMillis;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        unspentCoins = mempool.getHandler().getUnspentCoins().snapshot();
+        mempool.setListener(this::update);
+        worker = new Thread(this::run, "ingest");
+        worker.setDaemon(true);
+    }
+
+    /** Starts taking the transactions offered */
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * @return false if the queue is full or the service closed or failed, the transaction is not
+     *         taken then
+     */
+    public boolean offer(Transaction tx) {
+        if (closed || tx.getHash() == null) return false;
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        synchronized (states) {
+            // checked again under the lock, so that no transaction is queued once in flight ones failed
+            if (closed) return false;
+            // a transaction offered again while in the mempool is a duplicate and keeps its state
+            states.compute(hash, (h, state) -> state == State.READY || state == State.ORPHAN ? state : State.QUEUED);
+        }
+        if (queue.offer(tx)) return true;
+        synchronized (states) {
+            states.remove(hash, State.QUEUED);
+        }
+        return false;
+    }
+
+    /** @return the state of the transaction {@code txHash}, or null if it is not tracked */
+    public State getState(byte[] txHash) {
+        synchronized (states) {
+            return states.get(ByteBuffer.wrap(txHash));
+        }
+    }
+
+    /** @return the pool as of the last epoch, not to be changed */
+    public UTXOPool getUnspentCoins() {
+        return unspentCoins;
+    }
+
+    /** @return true if the service stopped because an epoch failed */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public long getEpochs() {
+        return epochs;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void setState(Transaction tx, State state) {
+        synchronized (states) {
+            states.put(ByteBuffer.wrap(tx.getHash()), state);
+        }
+    }
+
+    private void run() {
+        long deadline = System.currentTimeMillis() + maxEpochDelayMillis;
+        while (!closed) {
+            try {
+                Transaction tx = queue.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (tx != null) submitOrReject(tx);
+            } catch (InterruptedException e) {
+                if (closed) break;
+            }
+            long now = System.currentTimeMillis();
+            if (mempool.readyCount() >= maxEpochSize || now >= deadline && mempool.readyCount() > 0) {
+                sealEpochOrFail();
+                deadline = System.currentTimeMillis() + maxEpochDelayMillis;
+            } else if (now >= deadline) {
+                deadline = now + maxEpochDelayMillis;
+            }
+        }
+    }
+
+    private void submitOrReject(Transaction tx) {
+        try {
+            submit(tx);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to submit a transaction to the mempool", e);
+            ready.remove(tx);
+            setState(tx, State.REJECTED);
+        }
+    }
+
+    private void submit(Transaction tx) {
+        update(tx, mempool.submit(tx));
+    }
+
+    /** Tracks {@code tx}, now {@code status} in the mempool */
+    private void update(Transaction tx, Mempool.Status status) {
+        switch (status) {
+            case READY:
+                setState(tx, State.READY);
+                ready.add(tx);
+                return;
+            case ORPHAN:
+                setState(tx, State.ORPHAN);
+                break;
+            case CONFLICTED:
+                setState(tx, State.CONFLICTED);
+                break;
+            case REJECTED:
+                setState(tx, State.REJECTED);
+                break;
+            default:
+                return;
+        }
+        ready.remove(tx);
+    }
+
+    private void sealEpochOrFail() {
+        try {
+            sealEpoch();
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Failed to handle an epoch of " + ready.size() + " transactions, stopping", e);
+            fail();
+        }
+    }
+
+    /** Stops taking transactions, those queued or in the mempool are failed */
+    private void fail() {
+        failed = true;
+        synchronized (states) {
+            closed = true;
+            states.replaceAll((hash, state) -> state == State.ACCEPTED || state == State.REJECTED ? state : State.FAILED);
+        }
+        queue.clear();
+        ready.clear();
+    }
+
+    private void sealEpoch() {
+        // the mempool reports the transactions left out of the epoch, and the orphans it wakes
+        for (Transaction tx : mempool.sealEpoch()) {
+            setState(tx, State.ACCEPTED);
+            ready.remove(tx);
+        }
+        unspentCoins = mempool.getHandler().getUnspentCoins().snapshot();
+        epochs++;
+    }
+
+    /**
+     * Stops the service and waits for the epochs handled so far to be durable, transactions still
+     * queued are dropped
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mempool.getHandler().getUnspentCoins().sync();
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Failed to flush the unspent coins", e);
+        }
+    }
+}
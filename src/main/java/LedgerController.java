@@ -0,0 +1,105 @@
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * REST endpoints of the ledger, over an {@link IngestService}. Hashes are written in hex in paths
+ * and answers, transactions are posted in the binary format of {@link TransactionCodec}:
+ * <pre>
+ * POST /transactions                    202 with the hash, 400 if malformed, 429 if the queue is full,
+ *                                       503 if the service stopped after a failed epoch
+ * GET  /transactions/{hash}             the state of a transaction, 404 if it is not tracked
+ * GET  /utxos/{hash}/{index}            the value and X.509 address of a coin as of the last epoch
+ * </pre>
+ */
+@RestController
+public class LedgerController {
+
+    private final IngestService ingest;
+
+    public LedgerController(IngestService ingest) {
+        this.ingest = ingest;
+    }
+
+    @PostMapping(value = "/transactions", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Map<String, Object>> submit(@RequestBody byte[] body) {
+        Transaction tx;
+        try {
+            tx = TransactionCodec.decode(body);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(error(e.getMessage()));
+        }
+        if (tx.getHash() == null) return ResponseEntity.badRequest().body(error("Transaction without hash"));
+        if (!ingest.offer(tx)) {
+            if (ingest.isFailed()) return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error("Stopped after a failed epoch"));
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(error("Queue full"));
+        }
+
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("hash", hex(tx.getHash()));
+        answer.put("state", IngestService.State.QUEUED);
+        return ResponseEntity.accepted().body(answer);
+    }
+
+    @GetMapping("/transactions/{hash}")
+    public ResponseEntity<Map<String, Object>> state(@PathVariable String hash) {
+        byte[] txHash = unhex(hash);
+        if (txHash == null) return ResponseEntity.badRequest().body(error("Malformed hash"));
+        IngestService.State state = ingest.getState(txHash);
+        if (state == null) return ResponseEntity.notFound().build();
+
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("hash", hash);
+        answer.put("state", state);
+        return ResponseEntity.ok(answer);
+    }
+
+    @GetMapping("/utxos/{hash}/{index}")
+    public ResponseEntity<Map<String, Object>> utxo(@PathVariable String hash, @PathVariable int index) {
+        byte[] txHash = unhex(hash);
+        if (txHash == null) return ResponseEntity.badRequest().body(error("Malformed hash"));
+        UTXOPool pool = ingest.getUnspentCoins();
+        if (!pool.contains(txHash, index)) return ResponseEntity.notFound().build();
+
+        Transaction.Output output = pool.getTxOutput(txHash, index);
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("hash", hash);
+        answer.put("index", index);
+        answer.put("value", output == null ? null : output.value);
+        answer.put("address", output == null || output.address == null ? null
+                : Base64.getEncoder().encodeToString(output.address.getEncoded()));
+        return ResponseEntity.ok(answer);
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("error", message);
+        return answer;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /** @return the bytes written in hex in {@code hex}, or null if it is not hex */
+    static byte[] unhex(String hex) {
+        if (hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
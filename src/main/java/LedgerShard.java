@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * One partition of a {@link ShardedLedger}: the coins whose transaction hash falls in this shard,
+ * see {@link ShardedLedger#shardOf}, with a {@link TxHandler} of its own over them. A shard is an
+ * engine the ledger only talks to through the methods below, passing transactions, UTXOs and
+ * outputs by value and holding no reference into it, so it could as well run in another process.
+ * <p>
+ * Transactions whose inputs are all here are handled by {@link #handleTxs}; the outputs they create
+ * that belong to other shards leave this one and are returned to be {@link #credit credited} there.
+ * Transactions spending coins of several shards are coordinated by the ledger with a two phase
+ * protocol: {@link #prepare} locks the coins a transaction spends here and returns their outputs,
+ * then {@link #commit} spends them or {@link #abort} releases them. A locked coin cannot be prepared
+ * again until then. All methods are synchronized on the shard.
+ */
+public class LedgerShard {
+
+    public enum Status {
+        /** the coins are locked for the transaction */
+        PREPARED,
+        /** a coin is not in the shard */
+        MISSING,
+        /** a coin is locked by another transaction being prepared */
+        LOCKED
+    }
+
+    /** Answer of a shard to {@link #prepare} */
+    public static final class Vote {
+        public final Status status;
+        /** outputs of the coins in the order they were asked for, if they were prepared */
+        public final Transaction.Output[] outputs;
+
+        Vote(Status status, Transaction.Output[] outputs) {
+            this.status = status;
+            this.outputs = outputs;
+        }
+    }
+
+    /** Outcome of a local epoch of a shard */
+    public static final class Result {
+        public final Transaction[] accepted;
+        /** coins created by the accepted transactions that belong to other shards */
+        public final Map<UTXO, Transaction.Output> leaving;
+
+        Result(Transaction[] accepted, Map<UTXO, Transaction.Output> leaving) {
+            this.accepted = accepted;
+            this.leaving = leaving;
+        }
+    }
+
+    private final int id;
+    private final int shards;
+    private final TxHandler handler;
+    /** coins locked by prepared transactions, by transaction id */
+    private final Map<Long, List<UTXO>> prepared = new HashMap<>();
+    private final Set<UTXO> locked = new HashSet<>();
+
+    /** Creates shard {@code id} of {@code shards}, holding the coins of {@code utxoPool} */
+    public LedgerShard(int id, int shards, UTXOPool utxoPool, ForkJoinPool verificationPool) {
+        this.id = id;
+        this.shards = shards;
+        handler = new TxHandler(utxoPool, verificationPool);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** @return the pool of the shard, only to be read while the shard is not handling anything */
+    public UTXOPool getUnspentCoins() {
+        return handler.getUnspentCoins();
+    }
+
+    /**
+     * Handles {@code txs}, whose inputs should all be in this shard, like
+     * {@link TxHandler#handleTxs(Transaction[])}. Must not be called while transactions are prepared.
+     */
+    public synchronized Result handleTxs(Transaction[] txs) {
+        if (!prepared.isEmpty()) throw new IllegalStateException("Shard " + id + " has prepared transactions");
+        Transaction[] accepted = handler.handleTxs(txs);
+        UTXOPool pool = handler.getUnspentCoins();
+        Map<UTXO, Transaction.Output> leaving = new HashMap<>();
+        for (Transaction tx : accepted) {
+            if (ShardedLedger.shardOf(tx.getHash(), shards) == id) continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                leaving.put(utxo, pool.getTxOutput(utxo));
+                pool.removeUTXO(utxo);
+            }
+        }
+        return new Result(accepted, leaving);
+    }
+
+    /** Adds {@code coins}, created by transactions handled elsewhere, to this shard */
+    public synchronized void credit(Map<UTXO, Transaction.Output> coins) {
+        UTXOPool pool = handler.getUnspentCoins();
+        coins.forEach(pool::addUTXO);
+    }
+
+    /**
+     * First phase of transaction {@code txId}: locks {@code utxos} if they are all in the shard and
+     * none is locked, or changes nothing otherwise.
+     */
+    public synchronized Vote prepare(long txId, List<UTXO> utxos) {
+        UTXOPool pool = handler.getUnspentCoins();
+        Transaction.Output[] outputs = new Transaction.Output[utxos.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            UTXO utxo = utxos.get(i);
+            if (locked.contains(utxo)) return new Vote(Status.LOCKED, null);
+            if (!pool.contains(utxo)) return new Vote(Status.MISSING, null);
+            outputs[i] = pool.getTxOutput(utxo);
+        }
+        List<UTXO> coins = new ArrayList<>(utxos);
+        if (prepared.putIfAbsent(txId, coins) != null) {
+            throw new IllegalStateException("Transaction " + txId + " is already prepared in shard " + id);
+        }
+        locked.addAll(coins);
+        return new Vote(Status.PREPARED, outputs);
+    }
+
+    /** Second phase of transaction {@code txId}: spends the coins it locked */
+    public synchronized void commit(long txId) {
+        UTXOPool pool = handler.getUnspentCoins();
+        for (UTXO utxo : release(txId)) {
+            pool.removeUTXO(utxo);
+        }
+    }
+
+    /** Second phase of transaction {@code txId}: releases the coins it locked, spending none */
+    public synchronized void abort(long txId) {
+        release(txId);
+    }
+
+    private List<UTXO> release(long txId) {
+        List<UTXO> coins = prepared.remove(txId);
+        if (coins == null) throw new IllegalStateException("Transaction " + txId + " is not prepared in shard " + id);
+        locked.removeAll(coins);
+        return coins;
+    }
+
+    /** Ends an epoch of the shard, see {@link UTXOPool#commit} */
+    public synchronized void endEpoch() {
+        handler.getUnspentCoins().commit();
+    }
+}
@@ -0,0 +1,470 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+
+/**
+ * Finds a mutually valid set of transactions of an epoch with the highest total fee.
+ * <p>
+ * Transactions that cannot be valid whatever else is accepted (bad signature, unknown or repeated
+ * inputs, negative outputs, outputs above inputs, or an invalid parent) are dropped first. The
+ * rest form a graph whose edges are double spends of the same coin and parent to child links;
+ * every connected component is solved on its own, in parallel on a ForkJoinPool. Within a
+ * component, transactions are decided in topological order by a branch and bound search:
+ * including a transaction rules out the other spenders of its coins and their descendants,
+ * excluding it rules out its descendants, and a branch is pruned once the fee collected so far
+ * plus a bound on the fees still possible cannot beat the best set found. The bound counts every
+ * undecided transaction nobody competes with, but only the highest fee of the undecided spenders
+ * of each contested coin, each spender being counted under one of its contested coins. Transactions
+ * nobody competes with are always included, so only double spends are branched on.
+ * <p>
+ * Of several sets with the same total fee the first one found is kept. A contested transaction is
+ * first left out if a rival pays a higher fee of its own, so ties go the way the greedy choice of
+ * the highest fee spender would.
+ * <p>
+ * The search is exponential in the worst case. A component whose search visits more than
+ * {@code maxNodes} nodes keeps the best set found by then, which is never worse than the greedy
+ * choice as the search descends that way first. A component with more than {@code maxContested}
+ * contested transactions is not searched, it gets the greedy choice only. Other components are
+ * solved exactly whatever happens to those.
+ */
+public class MaxFeeSolver {
+
+    public static final int DEFAULT_MAX_CONTESTED = 1024;
+    public static final long DEFAULT_MAX_NODES = 1L << 20;
+
+    private static final byte UNDECIDED = 0;
+    private static final byte IN = 1;
+    private static final byte OUT = 2;
+
+    private final ForkJoinPool executor;
+    private final int maxContested;
+    private final long maxNodes;
+
+    public MaxFeeSolver(ForkJoinPool executor) {
+        this(executor, DEFAULT_MAX_CONTESTED, DEFAULT_MAX_NODES);
+    }
+
+    public MaxFeeSolver(ForkJoinPool executor, int maxContested, long maxNodes) {
+        this.executor = executor;
+        this.maxContested = maxContested;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * @return the transactions of {@code possibleTxs} to accept over {@code pool}, ordered so that
+     *         parents come before their children. {@code signaturesValid} tells whether all input
+     *         signatures of a transaction are valid
+     */
+    public List<Transaction> solve(Transaction[] possibleTxs, UTXOPool pool, Predicate<Transaction> signaturesValid) {
+        return solve(TransactionBatch.of(possibleTxs), pool, signaturesValid, EpochMetrics.disabled());
+    }
+
+    /**
+     * @return the transactions of {@code epoch} to accept like {@link #solve(Transaction[], UTXOPool,
+     *         Predicate)}; the checks of outputs and of repeated inputs are read from the columns of
+     *         the batch. The building of the graph and the search are timed in {@code metrics}, and
+     *         each distinct transaction is counted as failing the first {@link EpochMetrics.Rule} it
+     *         breaks, in the order of {@code isValidTx}, or as passing them all. A transaction
+     *         spending an output of one that fails misses an input in the pool. Spenders of the same
+     *         coin all pass, though at most one is accepted
+     */
+    public List<Transaction> solve(TransactionBatch epoch, UTXOPool pool, Predicate<Transaction> signaturesValid,
+                                   EpochMetrics metrics) {
+        long phase = metrics.start();
+        Graph graph = new Graph(epoch, pool, signaturesValid, metrics);
+        metrics.stop(EpochMetrics.Phase.GRAPH, phase);
+
+        phase = metrics.start();
+
+        List<int[]> components = graph.components();
+        List<ForkJoinTask<boolean[]>> searches = new ArrayList<>();
+        boolean[] accepted = new boolean[graph.size];
+        for (int[] component : components) {
+            if (component.length == 1 || !graph.hasConflicts(component)) {
+                for (int node : component) accepted[node] = true;
+            } else {
+                searches.add(executor.submit(() -> new Search(graph, component).run()));
+            }
+        }
+        for (int i = 0, c = 0; i < components.size(); i++) {
+            int[] component = components.get(i);
+            if (component.length == 1 || !graph.hasConflicts(component)) continue;
+            boolean[] best = searches.get(c++).join();
+            for (int j = 0; j < component.length; j++) {
+                accepted[component[j]] = best[j];
+            }
+        }
+
+        List<Transaction> result = new ArrayList<>();
+        for (int node : graph.order) {
+            if (accepted[node]) result.add(graph.txs[node]);
+        }
+        metrics.stop(EpochMetrics.Phase.SOLVE, phase);
+        return result;
+    }
+
+    /** Transactions that may be valid, with their fees, the coins they spend and their parents */
+    private static class Graph {
+        final int size;
+        final Transaction[] txs;
+        final double[] fees;
+        /** ids of the coins spent by each transaction */
+        final int[][] spends;
+        /** transactions spending each coin */
+        final List<List<Integer>> spenders = new ArrayList<>();
+        final List<List<Integer>> parents = new ArrayList<>();
+        final List<List<Integer>> children = new ArrayList<>();
+        /** all transactions, parents before children and otherwise in proposal order */
+        final int[] order;
+
+        Graph(TransactionBatch epoch, UTXOPool pool, Predicate<Transaction> signaturesValid, EpochMetrics metrics) {
+            Map<ByteBuffer, Integer> byHash = new HashMap<>();
+            List<Transaction> unique = new ArrayList<>();
+            // position in the batch of each unique transaction
+            int[] position = new int[epoch.size()];
+            for (int p = 0; p < epoch.size(); p++) {
+                Transaction tx = epoch.transaction(p);
+                if (tx.getHash() != null && byHash.putIfAbsent(ByteBuffer.wrap(tx.getHash()), unique.size()) == null) {
+                    position[unique.size()] = p;
+                    unique.add(tx);
+                }
+            }
+            int n = unique.size();
+            // the rule each transaction fails, null if it may be valid
+            EpochMetrics.Rule[] failed = new EpochMetrics.Rule[n];
+            double[] fee = new double[n];
+            int[][] spent = new int[n][];
+            CoinIds coinIds = new CoinIds(epoch.size());
+            List<Set<Integer>> parentSets = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                Transaction tx = unique.get(i);
+                Set<Integer> txParents = new LinkedHashSet<>();
+                parentSets.add(txParents);
+                int p = position[i];
+                spent[i] = new int[tx.numInputs()];
+                double sumInput = 0;
+                for (int j = 0; j < tx.numInputs(); j++) {
+                    Transaction.Input input = tx.getInput(j);
+                    if (input.prevTxHash == null) {
+                        failed[i] = EpochMetrics.Rule.INPUTS_IN_POOL;
+                        break;
+                    }
+                    Transaction.Output output = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+                    if (output != null) {
+                        sumInput += output.value;
+                    } else {
+                        Integer parent = byHash.get(ByteBuffer.wrap(input.prevTxHash));
+                        if (parent == null || input.outputIndex < 0 || input.outputIndex >= epoch.numOutputs(position[parent])) {
+                            failed[i] = EpochMetrics.Rule.INPUTS_IN_POOL;
+                            break;
+                        }
+                        sumInput += epoch.outputValue(position[parent], input.outputIndex);
+                        txParents.add(parent);
+                    }
+                    spent[i][j] = coinIds.add(input.prevTxHash, input.outputIndex);
+                }
+                fee[i] = sumInput - epoch.outputSum(p);
+                if (failed[i] != null) continue;
+                if (!signaturesValid.test(tx)) failed[i] = EpochMetrics.Rule.SIGNATURES;
+                else if (!epoch.hasDistinctInputs(p)) failed[i] = EpochMetrics.Rule.DISTINCT_INPUTS;
+                else if (!epoch.hasNonNegativeOutputs(p)) failed[i] = EpochMetrics.Rule.NON_NEGATIVE_OUTPUTS;
+                else if (fee[i] < 0) failed[i] = EpochMetrics.Rule.INPUTS_COVER_OUTPUTS;
+            }
+
+            // parents first; children of invalid transactions and cycles of hashes never get valid
+            int[] waiting = new int[n];
+            List<List<Integer>> allChildren = new ArrayList<>();
+            for (int i = 0; i < n; i++) allChildren.add(new ArrayList<>());
+            for (int i = 0; i < n; i++) {
+                waiting[i] = parentSets.get(i).size();
+                for (int parent : parentSets.get(i)) allChildren.get(parent).add(i);
+            }
+            PriorityQueue<Integer> ready = new PriorityQueue<>();
+            for (int i = 0; i < n; i++) {
+                if (waiting[i] == 0) ready.add(i);
+            }
+            int[] id = new int[n];
+            Arrays.fill(id, -1);
+            List<Integer> sorted = new ArrayList<>();
+            while (!ready.isEmpty()) {
+                int i = ready.poll();
+                if (failed[i] != null) continue;
+                id[i] = sorted.size();
+                sorted.add(i);
+                for (int child : allChildren.get(i)) {
+                    if (--waiting[child] == 0) ready.add(child);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (failed[i] != null) metrics.fail(failed[i]);
+                else if (id[i] < 0) metrics.fail(EpochMetrics.Rule.INPUTS_IN_POOL);
+                else metrics.pass();
+            }
+
+            size = sorted.size();
+            txs = new Transaction[size];
+            fees = new double[size];
+            spends = new int[size][];
+            order = new int[size];
+            for (int c = 0; c < coinIds.size(); c++) spenders.add(new ArrayList<>());
+            for (int node = 0; node < size; node++) {
+                int i = sorted.get(node);
+                txs[node] = unique.get(i);
+                fees[node] = fee[i];
+                spends[node] = spent[i];
+                order[node] = node;
+                for (int coin : spent[i]) spenders.get(coin).add(node);
+                List<Integer> nodeParents = new ArrayList<>();
+                for (int parent : parentSets.get(i)) nodeParents.add(id[parent]);
+                parents.add(nodeParents);
+                children.add(new ArrayList<>());
+            }
+            for (int node = 0; node < size; node++) {
+                for (int parent : parents.get(node)) children.get(parent).add(node);
+            }
+        }
+
+        /** @return the connected components over conflicts and parent links, each in topological order */
+        List<int[]> components() {
+            int[] root = new int[size];
+            for (int i = 0; i < size; i++) root[i] = i;
+            for (List<Integer> coinSpenders : spenders) {
+                for (int i = 1; i < coinSpenders.size(); i++) union(root, coinSpenders.get(0), coinSpenders.get(i));
+            }
+            for (int node = 0; node < size; node++) {
+                for (int parent : parents.get(node)) union(root, node, parent);
+            }
+            Map<Integer, List<Integer>> byRoot = new LinkedHashMap<>();
+            for (int node : order) {
+                byRoot.computeIfAbsent(find(root, node), r -> new ArrayList<>()).add(node);
+            }
+            List<int[]> components = new ArrayList<>(byRoot.size());
+            for (List<Integer> nodes : byRoot.values()) {
+                components.add(nodes.stream().mapToInt(Integer::intValue).toArray());
+            }
+            return components;
+        }
+
+        boolean hasConflicts(int[] component) {
+            for (int node : component) {
+                if (isContested(node)) return true;
+            }
+            return false;
+        }
+
+        boolean isContested(int node) {
+            for (int coin : spends[node]) {
+                if (spenders.get(coin).size() > 1) return true;
+            }
+            return false;
+        }
+
+        private static int find(int[] root, int i) {
+            while (root[i] != i) {
+                root[i] = root[root[i]];
+                i = root[i];
+            }
+            return i;
+        }
+
+        private static void union(int[] root, int a, int b) {
+            root[find(root, a)] = find(root, b);
+        }
+    }
+
+    /** Branch and bound over the transactions of one component, indexed by their position in it */
+    private class Search {
+        private final int n;
+        private final double[] fee;
+        private final int[][] children;
+        /** for each transaction, the other transactions spending one of its coins */
+        private final int[][] rivals;
+        private final boolean[] contested;
+        /** for each transaction, the contested coin it is bounded under, or -1 if it is not contested */
+        private final int[] group;
+        /** per group, the highest undecided fee while computing a bound, valid if stamped */
+        private final double[] groupBest;
+        private final long[] groupStamp;
+        private long stamp;
+
+        private final byte[] state;
+        private final int[] trail;
+        private int trailSize;
+        private final int[] stack;
+        private double value;
+        private double optimistic;
+
+        private boolean[] best;
+        private double bestValue = -1;
+        private long visited;
+        private boolean aborted;
+        /** whether the search stops at its first leaf, the greedy choice */
+        private boolean greedy;
+
+        Search(Graph graph, int[] component) {
+            n = component.length;
+            Map<Integer, Integer> local = new HashMap<>();
+            for (int i = 0; i < n; i++) local.put(component[i], i);
+            fee = new double[n];
+            children = new int[n][];
+            rivals = new int[n][];
+            contested = new boolean[n];
+            group = new int[n];
+            Map<Integer, Integer> groups = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                int node = component[i];
+                fee[i] = graph.fees[node];
+                optimistic += fee[i];
+                children[i] = graph.children.get(node).stream().mapToInt(local::get).toArray();
+                Set<Integer> nodeRivals = new LinkedHashSet<>();
+                for (int coin : graph.spends[node]) {
+                    for (int spender : graph.spenders.get(coin)) {
+                        if (spender != node) nodeRivals.add(local.get(spender));
+                    }
+                }
+                rivals[i] = nodeRivals.stream().mapToInt(Integer::intValue).toArray();
+                contested[i] = rivals[i].length > 0;
+                group[i] = -1;
+                for (int coin : graph.spends[node]) {
+                    if (graph.spenders.get(coin).size() > 1) {
+                        group[i] = groups.computeIfAbsent(coin, c -> groups.size());
+                        break;
+                    }
+                }
+            }
+            groupBest = new double[groups.size()];
+            groupStamp = new long[groups.size()];
+            state = new byte[n];
+            trail = new int[n];
+            stack = new int[n];
+        }
+
+        boolean[] run() {
+            int contestedCount = 0;
+            for (boolean c : contested) {
+                if (c) contestedCount++;
+            }
+            if (contestedCount <= maxContested) search(0);
+            if (best != null) return best;
+            greedy = true;
+            aborted = false;
+            search(0);
+            return best;
+        }
+
+        private void search(int from) {
+            if (!greedy && ++visited > maxNodes) {
+                aborted = true;
+                return;
+            }
+            int mark = trailSize;
+            int i = from;
+            // nobody competes with an undecided transaction whose rivals are all decided: take it
+            while (i < n && (state[i] != UNDECIDED || !hasUndecidedRival(i))) {
+                if (state[i] == UNDECIDED) include(i);
+                i++;
+            }
+            if (i == n) {
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = new boolean[n];
+                    for (int j = 0; j < n; j++) best[j] = state[j] == IN;
+                }
+                aborted |= greedy;
+            } else if (value + optimistic > bestValue && value + bound(i) > bestValue) {
+                boolean includeFirst = !hasRicherUndecidedRival(i);
+                for (int branch = 0; branch < 2 && !aborted; branch++) {
+                    int before = trailSize;
+                    if (includeFirst == (branch == 0)) {
+                        include(i);
+                        search(i + 1);
+                    } else if (value + optimistic - fee[i] > bestValue) {
+                        exclude(i);
+                        search(i + 1);
+                    }
+                    undo(before);
+                }
+            }
+            undo(mark);
+        }
+
+        /**
+         * @return the most the undecided transactions, all from {@code from} on, can add: of the
+         *         spenders of a contested coin at most one is accepted
+         */
+        private double bound(int from) {
+            stamp++;
+            double bound = 0;
+            for (int j = from; j < n; j++) {
+                if (state[j] != UNDECIDED) continue;
+                int g = group[j];
+                if (g < 0) {
+                    bound += fee[j];
+                } else if (groupStamp[g] != stamp) {
+                    groupStamp[g] = stamp;
+                    groupBest[g] = fee[j];
+                    bound += fee[j];
+                } else if (fee[j] > groupBest[g]) {
+                    bound += fee[j] - groupBest[g];
+                    groupBest[g] = fee[j];
+                }
+            }
+            return bound;
+        }
+
+        private boolean hasUndecidedRival(int i) {
+            for (int rival : rivals[i]) {
+                if (state[rival] == UNDECIDED) return true;
+            }
+            return false;
+        }
+
+        private boolean hasRicherUndecidedRival(int i) {
+            for (int rival : rivals[i]) {
+                if (state[rival] == UNDECIDED && fee[rival] > fee[i]) return true;
+            }
+            return false;
+        }
+
+        private void include(int i) {
+            state[i] = IN;
+            trail[trailSize++] = i;
+            value += fee[i];
+            optimistic -= fee[i];
+            for (int rival : rivals[i]) {
+                if (state[rival] == UNDECIDED) exclude(rival);
+            }
+        }
+
+        /** Rules out {@code i} and all of its undecided descendants */
+        private void exclude(int i) {
+            int top = 0;
+            state[i] = OUT;
+            trail[trailSize++] = i;
+            optimistic -= fee[i];
+            stack[top++] = i;
+            while (top > 0) {
+                int node = stack[--top];
+                for (int child : children[node]) {
+                    if (state[child] == UNDECIDED) {
+                        state[child] = OUT;
+                        trail[trailSize++] = child;
+                        optimistic -= fee[child];
+                        stack[top++] = child;
+                    }
+                }
+            }
+        }
+
+        private void undo(int mark) {
+            while (trailSize > mark) {
+                int i = trail[--trailSize];
+                if (state[i] == IN) value -= fee[i];
+                optimistic += fee[i];
+                state[i] = UNDECIDED;
+            }
+        }
+    }
+}
@@ -1,11 +1,17 @@
 import java.security.PublicKey;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
 
 public class MaxFeeTxHandler {
 
     private UTXOPool unspentCoins;
     protected TransactionVerificator verificator;
+    private final ForkJoinPool verificationPool;
+    private final SignatureCache signatureCache;
+    private EpochMetrics metrics = EpochMetrics.disabled();
+    private final MaxFeeSolver solver;
+    /** signatures of the epoch being handled, verified up front; null outside of handleTxs */
+    private SignatureBatch signatures;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,14 +19,62 @@ public class MaxFeeTxHandler {
      * constructor.
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
-        unspentCoins = new UTXOPool(utxoPool);
+        this(utxoPool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool)} whose epochs verify their
+     * signatures and search for the best set of transactions on {@code verificationPool}.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool) {
+        this(utxoPool, verificationPool, new SignatureCache(SignatureCache.DEFAULT_CAPACITY_BYTES));
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool, ForkJoinPool)} that remembers
+     * valid signatures across epochs in {@code signatureCache}, which may be shared with other
+     * handlers.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool, SignatureCache signatureCache) {
+        this(utxoPool, verificationPool, signatureCache, false);
+    }
+
+    private MaxFeeTxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool, SignatureCache signatureCache, boolean adopt) {
+        unspentCoins = adopt ? utxoPool : new UTXOPool(utxoPool);
         verificator = new TransactionVerificator();
+        this.verificationPool = verificationPool;
+        this.signatureCache = signatureCache;
+        this.solver = new MaxFeeSolver(verificationPool);
+    }
+
+    /**
+     * @return a public ledger like {@link #MaxFeeTxHandler(UTXOPool)} that keeps using {@code utxoPool}
+     *         instead of a copy, so its epochs are committed to the store of the pool, such as a
+     *         {@link DurableUTXOStore} that cannot be copied; the caller must not change the pool
+     *         afterwards
+     */
+    public static MaxFeeTxHandler adopting(UTXOPool utxoPool) {
+        return new MaxFeeTxHandler(utxoPool, ForkJoinPool.commonPool(),
+                new SignatureCache(SignatureCache.DEFAULT_CAPACITY_BYTES), true);
     }
 
     public UTXOPool getUnspentCoins() {
         return unspentCoins;
     }
 
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    public EpochMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Records the phases and checks of the epochs in {@code metrics}, which may be shared */
+    public void setMetrics(EpochMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -31,67 +85,94 @@ public class MaxFeeTxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        return verificator.allTxInputsInPool(tx) &&
-                verificator.allTxSignsCorrect(tx) &&
-                verificator.allTxInputsDifferent(tx) &&
-                verificator.allOutputsAreNonNegative(tx) &&
-                verificator.inputsGreaterOrEqualOutputs(tx);
+        if (!verificator.allTxInputsInPool(tx)) return metrics.fail(EpochMetrics.Rule.INPUTS_IN_POOL);
+        if (!verificator.allTxSignsCorrect(tx)) return metrics.fail(EpochMetrics.Rule.SIGNATURES);
+        if (!verificator.allTxInputsDifferent(tx)) return metrics.fail(EpochMetrics.Rule.DISTINCT_INPUTS);
+        if (!verificator.allOutputsAreNonNegative(tx)) return metrics.fail(EpochMetrics.Rule.NON_NEGATIVE_OUTPUTS);
+        if (!verificator.inputsGreaterOrEqualOutputs(tx)) return metrics.fail(EpochMetrics.Rule.INPUTS_COVER_OUTPUTS);
+        return metrics.pass();
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. The accepted set has the highest total fee
+     * that can be found by {@link MaxFeeSolver}; epochs too hard to solve exactly are resolved
+     * greedily, taking the valid spender with the highest fee for each coin. The pool is committed
+     * once the epoch is resolved, see {@link UTXOPool#commit}.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        Set<Transaction> performedTxs = new HashSet<>();
-        Set<CoinNode> initialCoins = unspentCoins.getAllUTXO().stream().map(CoinNode::new).collect(Collectors.toSet());
-
-        HashMap<Transaction, TxNode> txs = new HashMap<>();
-        recursiveFillTxTree(initialCoins, possibleTxs, txs);
-
-        initialCoins.forEach(c -> c.execute(performedTxs));
-        return performedTxs.toArray(new Transaction[0]);
-    }
-
-    private void recursiveFillTxTree(Set<CoinNode> coinNodes, Transaction[] possibleTxs, HashMap<Transaction, TxNode> txs) {
-        Set<CoinNode> newCoins = new HashSet<>();
-        coinNodes.forEach(coinNode -> {
-            Arrays.stream(possibleTxs).forEach(tx -> {
-                tx.getInputs().forEach(input -> {
-                    if (coinNode.utxo.equals(verificator.getUtxo(input))) {
-                        TxNode txNode;
-                        if (txs.get(tx) != null) {
-                            txNode = txs.get(tx);
-                        } else {
-                            txNode = new TxNode(tx);
-                            txs.put(tx, txNode);
-                        }
-                        coinNode.txs.add(txNode);
-                        newCoins.addAll(txNode.coins);
-                    }
-                });
-            });
-        });
-
-        if (!newCoins.isEmpty()) {
-            recursiveFillTxTree(newCoins, possibleTxs, txs);
+        long start = metrics.start();
+        TransactionBatch epoch = TransactionBatch.of(possibleTxs);
+        metrics.stop(EpochMetrics.Phase.PACK, start);
+        return handleTxs(epoch);
+    }
+
+    /**
+     * Handles the epoch of {@code epoch} like {@link #handleTxs(Transaction[])}. The solver reads
+     * the checks that do not depend on the pool, the sums and signs of the outputs and whether the
+     * inputs are distinct, from the columns of the batch while it builds its graph.
+     */
+    public Transaction[] handleTxs(TransactionBatch epoch) {
+        long start = metrics.start();
+        long misses = metrics.isEnabled() ? signatureCache.misses() : 0;
+        Transaction[] possibleTxs = epoch.transactions();
+        long phase = metrics.start();
+        signatures = SignatureBatch.verify(possibleTxs, unspentCoins, verificationPool, signatureCache);
+        metrics.stop(EpochMetrics.Phase.SIGNATURES, phase);
+        try {
+            Transaction[] accepted = resolveEpoch(epoch);
+            commit(start, possibleTxs, accepted, misses);
+            return accepted;
+        } finally {
+            signatures = null;
         }
     }
 
-    public double getWeightOfTx(MaxFeeTxHandler.TxNode txNode) {
-        Double sumInput = txNode.tx.getInputs().stream().mapToDouble(
-                input -> verificator.getCorrespondingOutput(input).value).sum();
-        Double sumOutput = txNode.tx.getOutputs().stream().mapToDouble(output -> output.value).sum();
-        return sumInput - sumOutput;
+    /**
+     * Commits the pool once the epoch begun at {@code start} is resolved and records it; the
+     * signatures verified are the misses of the cache since {@code misses}.
+     */
+    private void commit(long start, Transaction[] possibleTxs, Transaction[] accepted, long misses) {
+        long phase = metrics.start();
+        unspentCoins.commit();
+        metrics.stop(EpochMetrics.Phase.COMMIT, phase);
+        metrics.stop(EpochMetrics.Phase.EPOCH, start);
+        if (!metrics.isEnabled()) return;
+        long inputs = 0;
+        for (Transaction tx : possibleTxs) {
+            inputs += tx.numInputs();
+        }
+        metrics.epoch(possibleTxs.length, accepted.length, inputs, signatureCache.misses() - misses, unspentCoins.size());
+    }
+
+    private Transaction[] resolveEpoch(TransactionBatch epoch) {
+        List<Transaction> accepted = solver.solve(epoch, unspentCoins, signatures::allValid, metrics);
+        long phase = metrics.start();
+        for (Transaction tx : accepted) {
+            applyTx(tx);
+        }
+        metrics.stop(EpochMetrics.Phase.RESOLVE, phase);
+        return accepted.toArray(new Transaction[0]);
+    }
+
+    private void applyTx(Transaction tx) {
+        long start = metrics.start();
+        for (Transaction.Input in : tx.getInputs()) {
+            unspentCoins.removeUTXO(verificator.getUtxo(in));
+        }
+        UTXO[] created = UTXO.ofOutputs(tx.getHash(), tx.numOutputs());
+        for (int i = 0; i < created.length; i++) {
+            unspentCoins.addUTXO(created[i], tx.getOutput(i));
+        }
+        metrics.stop(EpochMetrics.Phase.POOL_UPDATE, start);
     }
 
     protected class TransactionVerificator {
         private boolean allTxInputsInPool(Transaction tx) {
             for (int i = 0; i < tx.getInputs().size(); i++) {
                 Transaction.Input input = tx.getInputs().get(i);
-                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                if (!unspentCoins.contains(utxo)) return false;
+                if (!unspentCoins.contains(input.prevTxHash, input.outputIndex)) return false;
             }
             return true;
         }
@@ -102,19 +183,19 @@ public class MaxFeeTxHandler {
                 Transaction.Output output = getCorrespondingOutput(input);
                 if (output == null) return false;
 
+                if (signatures != null && signatures.contains(tx)) {
+                    if (!signatures.isValid(tx, i)) return false;
+                    continue;
+                }
                 PublicKey publicKey = output.address;
-                if (!Crypto.verifySignature(publicKey, tx.getRawDataToSign(i), input.signature)) return false;
+                if (!signatureCache.verify(tx.getHash(), i, publicKey, tx.getRawDataToSign(i), input.signature))
+                    return false;
             }
             return true;
         }
 
         private boolean allTxInputsDifferent(Transaction tx) {
-            Set<UTXO> txInputs = new HashSet<>();
-            for (int i = 0; i < tx.getInputs().size(); i++) {
-                Transaction.Input input = tx.getInputs().get(i);
-                txInputs.add(getUtxo(input));
-            }
-            return txInputs.size() == tx.getInputs().size();
+            return TransactionBatch.inputsDistinct(tx);
         }
 
         private boolean allOutputsAreNonNegative(Transaction tx) {
@@ -122,65 +203,27 @@ public class MaxFeeTxHandler {
         }
 
         private boolean inputsGreaterOrEqualOutputs(Transaction tx) {
-            Double sumInput = tx.getInputs().stream().mapToDouble(input -> getCorrespondingOutput(input).value).sum();
-            Double sumOutput = tx.getOutputs().stream().mapToDouble(output -> output.value).sum();
+            double sumInput = 0;
+            for (Transaction.Input input : tx.getInputs()) {
+                sumInput += getCorrespondingOutput(input).value;
+            }
+            double sumOutput = 0;
+            for (Transaction.Output output : tx.getOutputs()) {
+                sumOutput += output.value;
+            }
             return sumInput >= sumOutput;
         }
 
         public Transaction.Output getCorrespondingOutput(Transaction.Input input) {
-            return unspentCoins.getTxOutput(getUtxo(input));
+            return unspentCoins.getTxOutput(input.prevTxHash, input.outputIndex);
         }
 
+        /**
+         * @return the UTXO spent by {@code input}, sharing its hash, to remove the coin from the
+         *         pool; lookups go by the hash and index of the input instead
+         */
         public UTXO getUtxo(Transaction.Input input) {
             return new UTXO(input.prevTxHash, input.outputIndex);
         }
     }
-
-    protected class TxNode {
-        public Transaction tx;
-        public boolean isPerformed = false;
-        public List<CoinNode> coins = new ArrayList<>();
-
-        public TxNode(Transaction tx) {
-            this.tx = tx;
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                coins.add(new CoinNode(new UTXO(tx.getHash(), i)));
-            }
-        }
-
-        public void performTx(Set<Transaction> performed) {
-            if (isPerformed || !isValidTx(tx)) return;
-            for (Transaction.Input in : tx.getInputs()) {
-                unspentCoins.removeUTXO(verificator.getUtxo(in));
-            }
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                unspentCoins.addUTXO(new UTXO(tx.getHash(), i), tx.getOutputs().get(i));
-            }
-
-            isPerformed = true;
-            performed.add(tx);
-
-            coins.forEach(coinNode -> coinNode.execute(performed));
-        }
-
-        public double getWeight() {
-            return getWeightOfTx(this);
-        }
-    }
-
-    protected class CoinNode {
-        public UTXO utxo;
-        public List<TxNode> txs = new ArrayList<>();
-
-        public CoinNode(UTXO utxo) {
-            this.utxo = utxo;
-        }
-
-        public void execute(Set<Transaction> performed) {
-            Optional<TxNode> max = txs.stream().
-                    filter(txNode -> isValidTx(txNode.tx)).max(Comparator.comparing(TxNode::getWeight));
-            max.ifPresent(txNode -> txNode.performTx(performed));
-        }
-    }
 }
-
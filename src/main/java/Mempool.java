@@ -0,0 +1,401 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Long lived pool of proposed transactions in front of a {@link TxHandler}. Transactions are
+ * submitted one at a time as they arrive and checked against the handler's pool plus the outputs of
+ * the transactions already waiting here:
+ * <ul>
+ * <li>a transaction whose inputs all exist, that spends nothing already spent here and passes the
+ * checks of {@link TxHandler#isValidTx} is <em>ready</em>;</li>
+ * <li>a valid transaction spending coins that ready transactions already spend replaces them, and
+ * their ready descendants, if the {@link ConflictIndex} allows it with the fees of all of them and
+ * it spends none of their outputs; otherwise it is <em>conflicted</em>, kept there as a candidate
+ * spender of the contested coins, or rejected if the index has no room for it;</li>
+ * <li>a transaction spending outputs that do not exist yet is an <em>orphan</em>, kept by the
+ * UTXOs it misses and submitted again as soon as a ready transaction or a sealed epoch creates
+ * them;</li>
+ * <li>anything else is rejected.</li>
+ * </ul>
+ * {@link #sealEpoch} hands the ready transactions to the handler in arrival order, so parents come
+ * before their children. Their signatures were verified through the handler's
+ * {@link SignatureCache}, so sealing does not repeat the RSA work while the cache holds them.
+ * <p>
+ * A double spend that could neither replace the current spenders nor be kept as a candidate is
+ * rejected before its signatures are verified, so floods of conflicting spends of the same coins
+ * cost no RSA work. When a replacement frees coins that the replaced transactions spent, the best
+ * remaining candidate spender of each is submitted again.
+ * <p>
+ * At most {@code maxReady} transactions wait for an epoch, further ones are rejected, and at most
+ * {@code maxOrphans} orphans are kept, the oldest being evicted first. An orphan keeps its first
+ * arrival when it is woken and found missing other outputs. Orphans older than
+ * {@code maxOrphanAgeMillis} are evicted by {@link #evictExpired}, which is also called on every
+ * submission. Like the handler, a mempool must be confined to one thread.
+ * <p>
+ * {@link #submit} returns the status of the transaction submitted. Every later change of status,
+ * of woken orphans and candidates submitted again, of ready transactions replaced or left out of
+ * an epoch, and of orphans and candidates evicted, goes to the listener set with
+ * {@link #setListener}, on the thread changing the mempool.
+ */
+public class Mempool {
+
+    public enum Status {
+        /** valid over the pool and the ready transactions, waiting for the next epoch */
+        READY,
+        /** spends outputs that do not exist yet */
+        ORPHAN,
+        /** valid but in conflict with ready transactions it cannot replace, kept as a candidate spender of their coins */
+        CONFLICTED,
+        /** invalid, in conflict with ready transactions without room left for it, or over the bounds of the mempool */
+        REJECTED,
+        /** already in the mempool */
+        DUPLICATE
+    }
+
+    private final TxHandler handler;
+    private final int maxReady;
+    private final int maxOrphans;
+    private final long maxOrphanAgeMillis;
+    private final LongSupplier clock;
+    private final ConflictIndex conflicts;
+
+    /** ready transactions by hash, in arrival order */
+    private final LinkedHashMap<ByteBuffer, ConflictIndex.Candidate> ready = new LinkedHashMap<>();
+    /** outputs created by ready transactions */
+    private final Map<UTXO, Transaction.Output> readyOutputs = new HashMap<>();
+    /** coins spent by ready transactions, and the hash of the transaction spending them */
+    private final Map<UTXO, ByteBuffer> readySpent = new HashMap<>();
+
+    /** orphans by hash */
+    private final Map<ByteBuffer, Orphan> orphans = new HashMap<>();
+    /** orphans by first arrival, oldest first, to be evicted in that order */
+    private final TreeSet<Orphan> orphansByArrival = new TreeSet<>(
+            Comparator.comparingLong((Orphan o) -> o.arrival).thenComparingLong(o -> o.sequence));
+    private long nextOrphan;
+    /** hashes of the orphans waiting for each missing UTXO */
+    private final Map<UTXO, Set<ByteBuffer>> orphansByParent = new HashMap<>();
+
+    /** transactions to submit again, woken orphans and candidates for freed coins */
+    private final Deque<Orphan> pending = new ArrayDeque<>();
+
+    private BiConsumer<Transaction, Status> listener = (tx, status) -> { };
+
+    public Mempool(TxHandler handler, int maxReady, int maxOrphans, long maxOrphanAgeMillis) {
+        this(handler, maxReady, maxOrphans, maxOrphanAgeMillis, new ConflictIndex());
+    }
+
+    public Mempool(TxHandler handler, int maxReady, int maxOrphans, long maxOrphanAgeMillis,
+                   ConflictIndex conflicts) {
+        this(handler, maxReady, maxOrphans, maxOrphanAgeMillis, conflicts, System::currentTimeMillis);
+    }
+
+    Mempool(TxHandler handler, int maxReady, int maxOrphans, long maxOrphanAgeMillis,
+            ConflictIndex conflicts, LongSupplier clock) {
+        this.handler = handler;
+        this.maxReady = maxReady;
+        this.maxOrphans = maxOrphans;
+        this.maxOrphanAgeMillis = maxOrphanAgeMillis;
+        this.conflicts = conflicts;
+        this.clock = clock;
+    }
+
+    /** Sets the listener told of the changes of status not returned by {@link #submit} */
+    public void setListener(BiConsumer<Transaction, Status> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds {@code tx} to the mempool. Orphans whose missing parents {@code tx} creates, and
+     * candidates for coins freed if {@code tx} replaces other transactions, are submitted again
+     * right after it
+     */
+    public Status submit(Transaction tx) {
+        evictExpired();
+        if (tx.getHash() == null) return Status.REJECTED;
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        if (ready.containsKey(hash) || orphans.containsKey(hash)) return Status.DUPLICATE;
+
+        Status status = admit(tx, hash, clock.getAsLong());
+        admitPending();
+        return status;
+    }
+
+    private void admitPending() {
+        while (!pending.isEmpty()) {
+            Orphan next = pending.poll();
+            ByteBuffer nextHash = ByteBuffer.wrap(next.tx.getHash());
+            if (!ready.containsKey(nextHash) && !orphans.containsKey(nextHash))
+                listener.accept(next.tx, admit(next.tx, nextHash, next.arrival));
+        }
+    }
+
+    private Status admit(Transaction tx, ByteBuffer hash, long arrival) {
+        Set<UTXO> missing = new LinkedHashSet<>();
+        Set<UTXO> inputs = new LinkedHashSet<>();
+        Map<ByteBuffer, ConflictIndex.Candidate> conflicting = new LinkedHashMap<>();
+        double sumInput = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null) return Status.REJECTED;
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!inputs.add(utxo)) return Status.REJECTED;
+            ByteBuffer spender = readySpent.get(utxo);
+            if (spender != null) conflicting.put(spender, ready.get(spender));
+            Transaction.Output output = spendable(utxo);
+            if (output == null) {
+                missing.add(utxo);
+                continue;
+            }
+            if (output.address == null || input.signature == null) return Status.REJECTED;
+            sumInput += output.value;
+        }
+        double sumOutput = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0) return Status.REJECTED;
+            sumOutput += output.value;
+        }
+        if (!missing.isEmpty()) return addOrphan(tx, hash, arrival, missing);
+        if (sumInput < sumOutput) return Status.REJECTED;
+
+        ConflictIndex.Candidate candidate = conflicts.candidate(tx, sumInput - sumOutput);
+        List<UTXO> contested = new ArrayList<>();
+        for (UTXO utxo : inputs) {
+            if (readySpent.containsKey(utxo)) contested.add(utxo);
+        }
+        Map<ByteBuffer, ConflictIndex.Candidate> evicted = descendants(conflicting.keySet());
+        boolean spendsEvicted = inputs.stream().anyMatch(utxo -> evicted.containsKey(ByteBuffer.wrap(utxo.getTxHash())));
+        boolean replaces = conflicting.isEmpty() ||
+                !spendsEvicted && conflicts.mayReplace(candidate, conflicting.values(), evicted.values());
+        if (!replaces && contested.stream().noneMatch(utxo -> conflicts.wouldKeep(utxo, candidate)))
+            return Status.REJECTED;
+        if (conflicting.isEmpty() && ready.size() >= maxReady) return Status.REJECTED;
+        if (!signaturesValid(tx)) return Status.REJECTED;
+
+        Set<Transaction> dropped = new LinkedHashSet<>();
+        for (UTXO utxo : contested) {
+            if (!conflicts.isContested(utxo)) addCandidate(utxo, ready.get(readySpent.get(utxo)), dropped);
+            addCandidate(utxo, candidate, dropped);
+        }
+        dropped.remove(tx);
+        if (!replaces) {
+            rejectDropped(dropped);
+            return conflicts.isCandidate(tx) ? Status.CONFLICTED : Status.REJECTED;
+        }
+
+        evictReady(evicted);
+        for (ConflictIndex.Candidate gone : evicted.values()) {
+            dropped.remove(gone.tx);
+        }
+        ready.put(hash, candidate);
+        for (UTXO utxo : inputs) {
+            readySpent.put(utxo, hash);
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            readyOutputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        rejectDropped(dropped);
+        wakeOrphans(tx);
+        if (!evicted.isEmpty()) retryFreedCoins(evicted);
+        return Status.READY;
+    }
+
+    private void addCandidate(UTXO utxo, ConflictIndex.Candidate candidate, Set<Transaction> dropped) {
+        for (ConflictIndex.Candidate gone : conflicts.add(utxo, candidate)) {
+            dropped.add(gone.tx);
+        }
+    }
+
+    /** Reports as rejected the {@code dropped} candidates neither ready nor candidates of other coins */
+    private void rejectDropped(Set<Transaction> dropped) {
+        for (Transaction tx : dropped) {
+            if (!ready.containsKey(ByteBuffer.wrap(tx.getHash())) && !conflicts.isCandidate(tx))
+                listener.accept(tx, Status.REJECTED);
+        }
+    }
+
+    private boolean signaturesValid(Transaction tx) {
+        SignatureCache signatures = handler.getSignatureCache();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            Transaction.Output output = spendable(new UTXO(input.prevTxHash, input.outputIndex));
+            if (!signatures.verify(tx.getHash(), i, output.address, tx.getRawDataToSign(i), input.signature))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the ready transactions {@code hashes} and every ready transaction spending their outputs */
+    private Map<ByteBuffer, ConflictIndex.Candidate> descendants(Collection<ByteBuffer> hashes) {
+        Map<ByteBuffer, ConflictIndex.Candidate> found = new LinkedHashMap<>();
+        Deque<ByteBuffer> next = new ArrayDeque<>(hashes);
+        while (!next.isEmpty()) {
+            ByteBuffer hash = next.poll();
+            ConflictIndex.Candidate candidate = ready.get(hash);
+            if (candidate == null || found.putIfAbsent(hash, candidate) != null) continue;
+            for (int i = 0; i < candidate.tx.numOutputs(); i++) {
+                ByteBuffer child = readySpent.get(new UTXO(candidate.tx.getHash(), i));
+                if (child != null) next.add(child);
+            }
+        }
+        return found;
+    }
+
+    /** Removes the {@code evicted} ready transactions, also as candidate spenders of contested coins */
+    private void evictReady(Map<ByteBuffer, ConflictIndex.Candidate> evicted) {
+        for (Map.Entry<ByteBuffer, ConflictIndex.Candidate> entry : evicted.entrySet()) {
+            ready.remove(entry.getKey());
+            Transaction tx = entry.getValue().tx;
+            for (Transaction.Input input : tx.getInputs()) {
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                if (entry.getKey().equals(readySpent.get(utxo))) readySpent.remove(utxo);
+                conflicts.remove(utxo, entry.getValue());
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                readyOutputs.remove(new UTXO(tx.getHash(), i));
+            }
+        }
+        for (ConflictIndex.Candidate candidate : evicted.values()) {
+            listener.accept(candidate.tx, Status.REJECTED);
+        }
+    }
+
+    /** Submits again the best candidate spender of each coin the {@code evicted} txs no longer spend */
+    private void retryFreedCoins(Map<ByteBuffer, ConflictIndex.Candidate> evicted) {
+        long now = clock.getAsLong();
+        for (ConflictIndex.Candidate gone : evicted.values()) {
+            for (Transaction.Input input : gone.tx.getInputs()) {
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                if (readySpent.containsKey(utxo)) continue;
+                for (ConflictIndex.Candidate candidate : conflicts.candidates(utxo)) {
+                    if (evicted.containsKey(ByteBuffer.wrap(candidate.tx.getHash()))) continue;
+                    pending.add(new Orphan(candidate.tx, now, Collections.emptySet(), -1));
+                    break;
+                }
+            }
+        }
+    }
+
+    /** @return the output {@code utxo} refers to, if it is in the pool or created by a ready tx */
+    private Transaction.Output spendable(UTXO utxo) {
+        Transaction.Output output = handler.getUnspentCoins().getTxOutput(utxo);
+        return output != null ? output : readyOutputs.get(utxo);
+    }
+
+    private Status addOrphan(Transaction tx, ByteBuffer hash, long arrival, Set<UTXO> missing) {
+        if (maxOrphans <= 0) return Status.REJECTED;
+        while (orphans.size() >= maxOrphans) {
+            evictOrphan();
+        }
+        Orphan orphan = new Orphan(tx, arrival, missing, nextOrphan++);
+        orphans.put(hash, orphan);
+        orphansByArrival.add(orphan);
+        for (UTXO utxo : missing) {
+            orphansByParent.computeIfAbsent(utxo, u -> new LinkedHashSet<>()).add(hash);
+        }
+        return Status.ORPHAN;
+    }
+
+    /** Moves the orphans waiting for an output of {@code parent} to the transactions to submit again */
+    private void wakeOrphans(Transaction parent) {
+        for (int i = 0; i < parent.numOutputs(); i++) {
+            Set<ByteBuffer> waiting = orphansByParent.get(new UTXO(parent.getHash(), i));
+            if (waiting == null) continue;
+            for (ByteBuffer hash : new ArrayList<>(waiting)) {
+                pending.add(removeOrphan(hash));
+            }
+        }
+    }
+
+    private Orphan removeOrphan(ByteBuffer hash) {
+        Orphan orphan = orphans.remove(hash);
+        orphansByArrival.remove(orphan);
+        for (UTXO utxo : orphan.missing) {
+            Set<ByteBuffer> waiting = orphansByParent.get(utxo);
+            waiting.remove(hash);
+            if (waiting.isEmpty()) orphansByParent.remove(utxo);
+        }
+        return orphan;
+    }
+
+    /** Evicts the orphans that have been waiting for longer than the maximum orphan age */
+    public void evictExpired() {
+        long oldest = clock.getAsLong() - maxOrphanAgeMillis;
+        while (!orphansByArrival.isEmpty() && orphansByArrival.first().arrival < oldest) {
+            evictOrphan();
+        }
+    }
+
+    /** Evicts the oldest orphan */
+    private void evictOrphan() {
+        listener.accept(removeOrphan(ByteBuffer.wrap(orphansByArrival.first().tx.getHash())).tx, Status.REJECTED);
+    }
+
+    /**
+     * Hands the ready transactions to the handler as one epoch and empties the ready set. Orphans
+     * spending the outputs of the accepted transactions are submitted again, the others stay for
+     * later epochs, and the coins spent by accepted transactions are no longer contested: their
+     * other candidate spenders are rejected. Ready transactions left out by the handler are
+     * rejected too, unless still candidates of contested coins. If the handler throws, the ready
+     * transactions are kept.
+     *
+     * @return the transactions accepted by the handler
+     */
+    public Transaction[] sealEpoch() {
+        Transaction[] epoch = ready.values().stream().map(c -> c.tx).toArray(Transaction[]::new);
+        Transaction[] accepted = handler.handleTxs(epoch);
+        ready.clear();
+        readyOutputs.clear();
+        readySpent.clear();
+        List<ConflictIndex.Candidate> spent = new ArrayList<>();
+        for (Transaction tx : accepted) {
+            for (Transaction.Input input : tx.getInputs()) {
+                spent.addAll(conflicts.removeOutpoint(new UTXO(input.prevTxHash, input.outputIndex)));
+            }
+            wakeOrphans(tx);
+        }
+        // spending a coin spent for good, the other candidates can never be valid again
+        for (ConflictIndex.Candidate candidate : spent) {
+            for (Transaction.Input input : candidate.tx.getInputs()) {
+                conflicts.remove(new UTXO(input.prevTxHash, input.outputIndex), candidate);
+            }
+        }
+        Set<Transaction> done = new HashSet<>(Arrays.asList(accepted));
+        for (Transaction tx : epoch) {
+            if (done.add(tx)) listener.accept(tx, conflicts.isCandidate(tx) ? Status.CONFLICTED : Status.REJECTED);
+        }
+        for (ConflictIndex.Candidate candidate : spent) {
+            if (done.add(candidate.tx)) listener.accept(candidate.tx, Status.REJECTED);
+        }
+        admitPending();
+        return accepted;
+    }
+
+    public TxHandler getHandler() {
+        return handler;
+    }
+
+    public int readyCount() {
+        return ready.size();
+    }
+
+    public int orphanCount() {
+        return orphans.size();
+    }
+
+    private static class Orphan {
+        final Transaction tx;
+        final long arrival;
+        final Set<UTXO> missing;
+        /** order of orphans arrived at the same time, -1 for transactions only submitted again */
+        final long sequence;
+
+        Orphan(Transaction tx, long arrival, Set<UTXO> missing, long sequence) {
+            this.tx = tx;
+            this.arrival = arrival;
+            this.missing = missing;
+            this.sequence = sequence;
+        }
+    }
+}
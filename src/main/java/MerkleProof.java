@@ -0,0 +1,103 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Proof that a transaction is in a {@link Block}: the hashes of the siblings of the path from its
+ * leaf up to the Merkle root, so a light verifier checks membership with O(log n) digests and
+ * without the other transactions of the block.
+ * <p>
+ * The tree hashes leaves and inner nodes differently, as in RFC 6962: a leaf is the SHA-256 of 0
+ * followed by the transaction hash and a node the SHA-256 of 1 followed by its two children, so
+ * no node can pass for a leaf. A node left without a sibling at the end of a level is carried to
+ * the next level as it is, instead of being paired with a copy of itself, so no two lists of
+ * transactions share a root; its proof simply has no sibling at that level.
+ */
+public class MerkleProof {
+
+    /** bytes of a SHA-256 digest, the size of every node of the tree */
+    public static final int HASH_BYTES = 32;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final byte[] txHash;
+    private final int index;
+    private final byte[][] siblings;
+    /** per sibling, true if it is the left child of its parent */
+    private final boolean[] onLeft;
+
+    MerkleProof(byte[] txHash, int index, byte[][] siblings, boolean[] onLeft) {
+        this.txHash = txHash;
+        this.index = index;
+        this.siblings = siblings;
+        this.onLeft = onLeft;
+    }
+
+    /** @return the hash of the transaction proven */
+    public byte[] getTxHash() {
+        return txHash;
+    }
+
+    /** @return the position of the transaction in its block */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return the number of sibling hashes in the proof, about log2 of the size of the block */
+    public int size() {
+        return siblings.length;
+    }
+
+    /** @return the root of the tree the proof leads to */
+    public byte[] computeRoot() {
+        byte[] node = leafHash(txHash);
+        for (int i = 0; i < siblings.length; i++) {
+            node = onLeft[i] ? nodeHash(siblings[i], 0, node, 0) : nodeHash(node, 0, siblings[i], 0);
+        }
+        return node;
+    }
+
+    /** @return true if the transaction proven is in the block of Merkle root {@code merkleRoot} */
+    public boolean verify(byte[] merkleRoot) {
+        return MessageDigest.isEqual(computeRoot(), merkleRoot);
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleProof{index=" + index + ", siblings=" + siblings.length + ", txHash=" + Arrays.toString(txHash) + "}";
+    }
+
+    /** @return the leaf of the transaction of hash {@code txHash} */
+    static byte[] leafHash(byte[] txHash) {
+        MessageDigest md = SHA256.get();
+        md.update(LEAF);
+        md.update(txHash);
+        return md.digest();
+    }
+
+    /**
+     * @return the parent of the nodes at {@code leftOffset} of {@code left} and at
+     *         {@code rightOffset} of {@code right}
+     */
+    static byte[] nodeHash(byte[] left, int leftOffset, byte[] right, int rightOffset) {
+        MessageDigest md = SHA256.get();
+        md.update(NODE);
+        md.update(left, leftOffset, HASH_BYTES);
+        md.update(right, rightOffset, HASH_BYTES);
+        return md.digest();
+    }
+
+    /** @return the root of a block without transactions, the digest of nothing */
+    static byte[] emptyRoot() {
+        return SHA256.get().digest();
+    }
+}
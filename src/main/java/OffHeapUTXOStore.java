@@ -0,0 +1,356 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link UTXOStore} keeping its coins outside of the Java heap, in an open addressing table of
+ * fixed width slots allocated in direct memory. A slot holds the transaction hash, padded to
+ * {@link #HASH_BYTES}, the output index, the value of the output and the id of its address in a
+ * table of distinct addresses, so a coin costs {@value #SLOT_BYTES} bytes of direct memory and
+ * nothing on the heap but its share of the address table. Probes only read primitives: a slot is
+ * compared to a key by a 32 bit hash, the index and four longs of transaction hash. Collisions are
+ * resolved by linear probing and removals shift the following slots back, so the table never fills
+ * with tombstones.
+ * <p>
+ * Coins whose transaction hash is longer than {@link #HASH_BYTES} are kept in a small heap trie
+ * instead. {@link #get} builds a new output on every call, changing it does not change the store.
+ * The table grows by doubling past a load factor of 0.75, and {@link #copy} copies all of it.
+ * Direct memory is released when the store is garbage collected.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    public static final int HASH_BYTES = 32;
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int STATE = 0;
+    private static final int HASH_LENGTH = 1;
+    private static final int KEY_HASH = 4;
+    private static final int INDEX = 8;
+    private static final int HASH = 12;
+    private static final int VALUE = HASH + HASH_BYTES;
+    private static final int ADDRESS = VALUE + Double.BYTES;
+    private static final int SLOT_BYTES = ADDRESS + Integer.BYTES;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte NULL_OUTPUT = 2;
+
+    /** slots of one direct buffer, so that tables can grow past the 2GB of a single buffer */
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final double MAX_LOAD = 0.75;
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    /** enclosing instance of the outputs built from slots */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private ByteBuffer[] segments;
+    private int mask;
+    private int size;
+    private final AddressTable addresses;
+    private final UTXOTrie overflow;
+
+    public OffHeapUTXOStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a store with room for {@code capacity} coins before it has to grow */
+    public OffHeapUTXOStore(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_CAPACITY, capacity / MAX_LOAD + 1)) - 1) << 1;
+        segments = allocate(slots);
+        mask = slots - 1;
+        addresses = new AddressTable();
+        overflow = new UTXOTrie();
+    }
+
+    private OffHeapUTXOStore(OffHeapUTXOStore store) {
+        segments = new ByteBuffer[store.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer source = store.segments[i].duplicate();
+            source.clear();
+            segments[i] = ByteBuffer.allocateDirect(source.capacity()).order(ByteOrder.nativeOrder());
+            segments[i].put(source);
+        }
+        mask = store.mask;
+        size = store.size;
+        addresses = new AddressTable(store.addresses);
+        overflow = store.overflow.copy();
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return get(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public Transaction.Output get(byte[] hash, int index) {
+        if (hash.length > HASH_BYTES) return overflow.get(hash, index);
+        int slot = find(hash, index, keyHash(hash, index));
+        if (slot < 0) return null;
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        if (segment.get(base + STATE) == NULL_OUTPUT) return null;
+        return OUTPUTS.new Output(segment.getDouble(base + VALUE), addresses.get(segment.getInt(base + ADDRESS)));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] hash, int index) {
+        if (hash.length > HASH_BYTES) return overflow.contains(hash, index);
+        return find(hash, index, keyHash(hash, index)) >= 0;
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length > HASH_BYTES) {
+            overflow.put(utxo, output);
+            return;
+        }
+        if (size + 1 > (mask + 1) * MAX_LOAD) grow();
+        int index = utxo.getIndex();
+        int keyHash = keyHash(hash, index);
+        int slot = find(hash, index, keyHash);
+        if (slot >= 0) {
+            releaseAddress(slot);
+        } else {
+            slot = -1 - slot;
+            writeKey(slot, hash, index, keyHash);
+            size++;
+        }
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        if (output == null) {
+            segment.put(base + STATE, NULL_OUTPUT);
+            segment.putInt(base + ADDRESS, -1);
+        } else {
+            segment.put(base + STATE, FULL);
+            segment.putDouble(base + VALUE, output.value);
+            segment.putInt(base + ADDRESS, addresses.acquire(output.address));
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length > HASH_BYTES) {
+            overflow.remove(utxo);
+            return;
+        }
+        int slot = find(hash, utxo.getIndex(), keyHash(hash, utxo.getIndex()));
+        if (slot < 0) return;
+        releaseAddress(slot);
+        size--;
+
+        int hole = slot;
+        for (int next = (hole + 1) & mask; segment(next).get(offset(next) + STATE) != EMPTY; next = (next + 1) & mask) {
+            int home = segment(next).getInt(offset(next) + KEY_HASH) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        segment(hole).put(offset(hole) + STATE, EMPTY);
+    }
+
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            ByteBuffer segment = segment(slot);
+            int base = offset(slot);
+            byte state = segment.get(base + STATE);
+            if (state == EMPTY) continue;
+            byte[] hash = new byte[segment.get(base + HASH_LENGTH)];
+            for (int i = 0; i < hash.length; i++) {
+                hash[i] = segment.get(base + HASH + i);
+            }
+            Transaction.Output output = state == NULL_OUTPUT ? null :
+                    OUTPUTS.new Output(segment.getDouble(base + VALUE), addresses.get(segment.getInt(base + ADDRESS)));
+            action.accept(new UTXO(hash, segment.getInt(base + INDEX)), output);
+        }
+        overflow.forEach(action);
+    }
+
+    /** @return a copy of every slot of this store, in new direct memory */
+    @Override
+    public OffHeapUTXOStore copy() {
+        return new OffHeapUTXOStore(this);
+    }
+
+    /**
+     * @return the slot holding the key, or {@code -1 - slot} for the empty slot where it would be
+     *         inserted
+     */
+    private int find(byte[] hash, int index, int keyHash) {
+        long h0 = longAt(hash, 0);
+        long h1 = longAt(hash, 8);
+        long h2 = longAt(hash, 16);
+        long h3 = longAt(hash, 24);
+        for (int slot = keyHash & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer segment = segment(slot);
+            int base = offset(slot);
+            if (segment.get(base + STATE) == EMPTY) return -1 - slot;
+            if (segment.getInt(base + KEY_HASH) == keyHash &&
+                    segment.getInt(base + INDEX) == index &&
+                    segment.get(base + HASH_LENGTH) == hash.length &&
+                    segment.getLong(base + HASH) == h0 &&
+                    segment.getLong(base + HASH + 8) == h1 &&
+                    segment.getLong(base + HASH + 16) == h2 &&
+                    segment.getLong(base + HASH + 24) == h3)
+                return slot;
+        }
+    }
+
+    private void writeKey(int slot, byte[] hash, int index, int keyHash) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        segment.put(base + HASH_LENGTH, (byte) hash.length);
+        segment.putInt(base + KEY_HASH, keyHash);
+        segment.putInt(base + INDEX, index);
+        for (int i = 0; i < HASH_BYTES; i += Long.BYTES) {
+            segment.putLong(base + HASH + i, longAt(hash, i));
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        ByteBuffer source = segment(from);
+        ByteBuffer target = segment(to);
+        int sourceBase = offset(from);
+        int targetBase = offset(to);
+        for (int i = 0; i < SLOT_BYTES; i += Integer.BYTES) {
+            target.putInt(targetBase + i, source.getInt(sourceBase + i));
+        }
+    }
+
+    private void releaseAddress(int slot) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        if (segment.get(base + STATE) == FULL) addresses.release(segment.getInt(base + ADDRESS));
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity >= MAX_CAPACITY) throw new IllegalStateException("UTXO table is full");
+        ByteBuffer[] old = segments;
+        int oldMask = mask;
+        segments = allocate(capacity << 1);
+        mask = (capacity << 1) - 1;
+        for (int slot = 0; slot <= oldMask; slot++) {
+            ByteBuffer source = old[slot >>> SEGMENT_SHIFT];
+            int sourceBase = (slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_BYTES;
+            if (source.get(sourceBase + STATE) == EMPTY) continue;
+            int target = source.getInt(sourceBase + KEY_HASH) & mask;
+            while (segment(target).get(offset(target) + STATE) != EMPTY) {
+                target = (target + 1) & mask;
+            }
+            ByteBuffer segment = segment(target);
+            int base = offset(target);
+            for (int i = 0; i < SLOT_BYTES; i += Integer.BYTES) {
+                segment.putInt(base + i, source.getInt(sourceBase + i));
+            }
+        }
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_BYTES;
+    }
+
+    private static ByteBuffer[] allocate(int slots) {
+        int segmentSlots = Math.min(slots, 1 << SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[slots / segmentSlots];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        }
+        return segments;
+    }
+
+    /** @return the 8 bytes of {@code hash} from {@code from}, in native order, zero past its end */
+    private static long longAt(byte[] hash, int from) {
+        long value = 0;
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            int at = LITTLE_ENDIAN ? from + i : from + Long.BYTES - 1 - i;
+            value = (value << 8) | (at < hash.length ? hash[at] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    private static int keyHash(byte[] hash, int index) {
+        long h = index ^ ((long) hash.length << 32);
+        for (int i = 0; i < HASH_BYTES; i += Long.BYTES) {
+            h = (h ^ longAt(hash, i)) * 0x9E3779B97F4A7C15L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Distinct addresses of the coins, referenced by id from the slots and counted */
+    private static final class AddressTable {
+        private final Map<PublicKey, Integer> ids;
+        private final ArrayList<PublicKey> keys;
+        private int[] references;
+        private int[] free;
+        private int freeCount;
+
+        AddressTable() {
+            ids = new HashMap<>();
+            keys = new ArrayList<>();
+            references = new int[16];
+            free = new int[16];
+        }
+
+        AddressTable(AddressTable table) {
+            ids = new HashMap<>(table.ids);
+            keys = new ArrayList<>(table.keys);
+            references = table.references.clone();
+            free = table.free.clone();
+            freeCount = table.freeCount;
+        }
+
+        /** @return the id of {@code key}, -1 for null, counting one more reference to it */
+        int acquire(PublicKey key) {
+            if (key == null) return -1;
+            Integer id = ids.get(key);
+            if (id == null) {
+                if (freeCount > 0) {
+                    id = free[--freeCount];
+                    keys.set(id, key);
+                } else {
+                    id = keys.size();
+                    keys.add(key);
+                    if (id == references.length) references = Arrays.copyOf(references, id << 1);
+                }
+                ids.put(key, id);
+            }
+            references[id]++;
+            return id;
+        }
+
+        void release(int id) {
+            if (id < 0 || --references[id] > 0) return;
+            ids.remove(keys.get(id));
+            keys.set(id, null);
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount << 1);
+            free[freeCount++] = id;
+        }
+
+        PublicKey get(int id) {
+            return id < 0 ? null : keys.get(id);
+        }
+    }
+}
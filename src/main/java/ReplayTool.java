@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Replays a {@link TransactionStream} through a handler and reports the transactions per second it
+ * sustains, to load test handlers and to catch a node up from a log:
+ * <pre>
+ * ReplayTool replay   &lt;stream&gt; [maxEpochSize] [tx|inorder|maxfee|pipelined]
+ * ReplayTool generate &lt;file&gt; &lt;transactions&gt; [epochSize]
+ * </pre>
+ * The stream is a file, read through memory mapping, or {@code :port} to accept one connection on
+ * that local port and read it. The first epoch of a stream is its genesis: the outputs of its
+ * transactions are the initial pool and are not handled. Epochs are decoded on a thread of their
+ * own, at most {@value #PIPELINE_DEPTH} ahead of the handler, so decoding the next epoch overlaps
+ * with handling the current one; {@code pipelined} handles them in an {@link EpochPipeline} of
+ * that depth over a {@link TxHandler} instead. {@code generate} writes a stream of valid transfers
+ * between a few keys, each epoch spending coins created by the previous ones.
+ */
+public class ReplayTool {
+
+    /** epochs decoded ahead of the one being handled */
+    public static final int PIPELINE_DEPTH = 2;
+
+    private static final int KEY_COUNT = 8;
+    private static final double GENESIS_VALUE = 1000d;
+    private static final double FEE = 0.001d;
+    private static final Transaction[] END = new Transaction[0];
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("replay")) {
+            int maxEpochSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            String handler = args.length > 3 ? args[3] : "tx";
+            try (TransactionStream.Reader reader = open(args[1])) {
+                Report report = replay(reader, handler, maxEpochSize, System.out);
+                System.out.println(report);
+            }
+        } else if (args.length >= 3 && args[0].equals("generate")) {
+            int epochSize = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+            generate(Paths.get(args[1]), Integer.parseInt(args[2]), epochSize, 42);
+        } else {
+            System.err.println("Usage: ReplayTool replay <stream|:port> [maxEpochSize] [tx|inorder|maxfee|pipelined]");
+            System.err.println("       ReplayTool generate <file> <transactions> [epochSize]");
+            System.exit(2);
+        }
+    }
+
+    private static TransactionStream.Reader open(String stream) throws IOException {
+        if (!stream.startsWith(":")) return TransactionStream.Reader.open(Paths.get(stream));
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(stream.substring(1))));
+            SocketChannel connection = server.accept();
+            return new TransactionStream.Reader(connection);
+        }
+    }
+
+    /** Replays {@code reader} through a new handler of kind {@code handler} over its genesis */
+    public static Report replay(TransactionStream.Reader reader, String handler, int maxEpochSize,
+                                PrintStream progress) throws IOException, InterruptedException {
+        UTXOPool genesis = new UTXOPool();
+        Transaction[] first = reader.nextEpoch(Integer.MAX_VALUE);
+        if (first != null) {
+            for (Transaction tx : first) {
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    genesis.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+                }
+            }
+        }
+        switch (handler) {
+            case "tx":
+                return replay(reader, new TxHandler(genesis)::handleTxs, maxEpochSize, progress);
+            case "inorder":
+                UTXOPool concurrent = new UTXOPool(new ConcurrentUTXOStore());
+                for (UTXO utxo : genesis.getAllUTXO()) {
+                    concurrent.addUTXO(utxo, genesis.getTxOutput(utxo));
+                }
+                return replay(reader, new TxHandler(concurrent)::handleTxsInOrder, maxEpochSize, progress);
+            case "maxfee":
+                return replay(reader, new MaxFeeTxHandler(genesis)::handleTxs, maxEpochSize, progress);
+            case "pipelined":
+                try (EpochPipeline pipeline = new EpochPipeline(new TxHandler(genesis), PIPELINE_DEPTH)) {
+                    return replay(reader, pipeline, maxEpochSize, progress);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown handler " + handler);
+        }
+    }
+
+    /**
+     * Feeds the epochs of {@code reader}, split in batches of at most {@code maxEpochSize}, to
+     * {@code handler} while the next ones are being decoded, printing the throughput about every
+     * second to {@code progress} if it is not null.
+     */
+    public static Report replay(TransactionStream.Reader reader, UnaryOperator<Transaction[]> handler,
+                                int maxEpochSize, PrintStream progress) throws IOException, InterruptedException {
+        BlockingQueue<Transaction[]> epochs = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread decoder = new Thread(() -> {
+            try {
+                for (Transaction[] epoch = reader.nextEpoch(maxEpochSize); epoch != null; epoch = reader.nextEpoch(maxEpochSize)) {
+                    epochs.put(epoch);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.set(e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                epochs.put(END);
+            } catch (InterruptedException ignored) {
+            }
+        }, "replay-decoder");
+        decoder.setDaemon(true);
+        decoder.start();
+
+        Report report = new Report(progress);
+        try {
+            for (Transaction[] epoch = epochs.take(); epoch != END; epoch = epochs.take()) {
+                report.epoch(epoch.length, handler.apply(epoch).length);
+            }
+        } finally {
+            report.end();
+            decoder.interrupt();
+        }
+        Exception e = failure.get();
+        if (e instanceof IOException) throw (IOException) e;
+        if (e != null) throw (RuntimeException) e;
+        return report;
+    }
+
+    /**
+     * Feeds the epochs of {@code reader}, split in batches of at most {@code maxEpochSize}, to
+     * {@code pipeline}. They are decoded on the calling thread, which only waits for the pipeline
+     * once it is full, so decoding overlaps with all the stages of the epochs before.
+     */
+    public static Report replay(TransactionStream.Reader reader, EpochPipeline pipeline, int maxEpochSize,
+                                PrintStream progress) throws IOException, InterruptedException {
+        Deque<Transaction[]> submitted = new ArrayDeque<>();
+        Deque<CompletableFuture<Transaction[]>> results = new ArrayDeque<>();
+        Report report = new Report(progress);
+        try {
+            for (Transaction[] epoch = reader.nextEpoch(maxEpochSize); epoch != null; epoch = reader.nextEpoch(maxEpochSize)) {
+                submitted.add(epoch);
+                results.add(pipeline.submit(epoch));
+                while (!results.isEmpty() && (results.peek().isDone())) {
+                    report.epoch(submitted.poll().length, accepted(results.poll()).length);
+                }
+            }
+            while (!results.isEmpty()) {
+                report.epoch(submitted.poll().length, accepted(results.poll()).length);
+            }
+        } finally {
+            report.end();
+        }
+        return report;
+    }
+
+    private static Transaction[] accepted(CompletableFuture<Transaction[]> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes to {@code file} a genesis epoch and {@code transactions} signed transfers in epochs of
+     * {@code epochSize}. Signing dominates, it runs on all cores.
+     */
+    public static void generate(Path file, int transactions, int epochSize, long seed)
+            throws IOException, GeneralSecurityException {
+        Random random = new Random(seed);
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(Crypto.KEY_ALGORITHM);
+        SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
+        secureRandom.setSeed(seed);
+        keyPairGenerator.initialize(2048, secureRandom);
+        KeyPair[] keys = new KeyPair[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = keyPairGenerator.generateKeyPair();
+        }
+
+        try (TransactionStream.Writer writer = TransactionStream.Writer.create(file)) {
+            Transaction genesis = new Transaction();
+            for (int i = 0; i < epochSize; i++) {
+                genesis.addOutput(GENESIS_VALUE, keys[i % KEY_COUNT].getPublic());
+            }
+            genesis.computeHash();
+            writer.write(genesis);
+            writer.endEpoch();
+
+            Deque<Coin> coins = new ArrayDeque<>();
+            for (int i = 0; i < epochSize; i++) {
+                coins.add(new Coin(genesis.getHash(), i, GENESIS_VALUE, i % KEY_COUNT));
+            }
+            for (int written = 0; written < transactions; written += epochSize) {
+                int size = Math.min(epochSize, transactions - written);
+                Transaction[] epoch = new Transaction[size];
+                Coin[] spent = new Coin[size];
+                int[][] receivers = new int[size][];
+                for (int i = 0; i < size; i++) {
+                    spent[i] = coins.poll();
+                    int owner = spent[i].owner;
+                    receivers[i] = new int[]{(owner + 1 + random.nextInt(KEY_COUNT - 1)) % KEY_COUNT, (owner + 1) % KEY_COUNT};
+                    Transaction tx = new Transaction();
+                    tx.addInput(spent[i].txHash, spent[i].index);
+                    for (int receiver : receivers[i]) {
+                        tx.addOutput((spent[i].value - FEE) / 2, keys[receiver].getPublic());
+                    }
+                    epoch[i] = tx;
+                }
+                IntStream.range(0, size).parallel().forEach(i -> sign(epoch[i], keys[spent[i].owner].getPrivate()));
+                Transaction.computeHashes(epoch);
+                for (int i = 0; i < size; i++) {
+                    Transaction tx = epoch[i];
+                    writer.write(tx);
+                    for (int j = 0; j < tx.numOutputs(); j++) {
+                        coins.add(new Coin(tx.getHash(), j, tx.getOutput(j).value, receivers[i][j]));
+                    }
+                }
+                writer.endEpoch();
+            }
+        }
+    }
+
+    private static void sign(Transaction tx, PrivateKey key) {
+        try {
+            Signature signature = Signature.getInstance(Crypto.SIGNATURE_ALGORITHM);
+            signature.initSign(key);
+            signature.update(tx.getRawDataToSign(0));
+            tx.addSignature(signature.sign(), 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Coin {
+        final byte[] txHash;
+        final int index;
+        final double value;
+        final int owner;
+
+        Coin(byte[] txHash, int index, double value, int owner) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.owner = owner;
+        }
+    }
+
+    /** Totals of a replay */
+    public static class Report {
+        public long transactions;
+        public long accepted;
+        public long epochs;
+        public long nanos;
+
+        private final PrintStream progress;
+        private final long start = System.nanoTime();
+        private long lastReport = start;
+        private long txsAtLastReport;
+
+        Report(PrintStream progress) {
+            this.progress = progress;
+        }
+
+        /** Counts an epoch, printing the throughput if a second went by since it last was */
+        void epoch(int transactions, int accepted) {
+            this.accepted += accepted;
+            this.transactions += transactions;
+            epochs++;
+            long now = System.nanoTime();
+            if (progress != null && now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                double perSecond = (this.transactions - txsAtLastReport) * 1e9 / (now - lastReport);
+                progress.printf("%d transactions in %d epochs, %.0f tx/s%n", this.transactions, epochs, perSecond);
+                lastReport = now;
+                txsAtLastReport = this.transactions;
+            }
+        }
+
+        void end() {
+            nanos = System.nanoTime() - start;
+        }
+
+        /** @return the transactions handled per second over the whole replay */
+        public double transactionsPerSecond() {
+            return nanos == 0 ? 0 : transactions * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d transactions, %d accepted, in %d epochs and %.3f s: %.0f tx/s sustained",
+                    transactions, accepted, epochs, nanos / 1e9, transactionsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Public ledger split into {@link LedgerShard shards} by transaction hash prefix: the coins of the
+ * transaction {@code h} live in shard {@link #shardOf shardOf(h, n)}, each shard with a pool and a
+ * {@link TxHandler} of its own, so the epochs of different shards run on different cores and keep
+ * their coins apart.
+ * <p>
+ * An epoch is handled in rounds. In each round the pending transactions whose inputs all fall in one
+ * shard are handed to that shard, all shards at the same time, and the coins they create for other
+ * shards are credited there. Then the transactions spending coins of several shards are coordinated
+ * with two phases, in parallel, the first one proposed going first when they spend the same coin:
+ * their coins are {@link LedgerShard#prepare prepared} shard by shard in shard order, which locks
+ * them, the ledger checks the transaction like {@link TxHandler#isValidTx} over the outputs the
+ * shards returned, and the shards {@link LedgerShard#commit commit} or {@link LedgerShard#abort
+ * abort} it. A transaction that
+ * spends a coin another one of the round spends first is pending in the next round, as is one that
+ * was rejected while a coin it spends was created in the round or may still be created by a pending
+ * transaction; the epoch ends when no transaction is.
+ * <p>
+ * Like a handler, the ledger must be used by one thread at a time.
+ */
+public class ShardedLedger {
+
+    private enum Outcome { ACCEPTED, REJECTED, LOCKED }
+
+    private final LedgerShard[] shards;
+    private final ForkJoinPool executor;
+    private final AtomicLong nextTxId = new AtomicLong();
+
+    /** Creates a ledger of {@code shards} shards over a copy of {@code utxoPool} */
+    public ShardedLedger(UTXOPool utxoPool, int shards) {
+        this(utxoPool, shards, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a ledger like {@link #ShardedLedger(UTXOPool, int)} running its shards and verifying
+     * their signatures on {@code executor}.
+     */
+    public ShardedLedger(UTXOPool utxoPool, int shards, ForkJoinPool executor) {
+        if (shards < 1) throw new IllegalArgumentException("A ledger needs at least one shard");
+        UTXOPool[] pools = new UTXOPool[shards];
+        for (int s = 0; s < shards; s++) {
+            pools[s] = new UTXOPool();
+        }
+        for (UTXO utxo : utxoPool.getAllUTXO()) {
+            pools[shardOf(utxo.getTxHash(), shards)].addUTXO(utxo, utxoPool.getTxOutput(utxo));
+        }
+        this.shards = new LedgerShard[shards];
+        for (int s = 0; s < shards; s++) {
+            this.shards[s] = new LedgerShard(s, shards, pools[s], executor);
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * @return the shard of the coins of transaction {@code txHash}, from the first two bytes of the
+     *         hash, so that shards split the hashes in ranges of prefixes
+     */
+    public static int shardOf(byte[] txHash, int shards) {
+        if (txHash == null) return 0;
+        int prefix = (txHash.length > 0 ? (txHash[0] & 0xff) << 8 : 0) | (txHash.length > 1 ? txHash[1] & 0xff : 0);
+        return (int) ((long) prefix * shards >>> 16);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public LedgerShard getShard(int shard) {
+        return shards[shard];
+    }
+
+    /** @return a new pool with the coins of all the shards */
+    public UTXOPool getUnspentCoins() {
+        UTXOPool all = new UTXOPool();
+        for (LedgerShard shard : shards) {
+            UTXOPool pool = shard.getUnspentCoins();
+            for (UTXO utxo : pool.getAllUTXO()) {
+                all.addUTXO(utxo, pool.getTxOutput(utxo));
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Handles an epoch like {@link TxHandler#handleTxs(Transaction[])}, over the shards.
+     *
+     * @return the accepted transactions, in the order they were proposed
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        IdentityHashMap<Transaction, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            positions.putIfAbsent(possibleTxs[i], i);
+        }
+        boolean[] accepted = new boolean[possibleTxs.length];
+        List<Transaction> pending = new ArrayList<>(positions.keySet());
+        pending.sort(Comparator.comparing(positions::get));
+
+        while (!pending.isEmpty()) {
+            List<List<Transaction>> local = new ArrayList<>();
+            for (int s = 0; s < shards.length; s++) {
+                local.add(new ArrayList<>());
+            }
+            List<Transaction> crossShard = new ArrayList<>();
+            for (Transaction tx : pending) {
+                int shard = singleShard(tx);
+                if (shard < 0) crossShard.add(tx);
+                else local.get(shard).add(tx);
+            }
+
+            Set<Transaction> performed = Collections.newSetFromMap(new IdentityHashMap<>());
+            performed.addAll(handleLocal(local));
+            Set<Transaction> retried = Collections.newSetFromMap(new IdentityHashMap<>());
+            Set<UTXO> claimed = new HashSet<>();
+            List<Transaction> transferred = new ArrayList<>();
+            List<ForkJoinTask<Outcome>> transfers = new ArrayList<>();
+            for (Transaction tx : crossShard) {
+                if (!claim(tx, claimed)) {
+                    retried.add(tx);
+                    continue;
+                }
+                long txId = nextTxId.getAndIncrement();
+                transferred.add(tx);
+                transfers.add(executor.submit(() -> transfer(txId, tx)));
+            }
+            for (int i = 0; i < transfers.size(); i++) {
+                Outcome outcome = transfers.get(i).join();
+                if (outcome == Outcome.ACCEPTED) performed.add(transferred.get(i));
+                else if (outcome == Outcome.LOCKED) retried.add(transferred.get(i));
+            }
+            if (performed.isEmpty() && retried.isEmpty()) break;
+
+            Set<ByteBuffer> created = new HashSet<>();
+            for (Transaction tx : performed) {
+                accepted[positions.get(tx)] = true;
+                if (tx.getHash() != null) created.add(ByteBuffer.wrap(tx.getHash()));
+            }
+            pending = stillPending(pending, performed, retried, created);
+        }
+
+        for (LedgerShard shard : shards) {
+            shard.endEpoch();
+        }
+        List<Transaction> result = new ArrayList<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            if (accepted[i]) result.add(possibleTxs[i]);
+        }
+        return result.toArray(new Transaction[0]);
+    }
+
+    /** @return the shard of all the coins {@code tx} spends, or -1 if they are in several */
+    private int singleShard(Transaction tx) {
+        if (tx.numInputs() == 0) return shardOf(tx.getHash(), shards.length);
+        int shard = shardOf(tx.getInput(0).prevTxHash, shards.length);
+        for (int i = 1; i < tx.numInputs(); i++) {
+            if (shardOf(tx.getInput(i).prevTxHash, shards.length) != shard) return -1;
+        }
+        return shard;
+    }
+
+    /**
+     * Claims the coins of {@code tx} for this round, so that no two transfers of a round contend for
+     * a coin and the first one proposed goes first.
+     *
+     * @return false, claiming nothing, if another transfer of the round claimed one of them
+     */
+    private static boolean claim(Transaction tx, Set<UTXO> claimed) {
+        List<UTXO> coins = new ArrayList<>();
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.prevTxHash == null) continue;
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (claimed.contains(utxo)) return false;
+            coins.add(utxo);
+        }
+        claimed.addAll(coins);
+        return true;
+    }
+
+    /**
+     * @return the transactions of {@code pending} that were not performed and are retried or spend
+     *         coins created in the round, or created by another transaction still pending, which
+     *         may be performed in a later round
+     */
+    private static List<Transaction> stillPending(List<Transaction> pending, Set<Transaction> performed,
+                                                  Set<Transaction> retried, Set<ByteBuffer> created) {
+        Set<Transaction> next = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<ByteBuffer> awaited = new HashSet<>(created);
+        for (Transaction tx : retried) {
+            next.add(tx);
+            if (tx.getHash() != null) awaited.add(ByteBuffer.wrap(tx.getHash()));
+        }
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Transaction tx : pending) {
+                if (performed.contains(tx) || next.contains(tx) || !spendsAny(tx, awaited)) continue;
+                next.add(tx);
+                if (tx.getHash() != null) awaited.add(ByteBuffer.wrap(tx.getHash()));
+                grown = true;
+            }
+        }
+        List<Transaction> result = new ArrayList<>();
+        for (Transaction tx : pending) {
+            if (next.contains(tx)) result.add(tx);
+        }
+        return result;
+    }
+
+    private static boolean spendsAny(Transaction tx, Set<ByteBuffer> txHashes) {
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.prevTxHash != null && txHashes.contains(ByteBuffer.wrap(input.prevTxHash))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the epochs of all shards at the same time and, once they are all over, credits the coins
+     * each one created for the others, so no shard sees them before the next round.
+     *
+     * @return the transactions the shards accepted
+     */
+    private List<Transaction> handleLocal(List<List<Transaction>> local) {
+        List<ForkJoinTask<LedgerShard.Result>> epochs = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            LedgerShard shard = shards[s];
+            Transaction[] txs = local.get(s).toArray(new Transaction[0]);
+            epochs.add(txs.length == 0 ? null : executor.submit(() -> shard.handleTxs(txs)));
+        }
+        List<Transaction> performed = new ArrayList<>();
+        Map<UTXO, Transaction.Output> leaving = new HashMap<>();
+        for (ForkJoinTask<LedgerShard.Result> epoch : epochs) {
+            if (epoch == null) continue;
+            LedgerShard.Result result = epoch.join();
+            performed.addAll(Arrays.asList(result.accepted));
+            leaving.putAll(result.leaving);
+        }
+        credit(leaving);
+        return performed;
+    }
+
+    /** Credits {@code coins} to the shards they belong to */
+    private void credit(Map<UTXO, Transaction.Output> coins) {
+        if (coins.isEmpty()) return;
+        List<Map<UTXO, Transaction.Output>> byShard = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            byShard.add(new HashMap<>());
+        }
+        coins.forEach((utxo, output) -> byShard.get(shardOf(utxo.getTxHash(), shards.length)).put(utxo, output));
+        for (int s = 0; s < shards.length; s++) {
+            if (!byShard.get(s).isEmpty()) shards[s].credit(byShard.get(s));
+        }
+    }
+
+    /** Spends the coins of {@code tx}, which are in several shards, with two phases */
+    private Outcome transfer(long txId, Transaction tx) {
+        Set<UTXO> distinct = new HashSet<>();
+        SortedMap<Integer, List<Integer>> inputsByShard = new TreeMap<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null || !distinct.add(new UTXO(input.prevTxHash, input.outputIndex))) {
+                return Outcome.REJECTED;
+            }
+            inputsByShard.computeIfAbsent(shardOf(input.prevTxHash, shards.length), s -> new ArrayList<>()).add(i);
+        }
+
+        Transaction.Output[] spent = new Transaction.Output[tx.numInputs()];
+        List<LedgerShard> prepared = new ArrayList<>();
+        Outcome outcome = Outcome.ACCEPTED;
+        for (Map.Entry<Integer, List<Integer>> entry : inputsByShard.entrySet()) {
+            List<UTXO> utxos = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                utxos.add(new UTXO(tx.getInput(i).prevTxHash, tx.getInput(i).outputIndex));
+            }
+            LedgerShard shard = shards[entry.getKey()];
+            LedgerShard.Vote vote = shard.prepare(txId, utxos);
+            if (vote.status != LedgerShard.Status.PREPARED) {
+                outcome = vote.status == LedgerShard.Status.LOCKED ? Outcome.LOCKED : Outcome.REJECTED;
+                break;
+            }
+            prepared.add(shard);
+            for (int k = 0; k < utxos.size(); k++) {
+                spent[entry.getValue().get(k)] = vote.outputs[k];
+            }
+        }
+        if (outcome == Outcome.ACCEPTED && !isValid(tx, spent)) outcome = Outcome.REJECTED;
+
+        for (LedgerShard shard : prepared) {
+            if (outcome == Outcome.ACCEPTED) shard.commit(txId);
+            else shard.abort(txId);
+        }
+        if (outcome == Outcome.ACCEPTED) {
+            Map<UTXO, Transaction.Output> created = new HashMap<>();
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                created.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+            credit(created);
+        }
+        return outcome;
+    }
+
+    /** @return true if {@code tx} spending {@code spent} passes the checks of {@link TxHandler#isValidTx} */
+    private static boolean isValid(Transaction tx, Transaction.Output[] spent) {
+        double inputSum = 0;
+        for (int i = 0; i < spent.length; i++) {
+            Transaction.Output output = spent[i];
+            if (output == null) return false;
+            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(i), tx.getInput(i).signature)) return false;
+            inputSum += output.value;
+        }
+        double outputSum = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0) return false;
+            outputSum += output.value;
+        }
+        return inputSum >= outputSum;
+    }
+}
@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Signatures of every input of an epoch, verified exactly once and in parallel before the epoch is
+ * resolved. The key of an input is taken from the pool, or from the output of another transaction
+ * of the same epoch if the input spends one; an input whose key can be found in neither is
+ * invalid. Results are looked up by transaction identity, so only the instances passed to
+ * {@link #verify} are known to the batch. Signatures found in the optional {@link SignatureCache}
+ * are not verified again, and newly verified ones are added to it. All inputs of one transaction are verified by the same
+ * task, since the data to sign cached on a transaction is not safe to build from several threads.
+ */
+public class SignatureBatch {
+
+    /** Transactions verified by a single task before it stops splitting */
+    private static final int TXS_PER_TASK = 4;
+
+    private final Map<Transaction, boolean[]> results;
+
+    private SignatureBatch(Map<Transaction, boolean[]> results) {
+        this.results = results;
+    }
+
+    /** Verifies all inputs of {@code txs} on {@code executor} and waits for the results */
+    public static SignatureBatch verify(Transaction[] txs, UTXOPool pool, ForkJoinPool executor) {
+        return verify(txs, pool, executor, null);
+    }
+
+    /**
+     * Verifies all inputs of {@code txs} on {@code executor} and waits for the results, skipping
+     * signatures already in {@code cache} unless it is null
+     */
+    public static SignatureBatch verify(Transaction[] txs, UTXOPool pool, ForkJoinPool executor, SignatureCache cache) {
+        return verify(txs, pool, new Transaction[0], executor, cache);
+    }
+
+    /**
+     * Verifies all inputs of {@code txs} like {@link #verify(Transaction[], UTXOPool, ForkJoinPool,
+     * SignatureCache)}, also taking keys from the outputs of {@code pending}, transactions of earlier
+     * epochs that may not be in {@code pool} yet. Meant to verify an epoch ahead of the pool it will
+     * be resolved over, for {@code cache}.
+     */
+    public static SignatureBatch verify(Transaction[] txs, UTXOPool pool, Transaction[] pending,
+                                        ForkJoinPool executor, SignatureCache cache) {
+        Map<ByteBuffer, Transaction> earlier = new HashMap<>();
+        for (Transaction tx : pending) {
+            if (tx.getHash() != null) earlier.putIfAbsent(ByteBuffer.wrap(tx.getHash()), tx);
+        }
+        return verify(txs, pool, earlier, executor, cache);
+    }
+
+    /**
+     * Verifies all inputs of {@code txs} like {@link #verify(Transaction[], UTXOPool, Transaction[],
+     * ForkJoinPool, SignatureCache)}, with the pending transactions already mapped by hash, so a
+     * caller verifying epoch after epoch keeps the map instead of building it for every epoch
+     */
+    public static SignatureBatch verify(Transaction[] txs, UTXOPool pool, Map<ByteBuffer, Transaction> pending,
+                                        ForkJoinPool executor, SignatureCache cache) {
+        Map<ByteBuffer, Transaction> epoch = new HashMap<>();
+        for (Transaction tx : txs) {
+            if (tx.getHash() != null) epoch.putIfAbsent(ByteBuffer.wrap(tx.getHash()), tx);
+        }
+
+        boolean[][] valid = new boolean[txs.length][];
+        executor.invoke(new VerifyTask(txs, valid, 0, txs.length, pool, epoch, pending, cache));
+
+        Map<Transaction, boolean[]> results = new IdentityHashMap<>(txs.length);
+        for (int i = 0; i < txs.length; i++) {
+            results.put(txs[i], valid[i]);
+        }
+        return new SignatureBatch(results);
+    }
+
+    /** @return true if the signatures of {@code tx} were verified by this batch */
+    public boolean contains(Transaction tx) {
+        return results.containsKey(tx);
+    }
+
+    /** @return true if every input signature of {@code tx} was verified as valid by this batch */
+    public boolean allValid(Transaction tx) {
+        boolean[] valid = results.get(tx);
+        if (valid == null) return false;
+        for (boolean v : valid) {
+            if (!v) return false;
+        }
+        return true;
+    }
+
+    /** @return true if the signature of input {@code index} of {@code tx} is valid */
+    public boolean isValid(Transaction tx, int index) {
+        boolean[] valid = results.get(tx);
+        return valid != null && index < valid.length && valid[index];
+    }
+
+    static Transaction.Output spentOutput(Transaction.Input input, UTXOPool pool, Map<ByteBuffer, Transaction> epoch,
+                                          Map<ByteBuffer, Transaction> pending) {
+        if (input.prevTxHash == null) return null;
+        Transaction.Output output = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+        if (output != null) return output;
+        ByteBuffer prevTxHash = ByteBuffer.wrap(input.prevTxHash);
+        Transaction parent = epoch.get(prevTxHash);
+        if (parent == null) parent = pending.get(prevTxHash);
+        return parent == null || input.outputIndex < 0 ? null : parent.getOutput(input.outputIndex);
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaction[] txs;
+        private final boolean[][] valid;
+        private final int from;
+        private final int to;
+        private final UTXOPool pool;
+        private final Map<ByteBuffer, Transaction> epoch;
+        private final Map<ByteBuffer, Transaction> pending;
+        private final SignatureCache cache;
+
+        VerifyTask(Transaction[] txs, boolean[][] valid, int from, int to,
+                   UTXOPool pool, Map<ByteBuffer, Transaction> epoch, Map<ByteBuffer, Transaction> pending,
+                   SignatureCache cache) {
+            this.txs = txs;
+            this.valid = valid;
+            this.from = from;
+            this.to = to;
+            this.pool = pool;
+            this.epoch = epoch;
+            this.pending = pending;
+            this.cache = cache;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TXS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyTask(txs, valid, from, middle, pool, epoch, pending, cache),
+                        new VerifyTask(txs, valid, middle, to, pool, epoch, pending, cache));
+                return;
+            }
+            for (int t = from; t < to; t++) {
+                Transaction tx = txs[t];
+                boolean[] inputs = new boolean[tx.numInputs()];
+                for (int i = 0; i < inputs.length; i++) {
+                    Transaction.Input input = tx.getInput(i);
+                    Transaction.Output output = spentOutput(input, pool, epoch, pending);
+                    inputs[i] = output != null && output.address != null && input.signature != null &&
+                            verify(tx, i, output.address, input.signature);
+                }
+                valid[t] = inputs;
+            }
+        }
+
+        private boolean verify(Transaction tx, int index, PublicKey key, byte[] signature) {
+            byte[] message = tx.getRawDataToSign(index);
+            return cache == null ? Crypto.verifySignature(key, message, signature)
+                    : cache.verify(tx.getHash(), index, key, message, signature);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of input signatures already verified as valid, so that transactions resubmitted
+ * in later epochs skip the RSA work. Entries are keyed by (tx hash, input index, signer key) and
+ * evicted in least recently used order once their estimated size exceeds the capacity in bytes.
+ * <p>
+ * The hash of a transaction is whatever the transaction claims it to be, so an entry also keeps a
+ * digest of the data signed and the signature itself, and only hits when both are the ones that
+ * were verified. Invalid signatures are never cached. The cache is safe to share between threads
+ * and between handlers.
+ */
+public class SignatureCache {
+
+    /** Capacity of the cache a handler creates when it is not given one */
+    public static final long DEFAULT_CAPACITY_BYTES = 32L << 20;
+
+    /** Rough heap footprint of an entry besides its arrays: map node, key, value and headers */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final long capacityBytes;
+    private final LinkedHashMap<Key, Verified> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Creates a cache holding at most about {@code capacityBytes} bytes of entries */
+    public SignatureCache(long capacityBytes) {
+        if (capacityBytes < 0) throw new IllegalArgumentException("Negative capacity " + capacityBytes);
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message}, the data signed
+     *         by input {@code index} of the transaction with hash {@code txHash}, under
+     *         {@code pubKey}. The signature is only verified if it is not cached already
+     */
+    public boolean verify(byte[] txHash, int index, PublicKey pubKey, byte[] message, byte[] signature) {
+        if (txHash == null) {
+            misses.increment();
+            return Crypto.verifySignature(pubKey, message, signature);
+        }
+        Key key = new Key(txHash, index, pubKey);
+        byte[] digest = SHA256.get().digest(message);
+        Verified verified;
+        synchronized (this) {
+            verified = entries.get(key);
+        }
+        if (verified != null && Arrays.equals(verified.digest, digest) && Arrays.equals(verified.signature, signature)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        if (!Crypto.verifySignature(pubKey, message, signature)) return false;
+        put(key, new Verified(digest, signature.clone()));
+        return true;
+    }
+
+    private synchronized void put(Key key, Verified verified) {
+        long size = sizeOf(key, verified);
+        if (size > capacityBytes) return;
+        Verified previous = entries.put(key, verified);
+        if (previous != null) sizeBytes -= sizeOf(key, previous);
+        sizeBytes += size;
+        Iterator<Map.Entry<Key, Verified>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > capacityBytes && eldest.hasNext()) {
+            Map.Entry<Key, Verified> entry = eldest.next();
+            sizeBytes -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long sizeOf(Key key, Verified verified) {
+        return ENTRY_OVERHEAD + key.txHash.length + verified.digest.length + verified.signature.length;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the estimated size of the cached entries in bytes */
+    public synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    public long capacityBytes() {
+        return capacityBytes;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private static class Key {
+        private final byte[] txHash;
+        private final int index;
+        private final PublicKey signer;
+        private final int hash;
+
+        Key(byte[] txHash, int index, PublicKey signer) {
+            this.txHash = txHash.clone();
+            this.index = index;
+            this.signer = signer;
+            this.hash = (Arrays.hashCode(txHash) * 31 + index) * 31 + signer.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hash == that.hash && index == that.index &&
+                    Arrays.equals(txHash, that.txHash) && signer.equals(that.signer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Verified {
+        private final byte[] digest;
+        private final byte[] signature;
+
+        Verified(byte[] digest, byte[] signature) {
+            this.digest = digest;
+            this.signature = signature;
+        }
+    }
+}
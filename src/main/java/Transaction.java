@@ -7,8 +7,19 @@ import java.security.PublicKey;
 
 public class Transaction {
 
+    /** transactions below which {@link #computeHashes} hashes on the calling thread only */
+    private static final int PARALLEL_HASHES = 64;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     public class Input {
-        /** hash of the Transaction whose output is being used */
+        /** hash of the Transaction whose output is being used, shared with the caller and not to be modified */
         public byte[] prevTxHash;
         /** used output's index in the previous transaction */
         public int outputIndex;
@@ -16,10 +27,7 @@ public class Transaction {
         public byte[] signature;
 
         public Input(byte[] prevHash, int index) {
-            if (prevHash == null)
-                prevTxHash = null;
-            else
-                prevTxHash = Arrays.copyOf(prevHash, prevHash.length);
+            prevTxHash = prevHash;
             outputIndex = index;
         }
 
@@ -37,10 +45,24 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** encoding of {@code encodedAddress}, kept until {@code address} is replaced */
+        private PublicKey encodedAddress;
+        private byte[] addressBytes;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return the encoded form of {@code address}, the returned array must not be modified */
+        public byte[] getEncodedAddress() {
+            PublicKey addr = address;
+            if (addr != encodedAddress) {
+                addressBytes = addr.getEncoded();
+                encodedAddress = addr;
+            }
+            return addressBytes;
+        }
     }
 
     /** hash of the transaction, its unique id */
@@ -48,6 +70,14 @@ public class Transaction {
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
 
+    /**
+     * Serialized outputs and per input data to sign, built on first use and dropped whenever an
+     * input or an output is added or removed. Fields of inputs and outputs changed directly
+     * instead of through this class are not noticed.
+     */
+    private byte[] rawOutputs;
+    private byte[][] rawDataToSign;
+
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -62,59 +92,81 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        invalidateRawData();
     }
 
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        invalidateRawData();
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        invalidateRawData();
     }
 
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.matches(in.prevTxHash, in.outputIndex)) {
                 inputs.remove(i);
+                invalidateRawData();
                 return;
             }
         }
     }
 
+    /**
+     * @return the data signed by input {@code index}: its outpoint and all outputs, or null if
+     *         there is no such input. The array is cached and must not be modified
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
-        if (index > inputs.size())
+        if (index < 0 || index >= inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
+        byte[][] cached = rawDataToSign;
+        if (cached == null || cached.length != inputs.size()) {
+            cached = new byte[inputs.size()][];
+            rawDataToSign = cached;
+        }
+        byte[] sigData = cached[index];
+        if (sigData == null) {
+            Input in = inputs.get(index);
+            byte[] outs = getRawOutputs();
+            int hashLength = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+            sigData = new byte[hashLength + Integer.BYTES + outs.length];
+            ByteBuffer b = ByteBuffer.wrap(sigData);
+            if (in.prevTxHash != null)
+                b.put(in.prevTxHash);
+            b.putInt(in.outputIndex);
+            b.put(outs);
+            cached[index] = sigData;
+        }
+        return sigData;
+    }
+
+    /** @return values and encoded addresses of all outputs, shared by the signed data and the raw tx */
+    private byte[] getRawOutputs() {
+        byte[] raw = rawOutputs;
+        if (raw == null) {
+            int length = 0;
+            for (Output op : outputs)
+                length += Double.BYTES + op.getEncodedAddress().length;
+            ByteBuffer b = ByteBuffer.allocate(length);
+            for (Output op : outputs) {
+                b.putDouble(op.value);
+                b.put(op.getEncodedAddress());
+            }
+            raw = b.array();
+            rawOutputs = raw;
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        return raw;
+    }
+
+    private void invalidateRawData() {
+        rawOutputs = null;
+        rawDataToSign = null;
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -122,49 +174,58 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] outs = getRawOutputs();
+        int length = outs.length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                length += in.prevTxHash.length;
+            length += Integer.BYTES;
+            if (in.signature != null)
+                length += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        ByteBuffer rawTx = ByteBuffer.allocate(length);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
+        }
+        rawTx.put(outs);
+        return rawTx.array();
+    }
 
+    /**
+     * Sets the hash of this transaction to the SHA-256 digest of {@link #getRawTx}. The raw
+     * transaction is digested piece by piece instead of being built.
+     *
+     * @return the hash
+     */
+    public byte[] computeHash() {
+        MessageDigest md = SHA256.get();
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            md.update((byte) (in.outputIndex >>> 24));
+            md.update((byte) (in.outputIndex >>> 16));
+            md.update((byte) (in.outputIndex >>> 8));
+            md.update((byte) in.outputIndex);
+            if (in.signature != null)
+                md.update(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        md.update(getRawOutputs());
+        hash = md.digest();
+        return hash;
     }
 
-    public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /** Computes the hash of each of {@code txs}, see {@link #computeHash}, on all cores for many */
+    public static void computeHashes(Transaction[] txs) {
+        if (txs.length < PARALLEL_HASHES) {
+            for (Transaction tx : txs) {
+                tx.computeHash();
+            }
+        } else {
+            Arrays.stream(txs).parallel().forEach(Transaction::computeHash);
         }
     }
 
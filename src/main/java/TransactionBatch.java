@@ -0,0 +1,172 @@
+import java.util.Arrays;
+
+/**
+ * An epoch of proposed transactions packed into columns, for the checks that do not depend on the
+ * UTXO pool. The inputs and outputs of all the transactions are laid out one after the other:
+ * transaction {@code i} owns inputs {@code inputStart[i]} to {@code inputStart[i + 1]} and likewise
+ * for outputs, output values sit in one {@code double[]}, and the previous transaction hashes and
+ * output indexes of the inputs in one column each; the hashes are shared with the transactions,
+ * not copied.
+ * <p>
+ * Whether the outputs of each transaction are non-negative, whether its inputs are distinct and
+ * the sum of its outputs are computed once, by plain loops over the columns, when the batch is
+ * built. Handlers read them by the position of the transaction in the batch instead of walking the
+ * transaction objects every time they check it. Changing a transaction after packing it is not
+ * seen.
+ */
+public class TransactionBatch {
+
+    /** inputs per transaction up to which distinctness is checked pairwise instead of hashing */
+    private static final int PAIRWISE_INPUTS = 8;
+
+    private final Transaction[] txs;
+
+    private final int[] inputStart;
+    private final int[] outputStart;
+    private final double[] outputValues;
+
+    private final byte[][] prevTxHashes;
+    private final int[] outputIndexes;
+
+    private final double[] outputSums;
+    private final boolean[] nonNegativeOutputs;
+    private final boolean[] distinctInputs;
+
+    private TransactionBatch(Transaction[] txs) {
+        this.txs = txs;
+        int n = txs.length;
+        inputStart = new int[n + 1];
+        outputStart = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            Transaction tx = txs[i];
+            inputStart[i + 1] = inputStart[i] + tx.numInputs();
+            outputStart[i + 1] = outputStart[i] + tx.numOutputs();
+        }
+
+        int inputs = inputStart[n];
+        prevTxHashes = new byte[inputs][];
+        outputIndexes = new int[inputs];
+        outputValues = new double[outputStart[n]];
+        for (int i = 0; i < n; i++) {
+            Transaction tx = txs[i];
+            for (int j = 0; j < tx.numInputs(); j++) {
+                Transaction.Input input = tx.getInput(j);
+                int k = inputStart[i] + j;
+                prevTxHashes[k] = input.prevTxHash;
+                outputIndexes[k] = input.outputIndex;
+            }
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                outputValues[outputStart[i] + j] = tx.getOutput(j).value;
+            }
+        }
+
+        outputSums = new double[n];
+        nonNegativeOutputs = new boolean[n];
+        distinctInputs = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            boolean nonNegative = true;
+            for (int k = outputStart[i]; k < outputStart[i + 1]; k++) {
+                double value = outputValues[k];
+                sum += value;
+                nonNegative &= value >= 0;
+            }
+            outputSums[i] = sum;
+            nonNegativeOutputs[i] = nonNegative;
+            distinctInputs[i] = inputsDistinct(i);
+        }
+    }
+
+    /** @return {@code txs} packed into a batch; the array is kept, not copied */
+    public static TransactionBatch of(Transaction... txs) {
+        return new TransactionBatch(txs);
+    }
+
+    private boolean inputsDistinct(int i) {
+        int from = inputStart[i];
+        int to = inputStart[i + 1];
+        if (to - from <= PAIRWISE_INPUTS) {
+            for (int a = from; a < to; a++) {
+                for (int b = a + 1; b < to; b++) {
+                    if (sameOutpoint(a, b)) return false;
+                }
+            }
+            return true;
+        }
+        CoinIds seen = new CoinIds(to - from);
+        for (int k = from; k < to; k++) {
+            if (seen.add(prevTxHashes[k], outputIndexes[k]) < k - from) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if no two inputs of {@code tx} spend the same output, checked like the column of
+     *         a batch: pairwise for a few inputs, over the {@link CoinIds} of the inputs beyond, so
+     *         no UTXO is created either way
+     */
+    static boolean inputsDistinct(Transaction tx) {
+        int n = tx.numInputs();
+        if (n <= PAIRWISE_INPUTS) {
+            for (int a = 0; a < n; a++) {
+                Transaction.Input input = tx.getInput(a);
+                for (int b = a + 1; b < n; b++) {
+                    Transaction.Input other = tx.getInput(b);
+                    if (input.outputIndex == other.outputIndex && Arrays.equals(input.prevTxHash, other.prevTxHash)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        CoinIds seen = new CoinIds(n);
+        for (int k = 0; k < n; k++) {
+            Transaction.Input input = tx.getInput(k);
+            if (seen.add(input.prevTxHash, input.outputIndex) < k) return false;
+        }
+        return true;
+    }
+
+    private boolean sameOutpoint(int a, int b) {
+        return outputIndexes[a] == outputIndexes[b] && Arrays.equals(prevTxHashes[a], prevTxHashes[b]);
+    }
+
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return the transactions of the batch, the array must not be modified */
+    public Transaction[] transactions() {
+        return txs;
+    }
+
+    public Transaction transaction(int i) {
+        return txs[i];
+    }
+
+    public int numInputs(int i) {
+        return inputStart[i + 1] - inputStart[i];
+    }
+
+    public int numOutputs(int i) {
+        return outputStart[i + 1] - outputStart[i];
+    }
+
+    public double outputValue(int i, int output) {
+        return outputValues[outputStart[i] + output];
+    }
+
+    /** @return the sum of the output values of transaction {@code i} */
+    public double outputSum(int i) {
+        return outputSums[i];
+    }
+
+    public boolean hasNonNegativeOutputs(int i) {
+        return nonNegativeOutputs[i];
+    }
+
+    /** @return true if no two inputs of transaction {@code i} claim the same output */
+    public boolean hasDistinctInputs(int i) {
+        return distinctInputs[i];
+    }
+}
@@ -0,0 +1,169 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Compact binary wire format of a {@link Transaction}. Counts, lengths and output indexes are
+ * unsigned LEB128 varints, byte arrays are prefixed by their length plus one so that a null array
+ * (length prefix 0) survives the round trip, and values are 8 byte big endian doubles:
+ * <pre>
+ * hash
+ * inputCount  { prevTxHash outputIndex signature }
+ * outputCount { value address }
+ * </pre>
+ * Addresses are X.509 encoded RSA public keys, decoded through {@link Crypto#decodePublicKey}.
+ * Encoding writes straight into the caller's buffer and allocates nothing once the addresses of
+ * the outputs have been encoded.
+ */
+public class TransactionCodec {
+
+    private TransactionCodec() {
+    }
+
+    /** @return the number of bytes {@link #encode} writes for {@code tx} */
+    public static int encodedLength(Transaction tx) {
+        int length = arrayLength(tx.getHash()) + varIntLength(tx.numInputs()) + varIntLength(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            length += arrayLength(in.prevTxHash) + varIntLength(in.outputIndex) + arrayLength(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            length += Double.BYTES + arrayLength(op.getEncodedAddress());
+        }
+        return length;
+    }
+
+    /**
+     * Writes {@code tx} at the position of {@code buffer} and advances it.
+     *
+     * @throws BufferOverflowException if fewer than {@link #encodedLength} bytes remain
+     */
+    public static void encode(Transaction tx, ByteBuffer buffer) {
+        putArray(buffer, tx.getHash());
+        putVarInt(buffer, tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putArray(buffer, in.prevTxHash);
+            putVarInt(buffer, in.outputIndex);
+            putArray(buffer, in.signature);
+        }
+        putVarInt(buffer, tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            buffer.putDouble(op.value);
+            putArray(buffer, op.getEncodedAddress());
+        }
+    }
+
+    /** @return {@code tx} encoded into a new array */
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(tx));
+        encode(tx, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Reads one transaction from the position of {@code buffer} and advances past it.
+     *
+     * @throws IllegalArgumentException if the bytes are not a well formed transaction
+     */
+    public static Transaction decode(ByteBuffer buffer) {
+        return decode(buffer, null);
+    }
+
+    /**
+     * Reads one transaction like {@link #decode(ByteBuffer)}, sharing its hashes with the
+     * transactions decoded before it: {@code hashes} maps every hash met so far to the array kept
+     * for it, so that a decoded transaction and the inputs spending its outputs refer to one array.
+     * The caller scopes the map, to an epoch for instance; null shares nothing.
+     */
+    public static Transaction decode(ByteBuffer buffer, Map<ByteBuffer, byte[]> hashes) {
+        try {
+            Transaction tx = new Transaction();
+            tx.setHash(shared(getArray(buffer), hashes));
+            int inputs = getCount(buffer);
+            for (int i = 0; i < inputs; i++) {
+                byte[] prevTxHash = shared(getArray(buffer), hashes);
+                int outputIndex = getVarInt(buffer);
+                tx.addInput(prevTxHash, outputIndex);
+                tx.getInput(i).signature = getArray(buffer);
+            }
+            int outputs = getCount(buffer);
+            for (int i = 0; i < outputs; i++) {
+                double value = buffer.getDouble();
+                byte[] address = getArray(buffer);
+                tx.addOutput(value, address == null ? null : Crypto.decodePublicKey(address));
+            }
+            return tx;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated transaction", e);
+        }
+    }
+
+    /** @return {@code tx} decoded from {@code bytes} */
+    public static Transaction decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /** @return the array kept in {@code hashes} for {@code hash}, which is kept if it is the first */
+    private static byte[] shared(byte[] hash, Map<ByteBuffer, byte[]> hashes) {
+        if (hash == null || hashes == null) return hash;
+        byte[] known = hashes.putIfAbsent(ByteBuffer.wrap(hash), hash);
+        return known != null ? known : hash;
+    }
+
+    private static int arrayLength(byte[] array) {
+        return array == null ? 1 : varIntLength(array.length + 1) + array.length;
+    }
+
+    private static void putArray(ByteBuffer buffer, byte[] array) {
+        if (array == null) {
+            putVarInt(buffer, 0);
+        } else {
+            putVarInt(buffer, array.length + 1);
+            buffer.put(array);
+        }
+    }
+
+    private static byte[] getArray(ByteBuffer buffer) {
+        int length = getCount(buffer) - 1;
+        if (length < 0) return null;
+        if (length > buffer.remaining()) throw new IllegalArgumentException("Truncated transaction");
+        byte[] array = new byte[length];
+        buffer.get(array);
+        return array;
+    }
+
+    /** @return a varint that is used as a size, so it can be neither negative nor past the buffer */
+    private static int getCount(ByteBuffer buffer) {
+        int count = getVarInt(buffer);
+        if (count < 0 || count > buffer.remaining() + 1)
+            throw new IllegalArgumentException("Malformed length " + (count & 0xFFFFFFFFL));
+        return count;
+    }
+
+    static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
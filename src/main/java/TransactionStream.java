@@ -0,0 +1,247 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Length prefixed binary stream of transactions, for logs replayed from files and for feeds over
+ * local sockets. A stream starts with the {@link #MAGIC} bytes and a version byte, then every
+ * frame is a 4 byte big endian length followed by that many bytes of a transaction in the format of
+ * {@link TransactionCodec}, at most {@link #MAX_FRAME_BYTES} long. A frame of length 0 ends an epoch:
+ * <pre>
+ * "SCTX" version { length transaction | 0 }
+ * </pre>
+ * The {@link Reader} decodes frames straight from its buffer into transactions, without copying
+ * them: a file is read through windows of it mapped in memory, any other channel through one
+ * direct buffer that is refilled as frames are consumed.
+ */
+public class TransactionStream {
+
+    public static final byte[] MAGIC = {'S', 'C', 'T', 'X'};
+    public static final byte VERSION = 1;
+    /** longest frame written or read, so a corrupt or hostile length cannot make a reader allocate it */
+    public static final int MAX_FRAME_BYTES = 16 << 20;
+
+    /** bytes of a file mapped at a time, frames are never split across two windows */
+    private static final int WINDOW_BYTES = 64 << 20;
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int END_OF_EPOCH = 0;
+
+    private TransactionStream() {
+    }
+
+    /** Writes transactions and the ends of their epochs to a channel, through a direct buffer */
+    public static class Writer implements Closeable {
+        private final WritableByteChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private long transactions;
+
+        public Writer(WritableByteChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.put(MAGIC).put(VERSION);
+        }
+
+        /** @return a writer of a new stream in {@code file}, replacing what the file held */
+        public static Writer create(Path file) throws IOException {
+            return new Writer(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING));
+        }
+
+        public void write(Transaction tx) throws IOException {
+            int length = TransactionCodec.encodedLength(tx);
+            if (length > MAX_FRAME_BYTES) throw new IOException("Transaction of " + length + " bytes exceeds the frame size");
+            reserve(Integer.BYTES + length);
+            buffer.putInt(length);
+            TransactionCodec.encode(tx, buffer);
+            transactions++;
+        }
+
+        /** Ends the epoch of the transactions written since the previous end */
+        public void endEpoch() throws IOException {
+            reserve(Integer.BYTES);
+            buffer.putInt(END_OF_EPOCH);
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            flush();
+            if (buffer.capacity() < bytes) buffer = ByteBuffer.allocateDirect(bytes);
+        }
+
+        /** Writes the buffered frames to the channel */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a stream frame by frame. Transactions are decoded from the mapped or buffered bytes
+     * directly, and a stream that ends within a frame fails with an {@link EOFException} once the
+     * frames before it have been read.
+     */
+    public static class Reader implements Closeable {
+        private final ReadableByteChannel channel;
+        /** the file when it is mapped, null when reading the channel into a buffer */
+        private final FileChannel file;
+        private ByteBuffer buffer;
+        /** position in the file of the start of the mapped window */
+        private long windowStart;
+        private long transactions;
+
+        /** Reads the stream of {@code channel} through a direct buffer */
+        public Reader(ReadableByteChannel channel) throws IOException {
+            this(channel, null);
+        }
+
+        private Reader(ReadableByteChannel channel, FileChannel file) throws IOException {
+            this.channel = channel;
+            this.file = file;
+            buffer = file != null ? ByteBuffer.allocate(0) : (ByteBuffer) ByteBuffer.allocateDirect(BUFFER_BYTES).flip();
+            readHeader();
+        }
+
+        /** @return a reader of the stream in {@code file}, mapping it into memory window by window */
+        public static Reader open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                return new Reader(channel, channel);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void readHeader() throws IOException {
+            if (!fill(MAGIC.length + 1)) throw new EOFException("Missing stream header");
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) throw new IOException("Not a transaction stream");
+            }
+            byte version = buffer.get();
+            if (version != VERSION) throw new IOException("Unsupported stream version " + version);
+        }
+
+        /**
+         * @return the next transaction, skipping the ends of epochs, or null at the end of the
+         *         stream
+         */
+        public Transaction next() throws IOException {
+            Transaction tx;
+            do {
+                if (!fill(Integer.BYTES)) return null;
+                tx = frame(buffer.getInt(), null);
+            } while (tx == null);
+            return tx;
+        }
+
+        /**
+         * @return the transactions up to the end of the current epoch, or only the first
+         *         {@code maxTxs} of them, the rest coming with the next call; empty epochs are
+         *         skipped, and null is returned at the end of the stream. The transactions returned
+         *         together share their hashes, see {@link TransactionCodec#decode(ByteBuffer, Map)}
+         */
+        public Transaction[] nextEpoch(int maxTxs) throws IOException {
+            List<Transaction> epoch = new ArrayList<>();
+            Map<ByteBuffer, byte[]> hashes = new HashMap<>();
+            while (epoch.size() < maxTxs) {
+                if (!fill(Integer.BYTES)) {
+                    if (epoch.isEmpty()) return null;
+                    break;
+                }
+                Transaction tx = frame(buffer.getInt(), hashes);
+                if (tx != null) epoch.add(tx);
+                else if (!epoch.isEmpty()) break;
+            }
+            return epoch.toArray(new Transaction[0]);
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * @return the transaction of a frame of {@code length} bytes, or null for an end of epoch,
+         *         sharing the {@code hashes} of the transactions read before it
+         */
+        private Transaction frame(int length, Map<ByteBuffer, byte[]> hashes) throws IOException {
+            if (length == END_OF_EPOCH) return null;
+            if (length < 0 || length > MAX_FRAME_BYTES) throw new IOException("Malformed frame length " + length);
+            if (!fill(length)) throw new EOFException("Stream ends within a frame");
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            Transaction tx = TransactionCodec.decode(frame, hashes);
+            if (frame.hasRemaining()) throw new IOException("Frame longer than its transaction");
+            buffer.position(buffer.position() + length);
+            transactions++;
+            return tx;
+        }
+
+        /**
+         * Makes at least {@code bytes} bytes available in the buffer from its position.
+         *
+         * @return false if the stream ends first; throws if it ends within the bytes
+         */
+        private boolean fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return true;
+            if (file != null) {
+                long position = windowStart + buffer.position();
+                long size = Math.min(Math.max(WINDOW_BYTES, bytes), file.size() - position);
+                if (size < bytes) return fail(size == 0);
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+                windowStart = position;
+                return true;
+            }
+            if (buffer.capacity() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    buffer.flip();
+                    return fail(!buffer.hasRemaining());
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+
+        /** @return false if the stream ended cleanly, between two frames */
+        private static boolean fail(boolean atBoundary) throws EOFException {
+            if (!atBoundary) throw new EOFException("Stream ends within a frame");
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,11 +1,25 @@
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public class TxHandler {
 
+    /** ready transactions below which a round of {@link #handleTxsInOrder} is decided on one thread */
+    private static final int PARALLEL_ROUND = 8;
+
     private UTXOPool unspentCoins;
     protected TransactionVerificator verificator;
+    private final ForkJoinPool verificationPool;
+    private final SignatureCache signatureCache;
+    private EpochMetrics metrics = EpochMetrics.disabled();
+    /** signatures of the epoch being handled, verified up front; null outside of handleTxs */
+    private SignatureBatch signatures;
+    /** columns of the epoch being handled; null outside of handleTxs */
+    private TransactionBatch batch;
+    /** walks of {@link #countReachable} so far, each marking the nodes it reaches with its number */
+    private int walks;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,14 +27,60 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
-        unspentCoins = new UTXOPool(utxoPool);
+        this(utxoPool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool)} whose epochs verify their signatures on
+     * {@code verificationPool}.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool) {
+        this(utxoPool, verificationPool, new SignatureCache(SignatureCache.DEFAULT_CAPACITY_BYTES));
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool, ForkJoinPool)} that remembers valid
+     * signatures across epochs in {@code signatureCache}, which may be shared with other handlers.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool, SignatureCache signatureCache) {
+        this(utxoPool, verificationPool, signatureCache, false);
+    }
+
+    private TxHandler(UTXOPool utxoPool, ForkJoinPool verificationPool, SignatureCache signatureCache, boolean adopt) {
+        unspentCoins = adopt ? utxoPool : new UTXOPool(utxoPool);
         verificator = new TransactionVerificator();
+        this.verificationPool = verificationPool;
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * @return a public ledger like {@link #TxHandler(UTXOPool)} that keeps using {@code utxoPool}
+     *         instead of a copy, so its epochs are committed to the store of the pool, such as a
+     *         {@link DurableUTXOStore} that cannot be copied; the caller must not change the pool
+     *         afterwards
+     */
+    public static TxHandler adopting(UTXOPool utxoPool) {
+        return new TxHandler(utxoPool, ForkJoinPool.commonPool(),
+                new SignatureCache(SignatureCache.DEFAULT_CAPACITY_BYTES), true);
     }
 
     public UTXOPool getUnspentCoins() {
         return unspentCoins;
     }
 
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    public EpochMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Records the phases and checks of the epochs in {@code metrics}, which may be shared */
+    public void setMetrics(EpochMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -31,70 +91,273 @@ public class TxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        return verificator.allTxInputsInPool(tx) &&
-                verificator.allTxSignsCorrect(tx) &&
-                verificator.allTxInputsDifferent(tx) &&
-                verificator.allOutputsAreNonNegative(tx) &&
-                verificator.inputsGreaterOrEqualOutputs(tx);
+        return isValidTx(tx, -1);
+    }
+
+    /**
+     * Checks {@code tx} like {@link #isValidTx(Transaction)}, reading the checks that do not depend
+     * on the pool from the columns of the epoch being handled if {@code tx} is at {@code position}
+     * in it, or from {@code tx} itself if the position is -1.
+     */
+    private boolean isValidTx(Transaction tx, int position) {
+        if (!verificator.allTxInputsInPool(tx)) return metrics.fail(EpochMetrics.Rule.INPUTS_IN_POOL);
+        if (!verificator.allTxSignsCorrect(tx)) return metrics.fail(EpochMetrics.Rule.SIGNATURES);
+        if (!verificator.allTxInputsDifferent(tx, position)) return metrics.fail(EpochMetrics.Rule.DISTINCT_INPUTS);
+        if (!verificator.allOutputsAreNonNegative(tx, position)) return metrics.fail(EpochMetrics.Rule.NON_NEGATIVE_OUTPUTS);
+        if (!verificator.inputsGreaterOrEqualOutputs(tx, position)) return metrics.fail(EpochMetrics.Rule.INPUTS_COVER_OUTPUTS);
+        return metrics.pass();
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. The pool is committed once the epoch is
+     * resolved, see {@link UTXOPool#commit}.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        Set<Transaction> performedTxs = new HashSet<>();
-        Set<CoinNode> initialCoins = unspentCoins.getAllUTXO().stream().map(CoinNode::new).collect(Collectors.toSet());
+        long start = metrics.start();
+        TransactionBatch epoch = TransactionBatch.of(possibleTxs);
+        metrics.stop(EpochMetrics.Phase.PACK, start);
+        return handleTxs(epoch);
+    }
+
+    /**
+     * Handles the epoch of {@code epoch} like {@link #handleTxs(Transaction[])}, reading the checks
+     * that do not depend on the pool from its columns.
+     */
+    public Transaction[] handleTxs(TransactionBatch epoch) {
+        long start = metrics.start();
+        long misses = metrics.isEnabled() ? signatureCache.misses() : 0;
+        Transaction[] possibleTxs = epoch.transactions();
+        batch = epoch;
+        long phase = metrics.start();
+        signatures = SignatureBatch.verify(possibleTxs, unspentCoins, verificationPool, signatureCache);
+        metrics.stop(EpochMetrics.Phase.SIGNATURES, phase);
+        try {
+            Transaction[] accepted = resolveEpoch(possibleTxs);
+            commit(start, possibleTxs, accepted, misses);
+            return accepted;
+        } finally {
+            signatures = null;
+            batch = null;
+        }
+    }
+
+    /**
+     * Handles an epoch like {@link #handleTxs(Transaction[])}, but accepts what applying the proposed
+     * transactions one at a time, in the order they are given, would: each one is accepted if it is
+     * valid over the pool left by the ones accepted before it. When the pool is concurrent, see
+     * {@link UTXOPool#isConcurrent}, transactions that cannot affect each other are validated and
+     * applied at the same time on the verification pool, and the outcome is still the one of the
+     * sequential order.
+     */
+    public Transaction[] handleTxsInOrder(Transaction[] possibleTxs) {
+        long start = metrics.start();
+        long misses = metrics.isEnabled() ? signatureCache.misses() : 0;
+        batch = TransactionBatch.of(possibleTxs);
+        metrics.stop(EpochMetrics.Phase.PACK, start);
+        long phase = metrics.start();
+        signatures = SignatureBatch.verify(possibleTxs, unspentCoins, verificationPool, signatureCache);
+        metrics.stop(EpochMetrics.Phase.SIGNATURES, phase);
+        try {
+            phase = metrics.start();
+            OrderedEpoch ordered = new OrderedEpoch(possibleTxs);
+            metrics.stop(EpochMetrics.Phase.GRAPH, phase);
+            phase = metrics.start();
+            Transaction[] accepted = ordered.resolve(unspentCoins.isConcurrent());
+            metrics.stop(EpochMetrics.Phase.RESOLVE, phase);
+            commit(start, possibleTxs, accepted, misses);
+            return accepted;
+        } finally {
+            signatures = null;
+            batch = null;
+        }
+    }
 
+    /**
+     * Commits the pool once the epoch begun at {@code start} is resolved and records it; the
+     * signatures verified are the misses of the cache since {@code misses}.
+     */
+    private void commit(long start, Transaction[] possibleTxs, Transaction[] accepted, long misses) {
+        long phase = metrics.start();
+        unspentCoins.commit();
+        metrics.stop(EpochMetrics.Phase.COMMIT, phase);
+        metrics.stop(EpochMetrics.Phase.EPOCH, start);
+        if (!metrics.isEnabled()) return;
+        long inputs = 0;
+        for (Transaction tx : possibleTxs) {
+            inputs += tx.numInputs();
+        }
+        metrics.epoch(possibleTxs.length, accepted.length, inputs, signatureCache.misses() - misses, unspentCoins.size());
+    }
+
+    private Transaction[] resolveEpoch(Transaction[] possibleTxs) {
+        Set<Transaction> performedTxs = new HashSet<>();
         HashMap<Transaction, TxNode> txs = new HashMap<>();
-        recursiveFillTxTree(initialCoins, possibleTxs, txs);
+        long phase = metrics.start();
+        List<CoinNode> initialCoins = fillTxTree(possibleTxs, txs);
+        computeWeights(txs.values());
+        metrics.stop(EpochMetrics.Phase.GRAPH, phase);
 
-        initialCoins.forEach(c->c.execute(performedTxs));
+        phase = metrics.start();
+        execute(initialCoins, performedTxs);
+        metrics.stop(EpochMetrics.Phase.RESOLVE, phase);
         return performedTxs.toArray(new Transaction[0]);
     }
 
-    private void recursiveFillTxTree(Set<CoinNode> coinNodes, Transaction[] possibleTxs, HashMap<Transaction, TxNode> txs) {
-        Set<CoinNode> newCoins = new HashSet<>();
-        coinNodes.forEach(coinNode -> {
-            Arrays.stream(possibleTxs).forEach(tx -> {
-                tx.getInputs().forEach(input -> {
-                    if (coinNode.utxo.equals(verificator.getUtxo(input))) {
-                        TxNode txNode;
-                        if (txs.get(tx) != null) {
-                            txNode = txs.get(tx);
-                        } else {
-                            txNode = new TxNode(tx);
-                            txs.put(tx, txNode);
-                        }
-                        coinNode.txs.add(txNode);
-                        newCoins.addAll(txNode.coins);
-                    }
-                });
-            });
-        });
+    /**
+     * Walks the graph from {@code initialCoins} depth first, with an explicit stack of coins still
+     * to execute instead of recursion, so chains of dependent transactions can be arbitrarily deep.
+     * The stack only holds coins waiting for a spender, and coins are visited in the same order as
+     * a recursive walk would visit them.
+     */
+    private void execute(List<CoinNode> initialCoins, Set<Transaction> performed) {
+        Deque<CoinNode> pending = new ArrayDeque<>();
+        for (int i = initialCoins.size() - 1; i >= 0; i--) {
+            pending.push(initialCoins.get(i));
+        }
+        while (!pending.isEmpty()) {
+            TxNode txNode = pending.pop().execute();
+            if (txNode != null && txNode.performTx(performed)) {
+                for (int i = txNode.coins.size() - 1; i >= 0; i--) {
+                    pending.push(txNode.coins.get(i));
+                }
+            }
+        }
+    }
 
-        if (!newCoins.isEmpty()) {
-            recursiveFillTxTree(newCoins, possibleTxs, txs);
+    /**
+     * Builds the graph of the epoch in a single pass over its inputs. Every output of a proposed
+     * transaction becomes a CoinNode with an id in {@link CoinIds}, as does every coin of the pool
+     * that some input spends; each input then links its transaction to the coin it spends, found by
+     * its hash and index without creating a UTXO, so the cost is linear in the number of inputs and
+     * outputs. Transactions that spend coins nobody creates stay unreachable and are never
+     * performed.
+     *
+     * @return the coins of the pool spent in this epoch, in the order they are first spent
+     */
+    private List<CoinNode> fillTxTree(Transaction[] possibleTxs, HashMap<Transaction, TxNode> txs) {
+        int expected = 0;
+        for (Transaction tx : possibleTxs) {
+            expected += tx.numOutputs() + tx.numInputs();
         }
+        CoinIds ids = new CoinIds(expected);
+        List<CoinNode> coins = new ArrayList<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            Transaction tx = possibleTxs[i];
+            if (txs.containsKey(tx)) continue;
+            TxNode txNode = new TxNode(tx, i);
+            txs.put(tx, txNode);
+            for (int j = 0; j < txNode.coins.size(); j++) {
+                if (ids.add(tx.getHash(), j) == coins.size()) coins.add(txNode.coins.get(j));
+            }
+        }
+
+        List<CoinNode> initialCoins = new ArrayList<>();
+        for (Transaction tx : possibleTxs) {
+            TxNode txNode = txs.get(tx);
+            for (Transaction.Input input : tx.getInputs()) {
+                int id = ids.find(input.prevTxHash, input.outputIndex);
+                CoinNode coinNode = id < 0 ? null : coins.get(id);
+                if (coinNode == null && unspentCoins.contains(input.prevTxHash, input.outputIndex)) {
+                    ids.add(input.prevTxHash, input.outputIndex);
+                    coinNode = new CoinNode();
+                    coins.add(coinNode);
+                    initialCoins.add(coinNode);
+                }
+                if (coinNode != null) coinNode.txs.add(txNode);
+            }
+        }
+        return initialCoins;
     }
 
+    /**
+     * @return 1 plus the number of distinct transactions descending from {@code txNode}, spending
+     *         its outputs or the outputs of its descendants: how many transactions performing it
+     *         may let through, itself included, each counted once however many paths lead to it;
+     *         computed once per node
+     */
     public double getWeightOfTx(TxNode txNode) {
-        int weight = 0;
+        if (!txNode.isWeighed) computeWeights(Collections.singletonList(txNode));
+        return txNode.weight;
+    }
+
+    /**
+     * Computes the weight of {@code txNodes} and of all their descendants bottom up: a node is
+     * weighed once every transaction spending its outputs has been, so each node is visited once
+     * however many paths lead to it. The walk uses an explicit stack, as deep chains would overflow
+     * a recursive one. See {@link #weigh} for the weight of each node.
+     */
+    private void computeWeights(Collection<TxNode> txNodes) {
+        Deque<TxNode> pending = new ArrayDeque<>();
+        for (TxNode root : txNodes) {
+            if (root.isWeighed) continue;
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                TxNode txNode = pending.peek();
+                if (txNode.isWeighed) {
+                    pending.pop();
+                } else if (!txNode.isVisited) {
+                    txNode.isVisited = true;
+                    for (CoinNode coin : txNode.coins) {
+                        for (TxNode spender : coin.txs) {
+                            if (!spender.isVisited) pending.push(spender);
+                        }
+                    }
+                } else {
+                    pending.pop();
+                    txNode.weight = weigh(txNode);
+                    txNode.isWeighed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the weight of {@code txNode}, whose spenders are weighed unless they are in a cycle of
+     *         hashes with it. A node spent by a single transaction weighs one more than it, as its
+     *         descendants are that transaction and the descendants of that transaction, which keeps
+     *         chains linear. Otherwise the descendants of the spenders may overlap, in diamonds, and
+     *         are counted by a walk marking each node it reaches.
+     */
+    private double weigh(TxNode txNode) {
+        TxNode single = null;
         for (CoinNode coin : txNode.coins) {
-            for (TxNode tx : coin.txs) {
-                weight += tx.getWeight();
+            for (TxNode spender : coin.txs) {
+                if (single == null) single = spender;
+                else if (spender != single) return countReachable(txNode);
+            }
+        }
+        if (single == null) return 1;
+        return single.isWeighed ? 1 + single.weight : countReachable(txNode);
+    }
+
+    /** @return the number of distinct nodes reachable from {@code txNode} through spent coins, itself included */
+    private int countReachable(TxNode txNode) {
+        int walk = ++walks;
+        Deque<TxNode> pending = new ArrayDeque<>();
+        txNode.reachedBy = walk;
+        pending.push(txNode);
+        int count = 0;
+        while (!pending.isEmpty()) {
+            TxNode reached = pending.pop();
+            count++;
+            for (CoinNode coin : reached.coins) {
+                for (TxNode spender : coin.txs) {
+                    if (spender.reachedBy == walk) continue;
+                    spender.reachedBy = walk;
+                    pending.push(spender);
+                }
             }
         }
-        return weight;
+        return count;
     }
 
     protected class TransactionVerificator {
         private boolean allTxInputsInPool(Transaction tx) {
             for (int i = 0; i < tx.getInputs().size(); i++) {
                 Transaction.Input input = tx.getInputs().get(i);
-                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                if (!unspentCoins.contains(utxo)) return false;
+                if (!unspentCoins.contains(input.prevTxHash, input.outputIndex)) return false;
             }
             return true;
         }
@@ -105,65 +368,255 @@ public class TxHandler {
                 Transaction.Output output = getCorrespondingOutput(input);
                 if (output == null) return false;
 
+                if (signatures != null && signatures.contains(tx)) {
+                    if (!signatures.isValid(tx, i)) return false;
+                    continue;
+                }
                 PublicKey publicKey = output.address;
-                if (!Crypto.verifySignature(publicKey, tx.getRawDataToSign(i), input.signature)) return false;
+                if (!signatureCache.verify(tx.getHash(), i, publicKey, tx.getRawDataToSign(i), input.signature))
+                    return false;
             }
             return true;
         }
 
-        private boolean allTxInputsDifferent(Transaction tx) {
-            Set<UTXO> txInputs = new HashSet<>();
-            for (int i = 0; i < tx.getInputs().size(); i++) {
-                Transaction.Input input = tx.getInputs().get(i);
-                txInputs.add(getUtxo(input));
-            }
-            return txInputs.size() == tx.getInputs().size();
+        private boolean allTxInputsDifferent(Transaction tx, int position) {
+            if (position >= 0) return batch.hasDistinctInputs(position);
+            return TransactionBatch.inputsDistinct(tx);
         }
 
-        private boolean allOutputsAreNonNegative(Transaction tx) {
+        private boolean allOutputsAreNonNegative(Transaction tx, int position) {
+            if (position >= 0) return batch.hasNonNegativeOutputs(position);
             return tx.getOutputs().stream().noneMatch(output -> output.value < 0);
         }
 
-        private boolean inputsGreaterOrEqualOutputs(Transaction tx) {
-            Double sumInput = tx.getInputs().stream().mapToDouble(input -> getCorrespondingOutput(input).value).sum();
-            Double sumOutput = tx.getOutputs().stream().mapToDouble(output -> output.value).sum();
+        private boolean inputsGreaterOrEqualOutputs(Transaction tx, int position) {
+            double sumInput = 0;
+            for (Transaction.Input input : tx.getInputs()) {
+                sumInput += getCorrespondingOutput(input).value;
+            }
+            if (position >= 0) return sumInput >= batch.outputSum(position);
+            double sumOutput = 0;
+            for (Transaction.Output output : tx.getOutputs()) {
+                sumOutput += output.value;
+            }
             return sumInput >= sumOutput;
         }
 
         public Transaction.Output getCorrespondingOutput(Transaction.Input input) {
-            return unspentCoins.getTxOutput(getUtxo(input));
+            return unspentCoins.getTxOutput(input.prevTxHash, input.outputIndex);
         }
 
+        /**
+         * @return the UTXO spent by {@code input}, sharing its hash, to remove the coin from the
+         *         pool; lookups go by the hash and index of the input instead
+         */
         public UTXO getUtxo(Transaction.Input input) {
             return new UTXO(input.prevTxHash, input.outputIndex);
         }
     }
 
+    /**
+     * An epoch of {@link #handleTxsInOrder}. A transaction touches the coins its inputs spend and,
+     * among those, the ones its outputs create, and whether it is valid only depends on the coins it
+     * touches. So once every transaction before it touching one of its coins is decided, it can be
+     * decided over the pool as it is: nothing after it may touch its coins until it is. Each coin is
+     * handed from one transaction touching it to the next in order, and the transactions holding all
+     * their coins are decided together in rounds.
+     * <p>
+     * The transactions of a round touch disjoint coins, so they are validated over the pool without
+     * locks and spend their inputs with compare-and-remove, see {@link UTXOPool#removeUTXO(UTXO,
+     * Transaction.Output)}. That only fails if something besides the epoch changed the pool since the
+     * checks; the transaction then puts back what it spent and is checked again in the next round.
+     */
+    private class OrderedEpoch {
+        private final Transaction[] txs;
+        /** transactions touching coin {@code c} are {@code touchers[coinStart[c]..coinStart[c + 1]]} */
+        private final int[] coinStart;
+        private final int[] touchers;
+        /** coins touched by transaction {@code i} are {@code coins[txStart[i]..txStart[i + 1]]} */
+        private final int[] txStart;
+        private final int[] coins;
+        /** per coin, the position in touchers of the transaction holding it */
+        private final int[] holder;
+        /** per transaction, the number of its coins still held by one before it */
+        private final int[] waiting;
+        private final boolean[] accepted;
+        /** per transaction of a round, true if it has to be checked again */
+        private final boolean[] retry;
+
+        OrderedEpoch(Transaction[] txs) {
+            this.txs = txs;
+            int n = txs.length;
+            Map<ByteBuffer, List<Integer>> creators = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                if (txs[i].getHash() == null) continue;
+                creators.computeIfAbsent(ByteBuffer.wrap(txs[i].getHash()), hash -> new ArrayList<>()).add(i);
+            }
+
+            // one (coin, transaction) pair for every coin a transaction touches, sorted by coin
+            CoinIds coinIds = new CoinIds(n);
+            long[] pairs = new long[16];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                for (Transaction.Input input : txs[i].getInputs()) {
+                    if (input.prevTxHash == null) continue;
+                    int known = coinIds.size();
+                    int id = coinIds.add(input.prevTxHash, input.outputIndex);
+                    if (id == known) {
+                        for (int creator : creators.getOrDefault(ByteBuffer.wrap(input.prevTxHash), Collections.emptyList())) {
+                            if (input.outputIndex < 0 || input.outputIndex >= txs[creator].numOutputs()) continue;
+                            if (count == pairs.length) pairs = Arrays.copyOf(pairs, count * 2);
+                            pairs[count++] = (long) id << 32 | creator;
+                        }
+                    }
+                    if (count == pairs.length) pairs = Arrays.copyOf(pairs, count * 2);
+                    pairs[count++] = (long) id << 32 | i;
+                }
+            }
+            Arrays.sort(pairs, 0, count);
+
+            int coinCount = coinIds.size();
+            coinStart = new int[coinCount + 1];
+            touchers = new int[count];
+            txStart = new int[n + 1];
+            int distinct = 0;
+            for (int k = 0; k < count; k++) {
+                if (k > 0 && pairs[k] == pairs[k - 1]) continue;
+                int coin = (int) (pairs[k] >>> 32);
+                int tx = (int) pairs[k];
+                coinStart[coin + 1]++;
+                txStart[tx + 1]++;
+                touchers[distinct++] = tx;
+            }
+            for (int c = 0; c < coinCount; c++) coinStart[c + 1] += coinStart[c];
+            for (int i = 0; i < n; i++) txStart[i + 1] += txStart[i];
+
+            coins = new int[distinct];
+            int[] filled = Arrays.copyOf(txStart, n);
+            waiting = new int[n];
+            for (int c = 0; c < coinCount; c++) {
+                for (int k = coinStart[c]; k < coinStart[c + 1]; k++) {
+                    int tx = touchers[k];
+                    coins[filled[tx]++] = c;
+                    if (k > coinStart[c]) waiting[tx]++;
+                }
+            }
+            holder = Arrays.copyOf(coinStart, coinCount);
+            accepted = new boolean[n];
+            retry = new boolean[n];
+        }
+
+        /** @return the accepted transactions, in the order they were given */
+        Transaction[] resolve(boolean parallel) {
+            int[] round = IntStream.range(0, txs.length).filter(i -> waiting[i] == 0).toArray();
+            while (round.length > 0) {
+                int[] deciding = round;
+                if (parallel && deciding.length >= PARALLEL_ROUND) {
+                    verificationPool.submit(() -> IntStream.of(deciding).parallel().forEach(this::decide)).join();
+                } else {
+                    for (int i : deciding) decide(i);
+                }
+                round = next(deciding);
+            }
+
+            List<Transaction> performed = new ArrayList<>();
+            for (int i = 0; i < txs.length; i++) {
+                if (accepted[i]) performed.add(txs[i]);
+            }
+            return performed.toArray(new Transaction[0]);
+        }
+
+        private void decide(int i) {
+            Transaction tx = txs[i];
+            if (isValidTx(tx, i)) {
+                long start = metrics.start();
+                accepted[i] = spend(tx);
+                metrics.stop(EpochMetrics.Phase.POOL_UPDATE, start);
+                retry[i] = !accepted[i];
+            }
+        }
+
+        /** @return false, having spent nothing, if an input was changed by someone else since the checks */
+        private boolean spend(Transaction tx) {
+            List<Transaction.Input> inputs = tx.getInputs();
+            Transaction.Output[] spent = new Transaction.Output[inputs.size()];
+            for (int j = 0; j < inputs.size(); j++) {
+                Transaction.Input input = inputs.get(j);
+                spent[j] = verificator.getCorrespondingOutput(input);
+                if (spent[j] == null || !unspentCoins.removeUTXO(verificator.getUtxo(input), spent[j])) {
+                    for (int k = 0; k < j; k++) {
+                        unspentCoins.addUTXO(new UTXO(inputs.get(k).prevTxHash, inputs.get(k).outputIndex), spent[k]);
+                    }
+                    return false;
+                }
+            }
+            UTXO[] created = UTXO.ofOutputs(tx.getHash(), tx.numOutputs());
+            for (int j = 0; j < created.length; j++) {
+                unspentCoins.addUTXO(created[j], tx.getOutput(j));
+            }
+            return true;
+        }
+
+        /** Hands the coins of the transactions decided in {@code round} on, @return the next round */
+        private int[] next(int[] round) {
+            int[] next = new int[round.length];
+            int size = 0;
+            for (int i : round) {
+                if (retry[i]) {
+                    retry[i] = false;
+                    next[size++] = i;
+                    continue;
+                }
+                for (int k = txStart[i]; k < txStart[i + 1]; k++) {
+                    int coin = coins[k];
+                    if (++holder[coin] == coinStart[coin + 1]) continue;
+                    int tx = touchers[holder[coin]];
+                    if (--waiting[tx] == 0) {
+                        if (size == next.length) next = Arrays.copyOf(next, size * 2);
+                        next[size++] = tx;
+                    }
+                }
+            }
+            return Arrays.copyOf(next, size);
+        }
+    }
+
     protected class TxNode {
         public Transaction tx;
+        /** position of the transaction in the epoch being handled */
+        private final int position;
         public boolean isPerformed = false;
         public List<CoinNode> coins = new ArrayList<>();
+        private double weight;
+        private boolean isVisited = false;
+        private boolean isWeighed = false;
+        /** the last walk of {@link #countReachable} that reached this node */
+        private int reachedBy;
 
-        public TxNode(Transaction tx) {
+        public TxNode(Transaction tx, int position) {
             this.tx = tx;
+            this.position = position;
             for (int i = 0; i < tx.getOutputs().size(); i++) {
-                coins.add(new CoinNode(new UTXO(tx.getHash(), i)));
+                coins.add(new CoinNode());
             }
         }
 
-        public void performTx(Set<Transaction> performed) {
-            if (isPerformed || !isValidTx(tx)) return;
+        /** @return true if {@code tx} was performed now, so the coins it creates can be spent */
+        public boolean performTx(Set<Transaction> performed) {
+            if (isPerformed || !isValidTx(tx, position)) return false;
+            long start = metrics.start();
             for (Transaction.Input in : tx.getInputs()) {
                 unspentCoins.removeUTXO(verificator.getUtxo(in));
             }
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                unspentCoins.addUTXO(new UTXO(tx.getHash(), i), tx.getOutputs().get(i));
+            UTXO[] created = UTXO.ofOutputs(tx.getHash(), tx.numOutputs());
+            for (int i = 0; i < created.length; i++) {
+                unspentCoins.addUTXO(created[i], tx.getOutput(i));
             }
+            metrics.stop(EpochMetrics.Phase.POOL_UPDATE, start);
 
             isPerformed = true;
             performed.add(tx);
-
-            coins.forEach(coinNode -> coinNode.execute(performed));
+            return true;
         }
 
         public double getWeight() {
@@ -172,16 +625,15 @@ public class TxHandler {
     }
 
     protected class CoinNode {
-        public UTXO utxo;
         public List<TxNode> txs = new ArrayList<>();
 
-        public CoinNode(UTXO utxo) {
-            this.utxo = utxo;
-        }
-
-        public void execute(Set<Transaction> performed) {
+        /**
+         * @return the transaction that should spend this coin, the heaviest one and the first
+         *         proposed among equals, or null if nothing spends it
+         */
+        public TxNode execute() {
             Optional<TxNode> max = txs.stream().max(Comparator.comparing(TxNode::getWeight));
-            max.ifPresent(txNode -> txNode.performTx(performed));
+            return max.orElse(null);
         }
     }
 }
@@ -3,18 +3,33 @@ import java.util.Arrays;
 public class UTXO implements Comparable<UTXO> {
 
     /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** {@link #hashCode}, computed once as UTXOs are looked up many times over their life */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
-     * hash is {@code txHash}
+     * hash is {@code txHash}. The array is shared, not copied: the keys of the outputs of a
+     * transaction and the inputs spending them refer to the one hash of the transaction, so
+     * comparing them mostly stops at the identity check. It must not be modified afterwards.
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this.txHash = txHash;
         this.index = index;
+        this.hash = hashOf(txHash, index);
+    }
+
+    /** @return the UTXOs of the {@code count} outputs of the transaction {@code txHash}, all sharing it */
+    public static UTXO[] ofOutputs(byte[] txHash, int count) {
+        UTXO[] utxos = new UTXO[count];
+        for (int i = 0; i < count; i++) {
+            utxos[i] = new UTXO(txHash, i);
+        }
+        return utxos;
     }
 
     /** @return the transaction hash of this UTXO */
@@ -32,6 +47,9 @@ public class UTXO implements Comparable<UTXO> {
      * {@code txHash} arrays with equal contents and equal {@code index} values
      */
     public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
         if (other == null) {
             return false;
         }
@@ -40,15 +58,12 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return hash == utxo.hash && matches(utxo.txHash, utxo.index);
+    }
+
+    /** @return true if this UTXO is the output with index {@code index} of the tx {@code txHash} */
+    public boolean matches(byte[] txHash, int index) {
+        return this.index == index && Arrays.equals(this.txHash, txHash);
     }
 
     /**
@@ -56,6 +71,11 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hash;
+    }
+
+    /** @return the hash code of the UTXO of {@code txHash} and {@code index}, without creating it */
+    public static int hashOf(byte[] txHash, int index) {
         int hash = 1;
         hash = hash * 17 + index;
         hash = hash * 31 + Arrays.hashCode(txHash);
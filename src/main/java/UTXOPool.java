@@ -1,22 +1,55 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.function.BiConsumer;
 
+/**
+ * Collection of unspent transaction outputs, kept in a {@link UTXOStore}. By default the outputs
+ * are kept in a persistent {@link UTXOTrie}, so copying a pool with {@link #UTXOPool(UTXOPool)} or
+ * {@link #snapshot} takes O(1) whatever its size: the copies share their storage until one of them
+ * changes, and only the paths to the changed coins are copied then. A snapshot never changes when
+ * the pool it was taken from does, so it can be read from other threads while the pool keeps being
+ * written; taking it counts as a write to the pool. Copies of a pool use the same kind of store as
+ * the pool, see {@link UTXOStore#copy}.
+ */
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new UTXOTrie();
+    }
+
+    /** Creates a new UTXOPool holding the coins of {@code store}, which it keeps using */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+    }
+
+    /** @return a copy of this pool for readers, in O(1) unless its store copies coins one by one */
+    public UTXOPool snapshot() {
+        return new UTXOPool(H.snapshot());
+    }
+
+    /** @return true if {@link #snapshot} takes O(1) whatever the size of the pool */
+    public boolean hasCheapSnapshot() {
+        return H.hasCheapSnapshot();
+    }
+
+    /** Ends an epoch of changes to the pool, see {@link UTXOStore#commit} */
+    public void commit() {
+        H.commit();
+    }
+
+    /** Waits until the epochs ended so far are durable, see {@link UTXOStore#sync} */
+    public void sync() {
+        H.sync();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -29,6 +62,20 @@ public class UTXOPool {
         H.remove(utxo);
     }
 
+    /**
+     * Removes the UTXO {@code utxo} from the pool if it still maps to {@code expected}
+     *
+     * @return true if it was removed, see {@link UTXOStore#remove(UTXO, Transaction.Output)}
+     */
+    public boolean removeUTXO(UTXO utxo, Transaction.Output expected) {
+        return H.remove(utxo, expected);
+    }
+
+    /** @return true if the pool may be read and written by several threads at once */
+    public boolean isConcurrent() {
+        return H.isConcurrent();
+    }
+
     /**
      * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
      *         not in the pool.
@@ -39,16 +86,36 @@ public class UTXOPool {
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo);
+    }
+
+    /**
+     * @return the output with index {@code index} of the transaction {@code txHash}, or null if it
+     *         is not in the pool; unlike {@link #getTxOutput(UTXO)} it needs no UTXO
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return txHash == null ? null : H.get(txHash, index);
+    }
+
+    /** @return true if the output with index {@code index} of the tx {@code txHash} is in the pool */
+    public boolean contains(byte[] txHash, int index) {
+        return txHash != null && H.contains(txHash, index);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** Calls {@code action} with every UTXO of the pool and its output */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        H.forEach(action);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
@@ -0,0 +1,513 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * File of all the coins of a pool, for new nodes to start from instead of replaying every epoch.
+ * Layout:
+ * <pre>
+ * "SCUS" version coins:long chunks:int
+ * addresses: length:int crc32:int { count { encoded address } }
+ * chunks:    { length:int coins:int crc32:int { record } }
+ * </pre>
+ * Coins are sorted by hash, compared as unsigned bytes, then by index, and cut in chunks of
+ * {@value #CHUNK_COINS}, each checked by its own CRC32. Addresses are written once in a table and
+ * referenced by position. A record is the hash, as a varint length plus one and the bytes, or 0 if
+ * it is the hash of the previous record of the chunk; the index as a varint; a varint address code,
+ * 0 for a null output, 1 for a null address or the position in the table plus 2; and the value of
+ * the output unless it is null. Varints are the ones of {@link TransactionCodec}.
+ * <p>
+ * {@link #write} only reads the pool it is given, so a {@link UTXOPool#snapshot} of a live pool,
+ * such as the one published by {@link IngestService#getUnspentCoins}, can be exported from any
+ * thread while epochs go on. It reads the pool once, sorting runs of {@value #RUN_COINS} coins in
+ * memory and spilling each to a temporary file next to the snapshot, then merges the runs into
+ * chunks that are encoded in parallel; so its heap is bounded by a run and the chunks in flight, and
+ * by the distinct addresses, whatever the size of the pool. The snapshot is written to a temporary
+ * file too and renamed over {@code file} once it is on disk, so a crash never leaves a torn
+ * snapshot behind. {@link #read} maps the chunks of the file and decodes them in parallel, straight
+ * into a concurrent store.
+ */
+public class UTXOSnapshot {
+
+    public static final byte[] MAGIC = {'S', 'C', 'U', 'S'};
+    public static final byte VERSION = 1;
+
+    /** coins of a chunk, the unit of parallelism and of checksums */
+    static final int CHUNK_COINS = 1 << 16;
+    /** coins sorted in memory at once before they are spilled to a run file */
+    static final int RUN_COINS = 1 << 20;
+
+    private static final int HEADER_BYTES = MAGIC.length + 1 + Long.BYTES + Integer.BYTES;
+    private static final int FRAME_BYTES = 3 * Integer.BYTES;
+    /** chunks encoded at once, bounding the memory of an export */
+    private static final int CHUNKS_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+    private static final int SAME_HASH = 0;
+    private static final int NULL_OUTPUT = 0;
+    private static final int NULL_ADDRESS = 1;
+
+    /** enclosing instance of the outputs read */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private static final Comparator<Record> ORDER = (a, b) -> {
+        byte[] hash1 = a.hash;
+        byte[] hash2 = b.hash;
+        int common = Math.min(hash1.length, hash2.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (hash1[i] & 0xFF) - (hash2[i] & 0xFF);
+            if (diff != 0) return diff;
+        }
+        if (hash1.length != hash2.length) return Integer.compare(hash1.length, hash2.length);
+        return Integer.compare(a.index, b.index);
+    };
+
+    private UTXOSnapshot() {
+    }
+
+    /**
+     * Writes the coins of {@code pool} to {@code file}, replacing what it held. The pool must not
+     * change until this returns; pass a snapshot of a pool that does.
+     *
+     * @return the number of coins written
+     */
+    public static long write(UTXOPool pool, Path file) throws IOException {
+        return write(pool, file, RUN_COINS);
+    }
+
+    /** Writes like {@link #write(UTXOPool, Path)}, sorting {@code runCoins} coins at a time */
+    static long write(UTXOPool pool, Path file, int runCoins) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName() + ".", ".tmp");
+        try (Export export = new Export(directory, runCoins)) {
+            try {
+                pool.forEach(export::add);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long count = export.count;
+            int chunks = (int) ((count + CHUNK_COINS - 1) / CHUNK_COINS);
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.put(MAGIC).put(VERSION).putLong(count).putInt(chunks).flip();
+                writeFully(channel, header);
+                writeFully(channel, addressTable(export.addresses));
+                Source sorted = export.sorted();
+                Record[] records = new Record[(int) Math.min(count, (long) CHUNKS_IN_FLIGHT * CHUNK_COINS)];
+                for (long written = 0; written < count; ) {
+                    int size = (int) Math.min(records.length, count - written);
+                    for (int i = 0; i < size; i++) {
+                        records[i] = sorted.next();
+                    }
+                    ByteBuffer[] encoded = new ByteBuffer[(size + CHUNK_COINS - 1) / CHUNK_COINS];
+                    IntStream.range(0, encoded.length).parallel().forEach(c -> encoded[c] = chunk(records, c, size));
+                    for (ByteBuffer chunk : encoded) {
+                        writeFully(channel, chunk);
+                    }
+                    written += size;
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return count;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /** @return a pool over a {@link ConcurrentUTXOStore} of the coins of the snapshot {@code file} */
+    public static UTXOPool read(Path file) throws IOException {
+        return read(file, new ConcurrentUTXOStore());
+    }
+
+    /**
+     * Adds the coins of the snapshot {@code file} to {@code store}, from several threads at once if
+     * it is concurrent, see {@link UTXOStore#isConcurrent}.
+     *
+     * @return a pool over {@code store}
+     * @throws IOException if the file is not a snapshot, or is truncated or corrupt
+     */
+    public static UTXOPool read(Path file, UTXOStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            for (byte b : MAGIC) {
+                if (header.get() != b) throw new IOException("Not a UTXO snapshot: " + file);
+            }
+            byte version = header.get();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+            long count = header.getLong();
+            int chunks = header.getInt();
+
+            long position = HEADER_BYTES;
+            ByteBuffer frame = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(channel, frame, position);
+            int tableLength = frame.getInt();
+            ByteBuffer table = ByteBuffer.allocate(tableLength);
+            readFully(channel, table, position + frame.capacity());
+            check(table, frame.getInt(), "address table");
+            PublicKey[] addresses = addresses(table);
+            position += frame.capacity() + tableLength;
+
+            long[] offsets = new long[chunks];
+            int[] lengths = new int[chunks];
+            int[] coins = new int[chunks];
+            int[] checksums = new int[chunks];
+            long total = 0;
+            frame = ByteBuffer.allocate(FRAME_BYTES);
+            for (int c = 0; c < chunks; c++) {
+                frame.clear();
+                readFully(channel, frame, position);
+                lengths[c] = frame.getInt();
+                coins[c] = frame.getInt();
+                checksums[c] = frame.getInt();
+                if (lengths[c] < 0 || coins[c] < 0) throw new IOException("Malformed snapshot chunk " + c);
+                offsets[c] = position + FRAME_BYTES;
+                position = offsets[c] + lengths[c];
+                total += coins[c];
+            }
+            if (position > channel.size()) throw new IOException("Truncated snapshot: " + file);
+            if (total != count) throw new IOException("Snapshot holds " + total + " coins instead of " + count);
+
+            Coin[][] decoded = new Coin[chunks][];
+            try {
+                IntStream.range(0, chunks).parallel().forEach(c -> {
+                    try {
+                        ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offsets[c], lengths[c]);
+                        check(chunk, checksums[c], "chunk " + c);
+                        Coin[] chunkCoins = decode(chunk, coins[c], addresses);
+                        if (store.isConcurrent()) {
+                            for (Coin coin : chunkCoins) {
+                                store.put(coin.utxo, coin.output);
+                            }
+                        } else {
+                            decoded[c] = chunkCoins;
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (!store.isConcurrent()) {
+                for (Coin[] chunkCoins : decoded) {
+                    for (Coin coin : chunkCoins) {
+                        store.put(coin.utxo, coin.output);
+                    }
+                }
+            }
+            return new UTXOPool(store);
+        }
+    }
+
+    private static ByteBuffer addressTable(List<PublicKey> keys) {
+        List<byte[]> addresses = new ArrayList<>(keys.size());
+        int length = TransactionCodec.varIntLength(keys.size());
+        for (PublicKey key : keys) {
+            byte[] address = key.getEncoded();
+            addresses.add(address);
+            length += TransactionCodec.varIntLength(address.length) + address.length;
+        }
+        ByteBuffer table = ByteBuffer.allocate(2 * Integer.BYTES + length);
+        table.position(2 * Integer.BYTES);
+        TransactionCodec.putVarInt(table, addresses.size());
+        for (byte[] address : addresses) {
+            TransactionCodec.putVarInt(table, address.length);
+            table.put(address);
+        }
+        table.flip();
+        table.putInt(0, length).putInt(Integer.BYTES, checksum(table, 2 * Integer.BYTES));
+        return table;
+    }
+
+    private static PublicKey[] addresses(ByteBuffer table) throws IOException {
+        try {
+            byte[][] encoded = new byte[TransactionCodec.getVarInt(table)][];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = new byte[TransactionCodec.getVarInt(table)];
+                table.get(encoded[i]);
+            }
+            PublicKey[] addresses = new PublicKey[encoded.length];
+            IntStream.range(0, encoded.length).parallel().forEach(i -> addresses[i] = Crypto.decodePublicKey(encoded[i]));
+            return addresses;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Malformed address table", e);
+        }
+    }
+
+    /** @return the frame and records of chunk {@code c} of the first {@code size} sorted {@code records} */
+    private static ByteBuffer chunk(Record[] records, int c, int size) {
+        int from = c * CHUNK_COINS;
+        int to = Math.min(size, from + CHUNK_COINS);
+        int length = 0;
+        byte[] previous = null;
+        for (int i = from; i < to; i++) {
+            Record record = records[i];
+            length += Arrays.equals(record.hash, previous) ? 1 :
+                    TransactionCodec.varIntLength(record.hash.length + 1) + record.hash.length;
+            length += TransactionCodec.varIntLength(record.index);
+            length += TransactionCodec.varIntLength(record.code);
+            if (record.code != NULL_OUTPUT) length += Double.BYTES;
+            previous = record.hash;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(FRAME_BYTES + length);
+        chunk.position(FRAME_BYTES);
+        previous = null;
+        for (int i = from; i < to; i++) {
+            Record record = records[i];
+            if (Arrays.equals(record.hash, previous)) {
+                TransactionCodec.putVarInt(chunk, SAME_HASH);
+            } else {
+                TransactionCodec.putVarInt(chunk, record.hash.length + 1);
+                chunk.put(record.hash);
+            }
+            TransactionCodec.putVarInt(chunk, record.index);
+            TransactionCodec.putVarInt(chunk, record.code);
+            if (record.code != NULL_OUTPUT) chunk.putDouble(record.value);
+            previous = record.hash;
+        }
+        chunk.flip();
+        chunk.putInt(0, length).putInt(Integer.BYTES, to - from).putInt(2 * Integer.BYTES, checksum(chunk, FRAME_BYTES));
+        return chunk;
+    }
+
+    /**
+     * @return the {@code count} coins of {@code chunk}; the outputs of a transaction share one
+     *         array for its hash
+     */
+    private static Coin[] decode(ByteBuffer chunk, int count, PublicKey[] addresses) throws IOException {
+        Coin[] coins = new Coin[count];
+        byte[] hash = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                int hashLength = TransactionCodec.getVarInt(chunk) - 1;
+                if (hashLength >= 0) {
+                    hash = new byte[hashLength];
+                    chunk.get(hash);
+                } else if (hash == null) {
+                    throw new IOException("Chunk starts without a hash");
+                }
+                int index = TransactionCodec.getVarInt(chunk);
+                int code = TransactionCodec.getVarInt(chunk);
+                Transaction.Output output = null;
+                if (code != NULL_OUTPUT) {
+                    PublicKey address = code == NULL_ADDRESS ? null : addresses[code - 2];
+                    output = OUTPUTS.new Output(chunk.getDouble(), address);
+                }
+                coins[i] = new Coin(new UTXO(hash, index), output);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed snapshot chunk", e);
+        }
+        if (chunk.hasRemaining()) throw new IOException("Chunk longer than its coins");
+        return coins;
+    }
+
+    private static int checksum(ByteBuffer buffer, int from) {
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(from);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void check(ByteBuffer payload, int checksum, String what) throws IOException {
+        if (checksum(payload, 0) != checksum) throw new IOException("Corrupt snapshot " + what);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Truncated snapshot");
+        }
+        buffer.flip();
+    }
+
+    private static class Coin {
+        final UTXO utxo;
+        final Transaction.Output output;
+
+        Coin(UTXO utxo, Transaction.Output output) {
+            this.utxo = utxo;
+            this.output = output;
+        }
+    }
+
+    /** A coin to write, with its address code and its value unless its output is null */
+    private static class Record {
+        final byte[] hash;
+        final int index;
+        final int code;
+        final double value;
+
+        Record(byte[] hash, int index, int code, double value) {
+            this.hash = hash;
+            this.index = index;
+            this.code = code;
+            this.value = value;
+        }
+    }
+
+    /** The records of an export in order, each one returned once */
+    private interface Source {
+        Record next() throws IOException;
+    }
+
+    /**
+     * The coins of a pool being exported: collects their addresses, and sorts them in runs of
+     * {@code runCoins}, all but the last one spilled to temporary files that are deleted on close.
+     */
+    private static class Export implements Closeable {
+        private final Path directory;
+        private final Record[] run;
+        private int size;
+        private final List<Path> runs = new ArrayList<>();
+        private final List<RunReader> readers = new ArrayList<>();
+        private long count;
+
+        /** addresses are looked up once per key instance, and deduplicated by encoding */
+        private final Map<PublicKey, Integer> ids = new IdentityHashMap<>();
+        private final Map<PublicKey, Integer> equalIds = new HashMap<>();
+        private final List<PublicKey> addresses = new ArrayList<>();
+
+        Export(Path directory, int runCoins) {
+            this.directory = directory;
+            this.run = new Record[runCoins];
+        }
+
+        /** @throws UncheckedIOException if spilling the run failed */
+        void add(UTXO utxo, Transaction.Output output) {
+            if (size == run.length) {
+                try {
+                    spill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            run[size++] = new Record(utxo.getTxHash(), utxo.getIndex(), addressCode(output),
+                    output == null ? 0 : output.value);
+            count++;
+        }
+
+        private int addressCode(Transaction.Output output) {
+            if (output == null) return NULL_OUTPUT;
+            if (output.address == null) return NULL_ADDRESS;
+            Integer id = ids.get(output.address);
+            if (id == null) {
+                id = equalIds.computeIfAbsent(output.address, key -> {
+                    addresses.add(key);
+                    return addresses.size() - 1;
+                });
+                ids.put(output.address, id);
+            }
+            return id + 2;
+        }
+
+        private void spill() throws IOException {
+            Arrays.parallelSort(run, 0, size, ORDER);
+            Path file = Files.createTempFile(directory, "utxo-run.", ".tmp");
+            runs.add(file);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    Record record = run[i];
+                    out.writeInt(record.hash.length);
+                    out.write(record.hash);
+                    out.writeInt(record.index);
+                    out.writeInt(record.code);
+                    if (record.code != NULL_OUTPUT) out.writeDouble(record.value);
+                    run[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        /** @return the records added, in order; nothing may be added afterwards */
+        Source sorted() throws IOException {
+            if (runs.isEmpty()) {
+                Arrays.parallelSort(run, 0, size, ORDER);
+                int[] next = {0};
+                return () -> run[next[0]++];
+            }
+            if (size > 0) spill();
+            PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> ORDER.compare(a.head, b.head));
+            for (Path file : runs) {
+                RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.advance()) heads.add(reader);
+            }
+            return () -> {
+                RunReader reader = heads.poll();
+                Record record = reader.head;
+                if (reader.advance()) heads.add(reader);
+                return record;
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+            for (Path file : runs) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /** The records of a run file, read one at a time */
+    private static class RunReader {
+        final DataInputStream in;
+        int remaining;
+        Record head;
+
+        RunReader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            remaining = in.readInt();
+        }
+
+        /** @return false once the run is exhausted, otherwise reads the next record into head */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            remaining--;
+            byte[] hash = new byte[in.readInt()];
+            in.readFully(hash);
+            int index = in.readInt();
+            int code = in.readInt();
+            head = new Record(hash, index, code, code == NULL_OUTPUT ? 0 : in.readDouble());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage of the coins of a {@link UTXOPool}, mapping each UTXO to its output. Stores are not
+ * thread safe unless {@link #isConcurrent} says otherwise.
+ */
+public interface UTXOStore {
+
+    /** @return the output of {@code utxo}, or null if it is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    boolean contains(UTXO utxo);
+
+    /**
+     * @return the output with index {@code index} of the tx {@code txHash}, or null if it is not in
+     *         the store; stores look it up without creating a UTXO
+     */
+    Transaction.Output get(byte[] txHash, int index);
+
+    boolean contains(byte[] txHash, int index);
+
+    void put(UTXO utxo, Transaction.Output output);
+
+    void remove(UTXO utxo);
+
+    /**
+     * Removes {@code utxo} if it is mapped to {@code expected}, or to an output with the same value
+     * and address for stores that build outputs on every lookup.
+     *
+     * @return true if the coin was removed; concurrent stores check and remove in one atomic step
+     */
+    default boolean remove(UTXO utxo, Transaction.Output expected) {
+        Transaction.Output current = get(utxo);
+        if (current == null && !contains(utxo)) return false;
+        if (current != expected && (current == null || expected == null || current.value != expected.value
+                || !Objects.equals(current.address, expected.address))) {
+            return false;
+        }
+        remove(utxo);
+        return true;
+    }
+
+    /** @return true if several threads may read and write the store at the same time */
+    default boolean isConcurrent() {
+        return false;
+    }
+
+    int size();
+
+    void forEach(BiConsumer<UTXO, Transaction.Output> action);
+
+    /** @return a store with the same coins, that does not change when this one does */
+    UTXOStore copy();
+
+    /**
+     * @return a store with the same coins for readers, that does not change when this one does;
+     *         unlike a copy it takes over none of the duties of this store
+     */
+    default UTXOStore snapshot() {
+        return copy();
+    }
+
+    /** @return true if {@link #snapshot} takes O(1) whatever the size of the store */
+    default boolean hasCheapSnapshot() {
+        return false;
+    }
+
+    /** Marks the end of an epoch, stores kept on disk make the changes since the last one durable */
+    default void commit() {
+    }
+
+    /** Waits until every epoch committed so far is durable, for stores that commit in the background */
+    default void sync() {
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent hash array mapped trie from UTXOs to their outputs, the storage of a {@link UTXOPool}.
+ * Each level of the trie consumes 5 bits of the hash of a UTXO, and nodes only hold the slots that
+ * are used, so a lookup touches at most 7 small arrays whatever the number of coins.
+ * <p>
+ * Nodes are shared between copies: {@link #copy} takes O(1) and both tries keep reading the same
+ * nodes until one of them writes. Every node is stamped with the owner token of the trie that
+ * created it, and a trie only modifies in place the nodes stamped with its own token, copying the
+ * path to any other node it writes to. Copying renews the token of both tries, so neither can ever
+ * write to a node the other may read. This makes copies of a trie safe to read from other threads
+ * while the original keeps being written; a single trie must still be confined to one thread, and
+ * copying counts as a write to the trie being copied.
+ */
+final class UTXOTrie implements UTXOStore {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /** stored in place of null outputs, so that a missing UTXO is told apart from a null output */
+    private static final Object NULL = new Object();
+
+    private Node root;
+    private int size;
+    private Object owner = new Object();
+
+    UTXOTrie() {
+    }
+
+    private UTXOTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return a trie with the same mappings, sharing every node with this one */
+    @Override
+    public UTXOTrie copy() {
+        owner = new Object();
+        return new UTXOTrie(root, size);
+    }
+
+    @Override
+    public boolean hasCheapSnapshot() {
+        return true;
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return unmask(find(spread(utxo.hashCode()), utxo.getTxHash(), utxo.getIndex()));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return find(spread(utxo.hashCode()), utxo.getTxHash(), utxo.getIndex()) != null;
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        return unmask(find(spread(UTXO.hashOf(txHash, index)), txHash, index));
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return find(spread(UTXO.hashOf(txHash, index)), txHash, index) != null;
+    }
+
+    private Object find(int hash, byte[] txHash, int index) {
+        return root == null ? null : root.get(0, hash, txHash, index);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output output) {
+        Change change = new Change();
+        Node node = root == null ? new BitmapNode(owner, 0, new Object[0]) : root;
+        root = node.put(owner, 0, hash(utxo), utxo, output == null ? NULL : output, change);
+        if (change.sizeChanged) size++;
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (root == null) return;
+        Change change = new Change();
+        root = root.remove(owner, 0, hash(utxo), utxo, change);
+        if (change.sizeChanged) size--;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (root != null) root.forEach(action);
+    }
+
+    private static Transaction.Output unmask(Object value) {
+        return value == NULL ? null : (Transaction.Output) value;
+    }
+
+    private static int hash(UTXO utxo) {
+        return spread(utxo.hashCode());
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /** Whether an operation added or removed a mapping */
+    private static final class Change {
+        boolean sizeChanged;
+    }
+
+    private abstract static class Node {
+        final Object owner;
+
+        Node(Object owner) {
+            this.owner = owner;
+        }
+
+        /** @return the output mapped to {@code utxo}, masked, or null if there is none */
+        abstract Object get(int shift, int hash, byte[] txHash, int index);
+
+        abstract Node put(Object owner, int shift, int hash, UTXO utxo, Object output, Change change);
+
+        /** @return the node without {@code utxo}, or null if it is left empty */
+        abstract Node remove(Object owner, int shift, int hash, UTXO utxo, Change change);
+
+        abstract void forEach(BiConsumer<UTXO, Transaction.Output> action);
+    }
+
+    /**
+     * Node holding one slot per used 5 bit chunk of the hash, in the order of the chunks. A slot is
+     * two cells: a UTXO and its output, or null and the child node of the UTXOs sharing the chunk.
+     */
+    private static final class BitmapNode extends Node {
+        private int bitmap;
+        private Object[] array;
+
+        BitmapNode(Object owner, int bitmap, Object[] array) {
+            super(owner);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object get(int shift, int hash, byte[] txHash, int index) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return null;
+            int slot = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object key = array[slot];
+            Object value = array[slot + 1];
+            if (key == null) return ((Node) value).get(shift + BITS, hash, txHash, index);
+            return ((UTXO) key).matches(txHash, index) ? value : null;
+        }
+
+        @Override
+        Node put(Object owner, int shift, int hash, UTXO utxo, Object output, Change change) {
+            int bit = bit(hash, shift);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                change.sizeChanged = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, index);
+                grown[index] = utxo;
+                grown[index + 1] = output;
+                System.arraycopy(array, index, grown, index + 2, array.length - index);
+                return with(owner, bitmap | bit, grown);
+            }
+            Object key = array[index];
+            Object value = array[index + 1];
+            if (key == null) {
+                Node child = (Node) value;
+                Node put = child.put(owner, shift + BITS, hash, utxo, output, change);
+                return put == child ? this : set(owner, index + 1, put);
+            }
+            if (utxo.equals(key)) return value == output ? this : set(owner, index + 1, output);
+            change.sizeChanged = true;
+            Node child = pair(owner, shift + BITS, (UTXO) key, value, hash, utxo, output);
+            BitmapNode node = set(owner, index + 1, child);
+            node.array[index] = null;
+            return node;
+        }
+
+        @Override
+        Node remove(Object owner, int shift, int hash, UTXO utxo, Change change) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object key = array[index];
+            Object value = array[index + 1];
+            if (key == null) {
+                Node child = (Node) value;
+                Node removed = child.remove(owner, shift + BITS, hash, utxo, change);
+                if (removed == child) return this;
+                if (removed != null) return set(owner, index + 1, removed);
+            } else if (!utxo.equals(key)) {
+                return this;
+            } else {
+                change.sizeChanged = true;
+            }
+            if (bitmap == bit) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, array.length - index - 2);
+            return with(owner, bitmap ^ bit, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((Node) array[i + 1]).forEach(action);
+                else action.accept((UTXO) array[i], unmask(array[i + 1]));
+            }
+        }
+
+        private BitmapNode editable(Object owner) {
+            return this.owner == owner ? this : new BitmapNode(owner, bitmap, array.clone());
+        }
+
+        private BitmapNode with(Object owner, int bitmap, Object[] array) {
+            if (this.owner != owner) return new BitmapNode(owner, bitmap, array);
+            this.bitmap = bitmap;
+            this.array = array;
+            return this;
+        }
+
+        private BitmapNode set(Object owner, int index, Object value) {
+            BitmapNode node = editable(owner);
+            node.array[index] = value;
+            return node;
+        }
+    }
+
+    /** Leaf of the UTXOs whose hashes are equal, searched linearly */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private Object[] array;
+
+        CollisionNode(Object owner, int hash, Object[] array) {
+            super(owner);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object get(int shift, int hash, byte[] txHash, int index) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (((UTXO) array[i]).matches(txHash, index)) return array[i + 1];
+            }
+            return null;
+        }
+
+        @Override
+        Node put(Object owner, int shift, int hash, UTXO utxo, Object output, Change change) {
+            if (hash != this.hash) {
+                BitmapNode parent = new BitmapNode(owner, bit(this.hash, shift), new Object[]{null, this});
+                return parent.put(owner, shift, hash, utxo, output, change);
+            }
+            int index = indexOf(utxo);
+            if (index >= 0) {
+                if (array[index + 1] == output) return this;
+                CollisionNode node = editable(owner, array.clone());
+                node.array[index + 1] = output;
+                return node;
+            }
+            change.sizeChanged = true;
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = utxo;
+            grown[array.length + 1] = output;
+            return editable(owner, grown);
+        }
+
+        @Override
+        Node remove(Object owner, int shift, int hash, UTXO utxo, Change change) {
+            int index = indexOf(utxo);
+            if (index < 0) return this;
+            change.sizeChanged = true;
+            if (array.length == 2) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, array.length - index - 2);
+            return editable(owner, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept((UTXO) array[i], unmask(array[i + 1]));
+            }
+        }
+
+        private int indexOf(UTXO utxo) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (utxo.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        private CollisionNode editable(Object owner, Object[] array) {
+            if (this.owner != owner) return new CollisionNode(owner, hash, array);
+            this.array = array;
+            return this;
+        }
+    }
+
+    /** @return a node holding two UTXOs that share the hash chunks above {@code shift} */
+    private static Node pair(Object owner, int shift, UTXO key1, Object value1,
+                             int hash2, UTXO key2, Object value2) {
+        int hash1 = hash(key1);
+        if (hash1 == hash2) return new CollisionNode(owner, hash1, new Object[]{key1, value1, key2, value2});
+        Change change = new Change();
+        return new BitmapNode(owner, 0, new Object[0])
+                .put(owner, shift, hash1, key1, value1, change)
+                .put(owner, shift, hash2, key2, value2, change);
+    }
+}
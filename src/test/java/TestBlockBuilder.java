@@ -0,0 +1,87 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestBlockBuilder {
+
+    @Test
+    public void shouldProveEveryTransaction() {
+        for (int size = 1; size <= 9; size++) {
+            // given
+            Transaction[] txs = new Transaction[size];
+            for (int i = 0; i < size; i++) {
+                txs[i] = tx(new byte[]{0x1}, i);
+            }
+            // when
+            Block block = new BlockBuilder().build(txs);
+            // then
+            assertArrayEquals(root(block.getTransactions()), block.getMerkleRoot());
+            for (int i = 0; i < size; i++) {
+                MerkleProof proof = block.proof(txs[i].getHash());
+                assertTrue(proof.verify(block.getMerkleRoot()));
+                assertTrue(proof.size() <= 4);
+            }
+        }
+    }
+
+    @Test
+    public void shouldComputeLargeRootInParallel() {
+        // given
+        Transaction[] txs = new Transaction[5001];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = tx(new byte[]{0x2}, i);
+        }
+        // when
+        Block block = new BlockBuilder().build(txs);
+        // then
+        assertArrayEquals(root(block.getTransactions()), block.getMerkleRoot());
+        assertTrue(block.proof(4321).verify(block.getMerkleRoot()));
+        assertFalse(block.proof(4321).verify(new BlockBuilder().build(Arrays.copyOf(txs, 5000)).getMerkleRoot()));
+    }
+
+    @Test
+    public void shouldOrderSpendersAfterTheirInputsWhateverTheOrderGiven() {
+        // given
+        Transaction parent = tx(new byte[]{0x3}, 7);
+        Transaction child = tx(parent.getHash(), 1);
+        Transaction grandChild = tx(child.getHash(), 2);
+        Transaction other = tx(new byte[]{0x4}, 0);
+        // when
+        Block block = new BlockBuilder().build(new Transaction[]{grandChild, other, child, parent});
+        Block shuffled = new BlockBuilder().build(new Transaction[]{parent, grandChild, child, other});
+        // then
+        List<Transaction> order = Arrays.asList(block.getTransactions());
+        assertTrue(order.indexOf(parent) < order.indexOf(child));
+        assertTrue(order.indexOf(child) < order.indexOf(grandChild));
+        assertArrayEquals(block.getTransactions(), shuffled.getTransactions());
+        assertArrayEquals(block.getMerkleRoot(), shuffled.getMerkleRoot());
+    }
+
+    /** @return the root computed naively, pairing nodes top down */
+    private static byte[] root(Transaction[] txs) {
+        List<byte[]> level = new ArrayList<>();
+        for (Transaction tx : txs) {
+            level.add(MerkleProof.leafHash(tx.getHash()));
+        }
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                parents.add(i + 1 < level.size() ? MerkleProof.nodeHash(level.get(i), 0, level.get(i + 1), 0) : level.get(i));
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    private static Transaction tx(byte[] prevHash, int i) {
+        Transaction tx = new Transaction();
+        tx.addInput(prevHash, i);
+        tx.addOutput(i, null);
+        tx.setHash(new byte[]{0x5, (byte) i, (byte) (i >> 8), prevHash[0]});
+        return tx;
+    }
+}
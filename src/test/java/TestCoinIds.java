@@ -0,0 +1,38 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCoinIds {
+
+    @Test
+    public void shouldGiveDenseIdsPastExpectedSize() {
+        // given
+        CoinIds ids = new CoinIds(2);
+        // when
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ids.add(new byte[]{(byte) i, (byte) (i >> 8)}, i % 3));
+        }
+        // then
+        assertEquals(1000, ids.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ids.find(new byte[]{(byte) i, (byte) (i >> 8)}, i % 3));
+            assertEquals(i, ids.add(new byte[]{(byte) i, (byte) (i >> 8)}, i % 3));
+        }
+        assertEquals(-1, ids.find(new byte[]{0, 0}, 1));
+        assertEquals(1000, ids.size());
+    }
+
+    @Test
+    public void shouldTellNullHashesApart() {
+        // given
+        CoinIds ids = new CoinIds(4);
+        // when
+        int nullId = ids.add(null, 0);
+        int emptyId = ids.add(new byte[0], 0);
+        // then
+        assertEquals(0, nullId);
+        assertEquals(1, emptyId);
+        assertEquals(0, ids.find(null, 0));
+        assertEquals(-1, ids.find(null, 1));
+    }
+}
@@ -0,0 +1,116 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TestCrypto {
+    private PublicKey alice_p;
+    private PrivateKey alice_pr;
+    private PublicKey bob_p;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+        bob_p = keyPairGenerator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void shouldVerifyBatchesOnSeveralThreadsAtOnce() throws Exception {
+        // given
+        int count = 64;
+        PublicKey[] keys = new PublicKey[count];
+        byte[][] messages = new byte[count][];
+        byte[][] signatures = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i % 3 == 0 ? bob_p : alice_p;
+            messages[i] = new byte[]{0x1, (byte) i};
+            signatures[i] = sign(messages[i]);
+        }
+        boolean[] expected = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            expected[i] = keys[i] == alice_p;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // when
+        List<Future<boolean[]>> results = new ArrayList<>();
+        try {
+            for (int round = 0; round < 16; round++) {
+                results.add(executor.submit(() -> Crypto.verifyAll(keys, messages, signatures)));
+            }
+            // then
+            for (Future<boolean[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldRejectBadKeysAndSignatures() throws GeneralSecurityException {
+        // given
+        byte[] message = {0x1, 0x2};
+        byte[] signature = sign(message);
+        PublicKey ecKey = KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic();
+        // when //then
+        assertTrue(Crypto.verifySignature(alice_p, message, signature));
+        assertFalse(Crypto.verifySignature(ecKey, message, signature));
+        assertFalse(Crypto.verifySignature(null, message, signature));
+        assertFalse(Crypto.verifySignature(alice_p, message, Arrays.copyOf(signature, signature.length - 1)));
+        assertFalse(Crypto.verifySignature(alice_p, message, new byte[]{0x1}));
+        assertFalse(Crypto.verifySignature(alice_p, message, null));
+        assertArrayEquals(new boolean[]{true, false, false},
+                Crypto.verifyAll(new PublicKey[]{alice_p, ecKey, alice_p},
+                        new byte[][]{message, message, message}, new byte[][]{signature, signature, new byte[0]}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRefuseMalformedEncodedKey() {
+        // when
+        Crypto.decodePublicKey(new byte[]{0x30, 0x3, 0x1, 0x2, 0x3});
+    }
+
+    @Test
+    public void shouldDecodeKeysAcrossCacheClear() throws GeneralSecurityException {
+        // given
+        byte[] message = {0x1, 0x2};
+        byte[] signature = sign(message);
+        PublicKey decoded = Crypto.decodePublicKey(alice_p.getEncoded());
+        assertSame(decoded, Crypto.decodePublicKey(alice_p.getEncoded()));
+        // when
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        BigInteger modulus = BigInteger.ONE.shiftLeft(1023).setBit(0);
+        for (int i = 0; i < Crypto.MAX_CACHED_KEYS; i++) {
+            PublicKey other = keyFactory.generatePublic(new RSAPublicKeySpec(modulus.add(BigInteger.valueOf(2L * i)),
+                    RSAKeyGenParameterSpec.F4));
+            Crypto.decodePublicKey(other.getEncoded());
+        }
+        PublicKey again = Crypto.decodePublicKey(alice_p.getEncoded());
+        // then
+        assertNotSame(decoded, again);
+        assertEquals(decoded, again);
+        assertTrue(Crypto.verifySignature(again, message, signature));
+        assertTrue(Crypto.verifySignature(decoded, message, signature));
+    }
+
+    private byte[] sign(byte[] message) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(Crypto.SIGNATURE_ALGORITHM);
+        signature.initSign(alice_pr);
+        signature.update(message);
+        return signature.sign();
+    }
+}
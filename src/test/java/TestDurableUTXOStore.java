@@ -0,0 +1,169 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestDurableUTXOStore {
+    private Path directory;
+    private PublicKey alice_p;
+
+    @Before
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        directory = Files.createTempDirectory("utxo");
+        alice_p = KeyPairGenerator.getInstance("RSA").generateKeyPair().getPublic();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void shouldReopenLastCommittedEpoch() throws IOException {
+        // given
+        DurableUTXOStore store = new DurableUTXOStore(directory);
+        UTXOPool pool = new UTXOPool(store);
+        pool.addUTXO(utxo(1), output(1d));
+        pool.addUTXO(utxo(2), output(2d));
+        pool.commit();
+        pool.removeUTXO(utxo(1));
+        pool.addUTXO(utxo(3), output(3d));
+        pool.commit();
+        pool.addUTXO(utxo(4), output(4d));
+        store.sync();
+        // when
+        UTXOPool reopened = new UTXOPool(new DurableUTXOStore(directory));
+        // then
+        assertEquals(2, reopened.size());
+        assertFalse(reopened.contains(utxo(1)));
+        assertEquals(3d, reopened.getTxOutput(utxo(3)).value, 0);
+        assertEquals(alice_p, reopened.getTxOutput(utxo(2)).address);
+        assertFalse(reopened.contains(utxo(4)));
+    }
+
+    @Test
+    public void shouldCommitEpochsOfAdoptingHandler() throws IOException {
+        // given
+        DurableUTXOStore store = new DurableUTXOStore(directory);
+        store.put(utxo(1), output(1d));
+        store.commit();
+        UTXOPool pool = new UTXOPool(store);
+        TxHandler handler = TxHandler.adopting(pool);
+        // when
+        handler.getUnspentCoins().addUTXO(utxo(2), output(2d));
+        handler.getUnspentCoins().commit();
+        // then
+        try {
+            new TxHandler(pool);
+            fail("copied a store writing a log");
+        } catch (IllegalStateException expected) {
+        }
+        store.close();
+        DurableUTXOStore reopened = new DurableUTXOStore(directory);
+        assertEquals(2, reopened.committedEpochs());
+        assertTrue(reopened.contains(utxo(2)));
+        reopened.close();
+    }
+
+    @Test
+    public void shouldDropTornRecord() throws IOException {
+        // given
+        DurableUTXOStore store = new DurableUTXOStore(directory);
+        store.put(utxo(1), output(1d));
+        store.commit();
+        store.put(utxo(2), output(2d));
+        store.commit();
+        store.close();
+        Path wal = DurableUTXOStore.walFile(directory, 0);
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}), channel.size());
+        }
+        // when
+        DurableUTXOStore reopened = new DurableUTXOStore(directory);
+        // then
+        assertEquals(1, reopened.committedEpochs());
+        assertTrue(reopened.contains(utxo(1)));
+        assertFalse(reopened.contains(utxo(2)));
+        reopened.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnCorruptRecordBeforeLastLog() throws IOException {
+        // given
+        DurableUTXOStore store = new DurableUTXOStore(directory);
+        store.put(utxo(1), output(1d));
+        store.commit();
+        store.put(utxo(2), output(2d));
+        store.commit();
+        store.close();
+        try (FileChannel channel = FileChannel.open(DurableUTXOStore.walFile(directory, 0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{-1}), 12);
+        }
+        Files.createFile(DurableUTXOStore.walFile(directory, 1));
+        // when
+        new DurableUTXOStore(directory);
+    }
+
+    @Test
+    public void shouldCompactIntoDataFile() throws IOException {
+        // given
+        DurableUTXOStore store = new DurableUTXOStore(directory, 1024, true);
+        Map<UTXO, Double> expected = new HashMap<>();
+        Random random = new Random(42);
+        // when
+        for (int epoch = 0; epoch < 50; epoch++) {
+            for (int i = 0; i < 40; i++) {
+                UTXO utxo = utxo(random.nextInt(500));
+                if (random.nextBoolean() && expected.containsKey(utxo)) {
+                    store.remove(utxo);
+                    expected.remove(utxo);
+                } else {
+                    store.put(utxo, output(epoch));
+                    expected.put(utxo, (double) epoch);
+                }
+            }
+            store.commit();
+        }
+        store.close();
+        DurableUTXOStore reopened = new DurableUTXOStore(directory);
+        // then
+        assertTrue(Files.exists(directory.resolve(DurableUTXOStore.DATA_FILE)));
+        assertEquals(expected.size(), reopened.size());
+        for (int i = 0; i < 500; i++) {
+            Transaction.Output output = reopened.get(utxo(i));
+            if (expected.containsKey(utxo(i))) assertEquals(expected.get(utxo(i)), output.value, 0);
+            else assertFalse(reopened.contains(utxo(i)));
+        }
+        Set<UTXO> all = new HashSet<>();
+        reopened.forEach((utxo, output) -> all.add(utxo));
+        assertEquals(expected.keySet(), all);
+        reopened.close();
+    }
+
+    private static UTXO utxo(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        hash[31] = (byte) (i >> 8);
+        return new UTXO(hash, i % 3);
+    }
+
+    private Transaction.Output output(double value) {
+        return new Transaction().new Output(value, alice_p);
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+
+import static org.junit.Assert.*;
+
+public class TestEpochMetrics {
+    private UTXOPool utxoPool;
+
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    private PrivateKey bob_pr;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        bob_p = keyPair.getPublic();
+        bob_pr = keyPair.getPrivate();
+        keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+
+        utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(new byte[]{0x1}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+        utxoPool.addUTXO(new UTXO(new byte[]{0x2}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+    }
+
+    @Test
+    public void shouldCountChecksPerRuleAndTimePhases() {
+        // given
+        TxHandler txHandler = new TxHandler(utxoPool);
+        EpochMetrics metrics = new EpochMetrics();
+        txHandler.setMetrics(metrics);
+        Transaction valid = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction badSignature = new TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(0.5d, bob_p).build();
+        Transaction tooExpensive = new TransactionBuilder().in(valid.getHash(), 0, bob_pr).out(0.6d, alice_p).build();
+        // when
+        Transaction[] accepted = txHandler.handleTxs(new Transaction[]{valid, badSignature, tooExpensive});
+        // then
+        assertArrayEquals(new Transaction[]{valid}, accepted);
+        assertEquals(1, metrics.epochs());
+        assertEquals(1, metrics.passed());
+        assertEquals(1, metrics.failures(EpochMetrics.Rule.SIGNATURES));
+        assertEquals(1, metrics.failures(EpochMetrics.Rule.INPUTS_COVER_OUTPUTS));
+        assertEquals(0, metrics.failures(EpochMetrics.Rule.INPUTS_IN_POOL));
+        assertEquals(2, metrics.poolSize());
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.EPOCH).count());
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.POOL_UPDATE).count());
+        assertEquals(1L, metrics.snapshot().get("epoch.rule.signatures.failed"));
+    }
+
+    @Test
+    public void shouldCountMaxFeeChecksPerRuleAndTimePhases() {
+        // given
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(utxoPool);
+        EpochMetrics metrics = new EpochMetrics();
+        handler.setMetrics(metrics);
+        Transaction valid = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction rival = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, alice_p).build();
+        Transaction badSignature = new TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(0.5d, bob_p).build();
+        Transaction tooExpensive = new TransactionBuilder().in(valid.getHash(), 0, bob_pr).out(0.6d, alice_p).build();
+        Transaction child = new TransactionBuilder().in(tooExpensive.getHash(), 0, alice_pr).out(0.1d, bob_p).build();
+        // when
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{valid, rival, badSignature, tooExpensive, child});
+        // then
+        assertArrayEquals(new Transaction[]{valid}, accepted);
+        assertEquals(2, metrics.passed());
+        assertEquals(1, metrics.failures(EpochMetrics.Rule.SIGNATURES));
+        assertEquals(1, metrics.failures(EpochMetrics.Rule.INPUTS_COVER_OUTPUTS));
+        assertEquals(1, metrics.failures(EpochMetrics.Rule.INPUTS_IN_POOL));
+        assertEquals(0, metrics.failures(EpochMetrics.Rule.DISTINCT_INPUTS));
+        assertEquals(2L, metrics.snapshot().get("epoch.txs.valid"));
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.GRAPH).count());
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.SOLVE).count());
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.RESOLVE).count());
+        assertEquals(1, metrics.histogram(EpochMetrics.Phase.EPOCH).count());
+    }
+
+    @Test
+    public void shouldRecordNothingWhenDisabled() {
+        // given
+        TxHandler txHandler = new TxHandler(utxoPool);
+        EpochMetrics metrics = new EpochMetrics(false);
+        txHandler.setMetrics(metrics);
+        Transaction tx = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).build();
+        // when
+        txHandler.handleTxs(new Transaction[]{tx});
+        // then
+        assertEquals(0, metrics.epochs());
+        assertEquals(0, metrics.passed());
+        assertEquals(0, metrics.histogram(EpochMetrics.Phase.EPOCH).count());
+        assertEquals(EpochMetrics.NOT_TIMED, metrics.start());
+    }
+}
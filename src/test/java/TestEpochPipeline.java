@@ -0,0 +1,106 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class TestEpochPipeline {
+    private UTXOPool utxoPool;
+
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    private PrivateKey bob_pr;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        bob_p = keyPair.getPublic();
+        bob_pr = keyPair.getPrivate();
+        keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+
+        utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(new byte[]{0x1}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+    }
+
+    @Test
+    public void shouldAcceptWhatTheHandlerAcceptsEpochByEpoch() throws InterruptedException, ExecutionException {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).out(0.4d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.5d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(tx1.getHash(), 1, bob_pr).out(0.4d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder().in(tx2.getHash(), 0, alice_pr).out(0.2d, bob_p).build();
+        Transaction[][] epochs = {{tx1}, {tx2, tx3}, {tx4}};
+        TxHandler direct = new TxHandler(utxoPool);
+        TxHandler pipelined = new TxHandler(utxoPool);
+        // when
+        List<CompletableFuture<Transaction[]>> results = new ArrayList<>();
+        try (EpochPipeline pipeline = new EpochPipeline(pipelined, 1)) {
+            for (Transaction[] epoch : epochs) {
+                results.add(pipeline.submit(epoch));
+            }
+        }
+        // then
+        for (int i = 0; i < epochs.length; i++) {
+            assertArrayEquals(direct.handleTxs(epochs[i]), results.get(i).get());
+        }
+        assertEquals(direct.getUnspentCoins().getAllUTXO().size(), pipelined.getUnspentCoins().getAllUTXO().size());
+        assertTrue(pipelined.getUnspentCoins().contains(new UTXO(tx4.getHash(), 0)));
+        assertEquals(3, pipelined.getSignatureCache().hits());
+    }
+
+    @Test
+    public void shouldCopyPoolWithoutCheapSnapshotOnlyOnceItsSizeWasSubmitted() throws InterruptedException, ExecutionException {
+        // given
+        for (byte i = 2; i <= 4; i++) {
+            utxoPool.addUTXO(new UTXO(new byte[]{i}, 0), new TransactionBuilder().out(1d, bob_p).build().getOutput(0));
+        }
+        int[] copies = {0};
+        OffHeapUTXOStore store = new OffHeapUTXOStore() {
+            @Override
+            public OffHeapUTXOStore copy() {
+                copies[0]++;
+                return super.copy();
+            }
+        };
+        utxoPool.forEach(store::put);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).out(0.4d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.5d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(tx1.getHash(), 1, bob_pr).out(0.4d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder().in(tx2.getHash(), 0, alice_pr).out(0.2d, bob_p).build();
+        Transaction[][] epochs = {{tx1}, {tx2, tx3}, {tx4}};
+        TxHandler direct = new TxHandler(utxoPool);
+        TxHandler pipelined = TxHandler.adopting(new UTXOPool(store));
+        // when
+        List<CompletableFuture<Transaction[]>> results = new ArrayList<>();
+        try (EpochPipeline pipeline = new EpochPipeline(pipelined, 1)) {
+            for (Transaction[] epoch : epochs) {
+                results.add(pipeline.submit(epoch));
+            }
+        }
+        // then
+        for (int i = 0; i < epochs.length; i++) {
+            assertArrayEquals(direct.handleTxs(epochs[i]), results.get(i).get());
+        }
+        assertEquals(2, copies[0]);
+        assertEquals(3, pipelined.getSignatureCache().hits());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRefuseEpochsOnceClosed() throws InterruptedException {
+        // given
+        EpochPipeline pipeline = new EpochPipeline(new TxHandler(utxoPool), 1);
+        pipeline.close();
+        // when
+        pipeline.submit(new Transaction[0]);
+    }
+}
@@ -0,0 +1,178 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.*;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.*;
+
+public class TestIngestService {
+    private IngestService ingest;
+    private UTXOPool utxoPool;
+
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        bob_p = keyPair.getPublic();
+        keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+
+        utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(new byte[]{0x1}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+    }
+
+    @After
+    public void tearDown() {
+        if (ingest != null) ingest.close();
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() {
+        // given
+        ingest = new IngestService(new Mempool(new TxHandler(utxoPool), 10, 10, 1000), 1, 10, 1000);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.4d, bob_p).build();
+        // when
+        boolean first = ingest.offer(tx1);
+        boolean second = ingest.offer(tx2);
+        // then
+        assertTrue(first);
+        assertFalse(second);
+        assertEquals(IngestService.State.QUEUED, ingest.getState(tx1.getHash()));
+        assertNull(ingest.getState(tx2.getHash()));
+    }
+
+    @Test
+    public void shouldSealEpochsInTheBackground() throws InterruptedException {
+        // given
+        ingest = new IngestService(new Mempool(new TxHandler(utxoPool), 10, 10, 1000), 10, 2, 20);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).out(0.4d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 1, alice_pr).out(0.3d, bob_p).build();
+        // when
+        ingest.start();
+        ingest.offer(tx2);
+        ingest.offer(tx1);
+        for (int i = 0; i < 500 && ingest.getState(tx2.getHash()) != IngestService.State.ACCEPTED; i++) {
+            Thread.sleep(10);
+        }
+        // then
+        assertEquals(IngestService.State.ACCEPTED, ingest.getState(tx1.getHash()));
+        assertEquals(IngestService.State.ACCEPTED, ingest.getState(tx2.getHash()));
+        assertTrue(ingest.getUnspentCoins().contains(new UTXO(tx2.getHash(), 0)));
+        assertFalse(ingest.getUnspentCoins().contains(new UTXO(new byte[]{0x1}, 0)));
+    }
+
+    @Test
+    public void shouldTrackOrphansEvictedByTheMempool() throws InterruptedException {
+        // given
+        ingest = new IngestService(new Mempool(new TxHandler(utxoPool), 10, 1, 1000), 10, 10, 1000);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x5}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x6}, 0, alice_pr).out(0.5d, bob_p).build();
+        // when
+        ingest.start();
+        ingest.offer(tx1);
+        ingest.offer(tx2);
+        for (int i = 0; i < 500 && ingest.getState(tx2.getHash()) != IngestService.State.ORPHAN; i++) {
+            Thread.sleep(10);
+        }
+        // then
+        assertEquals(IngestService.State.REJECTED, ingest.getState(tx1.getHash()));
+        assertEquals(IngestService.State.ORPHAN, ingest.getState(tx2.getHash()));
+    }
+
+    @Test
+    public void shouldStopWhenEpochFailsToCommit() throws InterruptedException {
+        // given
+        UTXOPool failingPool = new UTXOPool(new FailingStore(new UTXOTrie()));
+        failingPool.addUTXO(new UTXO(new byte[]{0x1}, 0), utxoPool.getTxOutput(new UTXO(new byte[]{0x1}, 0)));
+        ingest = new IngestService(new Mempool(new TxHandler(failingPool), 10, 10, 1000), 10, 1, 20);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x5}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.4d, bob_p).build();
+        // when
+        ingest.start();
+        ingest.offer(tx1);
+        ingest.offer(tx2);
+        for (int i = 0; i < 500 && !ingest.isFailed(); i++) {
+            Thread.sleep(10);
+        }
+        boolean offered = ingest.offer(tx3);
+        // then
+        assertTrue(ingest.isFailed());
+        assertFalse(offered);
+        assertEquals(IngestService.State.FAILED, ingest.getState(tx1.getHash()));
+        assertEquals(IngestService.State.FAILED, ingest.getState(tx2.getHash()));
+        assertNull(ingest.getState(tx3.getHash()));
+        assertTrue(ingest.getUnspentCoins().contains(new UTXO(new byte[]{0x1}, 0)));
+        assertEquals(0, ingest.getEpochs());
+    }
+
+    /** Store whose epochs can never be made durable */
+    private static class FailingStore implements UTXOStore {
+        private final UTXOStore coins;
+
+        FailingStore(UTXOStore coins) {
+            this.coins = coins;
+        }
+
+        @Override
+        public Transaction.Output get(UTXO utxo) {
+            return coins.get(utxo);
+        }
+
+        @Override
+        public boolean contains(UTXO utxo) {
+            return coins.contains(utxo);
+        }
+
+        @Override
+        public Transaction.Output get(byte[] txHash, int index) {
+            return coins.get(txHash, index);
+        }
+
+        @Override
+        public boolean contains(byte[] txHash, int index) {
+            return coins.contains(txHash, index);
+        }
+
+        @Override
+        public void put(UTXO utxo, Transaction.Output output) {
+            coins.put(utxo, output);
+        }
+
+        @Override
+        public void remove(UTXO utxo) {
+            coins.remove(utxo);
+        }
+
+        @Override
+        public int size() {
+            return coins.size();
+        }
+
+        @Override
+        public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            coins.forEach(action);
+        }
+
+        @Override
+        public UTXOStore copy() {
+            return new FailingStore(coins.copy());
+        }
+
+        @Override
+        public void commit() {
+            throw new UncheckedIOException(new IOException("Disk full"));
+        }
+    }
+}
@@ -3,9 +3,12 @@ import org.junit.Test;
 
 import java.security.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestMaxFeeTxHandler {
@@ -64,6 +67,58 @@ public class TestMaxFeeTxHandler {
         assertEquals(3, unspentCoins.getAllUTXO().size());
     }
 
+    @Test
+    public void shouldPreferChildFees() {
+        // given
+        List<Transaction> txs = new ArrayList<>();
+        Transaction tx1 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(1.9d, alice_p).build();
+        txs.add(tx1);
+        Transaction tx2 = new TestMaxFeeTxHandler.TransactionBuilder().in(tx1.getHash(), 0, alice_pr).out(1.4d, tom_p).build();
+        txs.add(tx2);
+        Transaction tx3 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(1.7d, tom_p).build();
+        txs.add(tx3);
+        // when
+        Transaction[] handledTxs = handler.handleTxs(txs.toArray(new Transaction[0]));
+        // then
+        UTXOPool unspentCoins = handler.getUnspentCoins();
+        assertEquals(2, handledTxs.length);
+        assertTrue(unspentCoins.contains(utxo(0, tx2.getHash())));
+        assertFalse(unspentCoins.contains(utxo(0, tx3.getHash())));
+        assertEquals(3, unspentCoins.getAllUTXO().size());
+    }
+
+    @Test
+    public void shouldFallBackToGreedyPerComponent() {
+        // given
+        Transaction tx1 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).in(new byte[]{0x2}, 0, bob_pr).out(2.5d, tom_p).build();
+        Transaction tx2 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.7d, tom_p).build();
+        Transaction tx3 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(1.7d, tom_p).build();
+        Transaction tx4 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x3}, 0, tom_pr).out(2.9d, alice_p).build();
+        Transaction tx5 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x3}, 0, tom_pr).out(2.8d, alice_p).build();
+        Transaction[] txs = {tx1, tx2, tx3, tx4, tx5};
+        // when
+        List<Transaction> exact = new MaxFeeSolver(ForkJoinPool.commonPool()).solve(txs, utxoPool, tx -> true);
+        List<Transaction> bounded = new MaxFeeSolver(ForkJoinPool.commonPool(), 2, MaxFeeSolver.DEFAULT_MAX_NODES)
+                .solve(txs, utxoPool, tx -> true);
+        // then
+        assertEquals(Arrays.asList(tx2, tx3, tx5), exact);
+        assertEquals(Arrays.asList(tx1, tx5), bounded);
+    }
+
+    @Test
+    public void shouldDropTxsFailingTheChecksOfTheBatch() {
+        // given
+        Transaction tx1 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TestMaxFeeTxHandler.TransactionBuilder().in(tx1.getHash(), 1, bob_pr).out(0.1d, tom_p).build();
+        Transaction tx3 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).in(new byte[]{0x2}, 0, bob_pr).out(3d, tom_p).build();
+        Transaction tx4 = new TestMaxFeeTxHandler.TransactionBuilder().in(new byte[]{0x3}, 0, tom_pr).out(3.5d, alice_p).out(-1d, bob_p).build();
+        // when
+        Transaction[] handledTxs = handler.handleTxs(TransactionBatch.of(tx1, tx2, tx3, tx4));
+        // then
+        assertEquals(Arrays.asList(tx1), Arrays.asList(handledTxs));
+        assertEquals(3, handler.getUnspentCoins().getAllUTXO().size());
+    }
+
     private Transaction.Output out(double value, PublicKey person) {
         return new TestMaxFeeTxHandler.TransactionBuilder().out(value, person).build().getOutput(0);
     }
@@ -93,7 +148,7 @@ public class TestMaxFeeTxHandler {
         }
 
         public Transaction build() {
-            tx.setHash(tx.getRawTx());
+            tx.computeHash();
             signInputs();
             return tx;
         }
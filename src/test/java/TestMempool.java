@@ -0,0 +1,203 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMempool {
+    private Mempool mempool;
+    private long now;
+
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    private PrivateKey bob_pr;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        bob_p = keyPair.getPublic();
+        bob_pr = keyPair.getPrivate();
+        keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(new byte[]{0x1}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+        mempool = new Mempool(new TxHandler(utxoPool), 10, 2, 1000, new ConflictIndex(), () -> now);
+    }
+
+    @Test
+    public void shouldWakeOrphans() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.8d, alice_p).build();
+        // when
+        assertEquals(Mempool.Status.ORPHAN, mempool.submit(tx2));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        Transaction[] sealed = mempool.sealEpoch();
+        // then
+        assertEquals(2, sealed.length);
+        assertEquals(0, mempool.orphanCount());
+        assertEquals(0, mempool.readyCount());
+        assertTrue(mempool.getHandler().getUnspentCoins().contains(new UTXO(tx2.getHash(), 0)));
+    }
+
+    @Test
+    public void shouldKeepReadyTxsWhenEpochFails() {
+        // given
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(new byte[]{0x1}, 0), new TransactionBuilder().out(1d, alice_p).build().getOutput(0));
+        boolean[] failing = {true};
+        mempool = new Mempool(new TxHandler(utxoPool) {
+            @Override
+            public Transaction[] handleTxs(Transaction[] possibleTxs) {
+                if (failing[0]) throw new IllegalStateException("Disk full");
+                return super.handleTxs(possibleTxs);
+            }
+        }, 10, 2, 1000, new ConflictIndex(), () -> now);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.8d, alice_p).build();
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        // when
+        try {
+            mempool.sealEpoch();
+            fail();
+        } catch (IllegalStateException e) {
+            failing[0] = false;
+        }
+        // then
+        assertEquals(1, mempool.readyCount());
+        assertEquals(Mempool.Status.READY, mempool.submit(tx2));
+        assertEquals(2, mempool.sealEpoch().length);
+    }
+
+    @Test
+    public void shouldRejectDoubleSpends() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.95d, bob_p).build();
+        Transaction tx3 = new TransactionBuilder().in(tx1.getHash(), 0, alice_pr).out(0.4d, bob_p).build();
+        // when //then
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        assertEquals(Mempool.Status.DUPLICATE, mempool.submit(tx1));
+        assertEquals(Mempool.Status.CONFLICTED, mempool.submit(tx2));
+        assertEquals(Mempool.Status.REJECTED, mempool.submit(tx3));
+        assertEquals(1, mempool.sealEpoch().length);
+    }
+
+    @Test
+    public void shouldReplaceByFee() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.9d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.895d, bob_p).build();
+        Transaction tx4 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, alice_p).build();
+        // when
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx2));
+        assertEquals(Mempool.Status.CONFLICTED, mempool.submit(tx3));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx4));
+        Transaction[] sealed = mempool.sealEpoch();
+        // then
+        assertEquals(1, sealed.length);
+        assertEquals(tx4, sealed[0]);
+    }
+
+    @Test
+    public void shouldPayForEvictedDescendants() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).out(0.05d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.3d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).in(tx1.getHash(), 1, alice_pr).out(0.01d, alice_p).build();
+        Transaction tx5 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.2d, alice_p).build();
+        // when
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx2));
+        assertEquals(Mempool.Status.CONFLICTED, mempool.submit(tx3));
+        assertEquals(Mempool.Status.CONFLICTED, mempool.submit(tx4));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx5));
+        Transaction[] sealed = mempool.sealEpoch();
+        // then
+        assertEquals(1, sealed.length);
+        assertEquals(tx5, sealed[0]);
+    }
+
+    @Test
+    public void shouldReportChangesOfStatus() {
+        // given
+        Map<Transaction, Mempool.Status> reported = new HashMap<>();
+        mempool.setListener(reported::put);
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).out(0.4d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).out(0.4d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.95d, bob_p).build();
+        Transaction tx4 = new TransactionBuilder().in(tx1.getHash(), 1, alice_pr).out(0.3d, alice_p).build();
+        Transaction tx5 = new TransactionBuilder().in(new byte[]{0x5}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx6 = new TransactionBuilder().in(new byte[]{0x6}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx7 = new TransactionBuilder().in(new byte[]{0x7}, 0, alice_pr).out(0.9d, bob_p).build();
+        // when
+        assertEquals(Mempool.Status.ORPHAN, mempool.submit(tx2));
+        assertEquals(Mempool.Status.ORPHAN, mempool.submit(tx4));
+        assertEquals(Mempool.Status.READY, mempool.submit(tx1));
+        assertEquals(Mempool.Status.CONFLICTED, mempool.submit(tx3));
+        mempool.submit(tx5);
+        mempool.submit(tx6);
+        mempool.submit(tx7);
+        Transaction[] sealed = mempool.sealEpoch();
+        // then
+        assertEquals(2, sealed.length);
+        assertEquals(Mempool.Status.READY, reported.get(tx2));
+        assertEquals(Mempool.Status.REJECTED, reported.get(tx4));
+        assertEquals(Mempool.Status.REJECTED, reported.get(tx3));
+        assertEquals(Mempool.Status.REJECTED, reported.get(tx5));
+        assertEquals(4, reported.size());
+    }
+
+    @Test
+    public void shouldEvictOldOrphans() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x5}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x6}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x7}, 0, alice_pr).out(0.9d, bob_p).build();
+        // when
+        mempool.submit(tx1);
+        now = 600;
+        mempool.submit(tx2);
+        mempool.submit(tx3);
+        // then
+        assertEquals(2, mempool.orphanCount());
+        now = 1200;
+        mempool.evictExpired();
+        assertEquals(2, mempool.orphanCount());
+        now = 1700;
+        mempool.evictExpired();
+        assertEquals(0, mempool.orphanCount());
+    }
+
+    @Test
+    public void shouldKeepArrivalOfOrphansWokenTooEarly() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(tx1.getHash(), 0, bob_pr).in(new byte[]{0x5}, 0, alice_pr).out(0.8d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x6}, 0, alice_pr).out(0.9d, bob_p).build();
+        // when
+        mempool.submit(tx2);
+        now = 600;
+        mempool.submit(tx3);
+        now = 700;
+        mempool.submit(tx1);
+        // then
+        assertEquals(2, mempool.orphanCount());
+        now = 1200;
+        mempool.evictExpired();
+        assertEquals(1, mempool.orphanCount());
+    }
+}
@@ -0,0 +1,135 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class TestShardedLedger {
+    private static final byte[] LOW = {0x0, 0x1};
+    private static final byte[] HIGH = {(byte) 0x80, 0x1};
+
+    private ShardedLedger ledger;
+
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    private PrivateKey bob_pr;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        bob_p = keyPair.getPublic();
+        bob_pr = keyPair.getPrivate();
+        keyPair = keyPairGenerator.generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(LOW, 0), new TransactionBuilder(new byte[]{0x7}).out(1d, alice_p).build().getOutput(0));
+        utxoPool.addUTXO(new UTXO(HIGH, 0), new TransactionBuilder(new byte[]{0x7}).out(2d, bob_p).build().getOutput(0));
+        ledger = new ShardedLedger(utxoPool, 2, new ForkJoinPool(2));
+    }
+
+    @Test
+    public void shouldSplitCoinsByHashPrefix() {
+        // when //then
+        assertEquals(0, ShardedLedger.shardOf(LOW, 2));
+        assertEquals(1, ShardedLedger.shardOf(HIGH, 2));
+        assertEquals(1, ledger.getShard(0).getUnspentCoins().size());
+        assertTrue(ledger.getShard(1).getUnspentCoins().contains(new UTXO(HIGH, 0)));
+    }
+
+    @Test
+    public void shouldHandleLocalAndCrossShardTxs() {
+        // given
+        Transaction tx1 = new TransactionBuilder(new byte[]{(byte) 0x90, 0x1}).in(LOW, 0, alice_pr).out(0.5d, bob_p).out(0.4d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder(new byte[]{0x10, 0x2}).in(tx1.getHash(), 0, bob_pr).out(0.5d, alice_p).build();
+        Transaction tx3 = new TransactionBuilder(new byte[]{0x10, 0x3}).in(tx2.getHash(), 0, alice_pr).in(HIGH, 0, bob_pr).out(2.3d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder(new byte[]{0x10, 0x4}).in(tx1.getHash(), 1, alice_pr).in(HIGH, 0, bob_pr).out(2d, bob_p).build();
+        // when
+        Transaction[] handledTxs = ledger.handleTxs(new Transaction[]{tx2, tx3, tx4, tx1});
+        // then
+        UTXOPool unspentCoins = ledger.getUnspentCoins();
+        assertArrayEquals(new Transaction[]{tx2, tx4, tx1}, handledTxs);
+        assertEquals(2, unspentCoins.size());
+        assertTrue(ledger.getShard(0).getUnspentCoins().contains(new UTXO(tx2.getHash(), 0)));
+        assertTrue(ledger.getShard(0).getUnspentCoins().contains(new UTXO(tx4.getHash(), 0)));
+    }
+
+    @Test
+    public void shouldReleaseCoinsOfRejectedCrossShardTx() {
+        // given
+        Transaction tx1 = new TransactionBuilder(new byte[]{0x10, 0x1}).in(LOW, 0, alice_pr).in(HIGH, 0, alice_pr).out(1d, alice_p).build();
+        Transaction tx2 = new TransactionBuilder(new byte[]{0x10, 0x2}).in(LOW, 0, alice_pr).in(HIGH, 0, bob_pr).out(1d, alice_p).build();
+        // when
+        Transaction[] rejected = ledger.handleTxs(new Transaction[]{tx1});
+        Transaction[] handledTxs = ledger.handleTxs(new Transaction[]{tx2});
+        // then
+        assertEquals(0, rejected.length);
+        assertArrayEquals(new Transaction[]{tx2}, handledTxs);
+        assertEquals(1, ledger.getUnspentCoins().size());
+    }
+
+    @Test
+    public void shouldRejectCrossShardTxSpendingNullOutput() {
+        // given
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(LOW, 0), new TransactionBuilder(new byte[]{0x7}).out(1d, alice_p).build().getOutput(0));
+        utxoPool.addUTXO(new UTXO(HIGH, 0), null);
+        ledger = new ShardedLedger(utxoPool, 2, new ForkJoinPool(2));
+        Transaction tx = new TransactionBuilder(new byte[]{0x10, 0x1}).in(LOW, 0, alice_pr).in(HIGH, 0, bob_pr).out(1d, alice_p).build();
+        // when
+        Transaction[] handledTxs = ledger.handleTxs(new Transaction[]{tx});
+        // then
+        assertEquals(0, handledTxs.length);
+        assertEquals(2, ledger.getUnspentCoins().size());
+    }
+
+    public class TransactionBuilder {
+        private final Transaction tx;
+        private final byte[] hash;
+        private List<PrivateKey> privateKeys;
+
+        public TransactionBuilder(byte[] hash) {
+            tx = new Transaction();
+            this.hash = hash;
+            privateKeys = new ArrayList<>();
+        }
+
+        public TransactionBuilder in(byte[] prevHash, int index, PrivateKey key) {
+            tx.addInput(prevHash, index);
+            privateKeys.add(key);
+            return this;
+        }
+
+        public TransactionBuilder out(double value, PublicKey person) {
+            tx.addOutput(value, person);
+            return this;
+        }
+
+        public Transaction build() {
+            tx.setHash(hash);
+            signInputs();
+            return tx;
+        }
+
+        private void signInputs() {
+            try {
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    Signature signature = Signature.getInstance("SHA256withRSA");
+                    signature.initSign(privateKeys.get(i));
+                    signature.update(tx.getRawDataToSign(i));
+                    tx.addSignature(signature.sign(), i);
+                }
+            } catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSignatureCache {
+    private PublicKey alice_p;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        alice_p = keyPair.getPublic();
+        alice_pr = keyPair.getPrivate();
+    }
+
+    @Test
+    public void shouldHitVerifiedSignature() throws GeneralSecurityException {
+        // given
+        SignatureCache cache = new SignatureCache(1 << 20);
+        byte[] message = {0x1, 0x2};
+        byte[] signature = sign(message);
+        // when
+        assertTrue(cache.verify(new byte[]{0x9}, 0, alice_p, message, signature));
+        assertTrue(cache.verify(new byte[]{0x9}, 0, alice_p, message, signature));
+        // then
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldNotHitOtherMessageOrSignature() throws GeneralSecurityException {
+        // given
+        SignatureCache cache = new SignatureCache(1 << 20);
+        byte[] message = {0x1, 0x2};
+        byte[] signature = sign(message);
+        cache.verify(new byte[]{0x9}, 0, alice_p, message, signature);
+        // when //then
+        assertFalse(cache.verify(new byte[]{0x9}, 0, alice_p, new byte[]{0x1, 0x3}, signature));
+        assertFalse(cache.verify(new byte[]{0x9}, 0, alice_p, message, new byte[]{0x1}));
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws GeneralSecurityException {
+        // given
+        byte[] message = {0x1};
+        byte[] signature = sign(message);
+        SignatureCache cache = new SignatureCache(1 << 20);
+        cache.verify(new byte[]{0x1}, 0, alice_p, message, signature);
+        long entryBytes = cache.sizeBytes();
+        cache = new SignatureCache(2 * entryBytes);
+        // when
+        cache.verify(new byte[]{0x1}, 0, alice_p, message, signature);
+        cache.verify(new byte[]{0x2}, 0, alice_p, message, signature);
+        cache.verify(new byte[]{0x1}, 0, alice_p, message, signature);
+        cache.verify(new byte[]{0x3}, 0, alice_p, message, signature);
+        // then
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        cache.verify(new byte[]{0x1}, 0, alice_p, message, signature);
+        assertEquals(2, cache.hits());
+    }
+
+    private byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(alice_pr);
+        signature.update(data);
+        return signature.sign();
+    }
+}
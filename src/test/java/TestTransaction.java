@@ -0,0 +1,51 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.*;
+
+import static org.junit.Assert.*;
+
+public class TestTransaction {
+    private PublicKey bob_p;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        bob_p = keyPairGenerator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void shouldHashRawTxWithSha256() throws NoSuchAlgorithmException {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x1, 0x2}, 300);
+        tx.addInput(null, 1);
+        tx.addOutput(0.5d, bob_p);
+        tx.addSignature(new byte[]{0x7, 0x8}, 0);
+        // when
+        byte[] hash = tx.computeHash();
+        // then
+        assertEquals(32, hash.length);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(tx.getRawTx()), hash);
+        assertSame(hash, tx.getHash());
+    }
+
+    @Test
+    public void shouldShareHashWithKeysAndSpenders() {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x1}, 0);
+        tx.addOutput(1d, bob_p);
+        tx.addOutput(2d, bob_p);
+        byte[] hash = tx.computeHash();
+        // when
+        UTXO[] utxos = UTXO.ofOutputs(hash, tx.numOutputs());
+        Transaction spender = new Transaction();
+        spender.addInput(hash, 1);
+        // then
+        assertEquals(new UTXO(hash.clone(), 1), utxos[1]);
+        assertSame(hash, utxos[0].getTxHash());
+        assertSame(hash, utxos[1].getTxHash());
+        assertSame(hash, spender.getInput(0).prevTxHash);
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestTransactionBatch {
+    private byte nextHash;
+
+    @Test
+    public void shouldPackStatelessChecks() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0).in(new byte[]{0x1}, 1).out(0.5d).out(0.25d).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x1}, 0).in(new byte[]{0x1}, 0).out(0.5d).build();
+        Transaction tx3 = new TransactionBuilder().in(new byte[]{0x2}, 0).out(-0.5d).build();
+        // when
+        TransactionBatch batch = TransactionBatch.of(tx1, tx2, tx3);
+        // then
+        assertEquals(3, batch.size());
+        assertSame(tx2, batch.transaction(1));
+        assertEquals(0.75d, batch.outputSum(0), 0);
+        assertTrue(batch.hasDistinctInputs(0));
+        assertFalse(batch.hasDistinctInputs(1));
+        assertTrue(batch.hasNonNegativeOutputs(1));
+        assertFalse(batch.hasNonNegativeOutputs(2));
+    }
+
+    @Test
+    public void shouldCheckManyInputsByHashing() {
+        // given
+        TransactionBuilder distinct = new TransactionBuilder();
+        TransactionBuilder repeated = new TransactionBuilder();
+        for (int i = 0; i < 20; i++) {
+            distinct.in(new byte[]{0x1}, i);
+            repeated.in(new byte[]{0x1}, i % 19);
+        }
+        Transaction distinctTx = distinct.out(1d).build();
+        Transaction repeatedTx = repeated.out(1d).build();
+        // when
+        TransactionBatch batch = TransactionBatch.of(distinctTx, repeatedTx);
+        // then
+        assertTrue(batch.hasDistinctInputs(0));
+        assertFalse(batch.hasDistinctInputs(1));
+        assertTrue(TransactionBatch.inputsDistinct(distinctTx));
+        assertFalse(TransactionBatch.inputsDistinct(repeatedTx));
+    }
+
+    @Test
+    public void shouldCheckInputsOfLoneTransactions() {
+        // given
+        Transaction distinct = new TransactionBuilder().in(new byte[]{0x1}, 0).in(new byte[]{0x1}, 1).in(null, 0).out(1d).build();
+        Transaction repeated = new TransactionBuilder().in(null, 0).in(new byte[]{0x1}, 0).in(null, 0).out(1d).build();
+        // when // then
+        assertTrue(TransactionBatch.inputsDistinct(distinct));
+        assertFalse(TransactionBatch.inputsDistinct(repeated));
+        assertTrue(TransactionBatch.inputsDistinct(new TransactionBuilder().out(1d).build()));
+    }
+
+    public class TransactionBuilder {
+        private final Transaction tx;
+        private List<byte[]> signatures;
+
+        public TransactionBuilder() {
+            tx = new Transaction();
+            signatures = new ArrayList<>();
+        }
+
+        public TransactionBuilder in(byte[] prevHash, int index) {
+            tx.addInput(prevHash, index);
+            signatures.add(new byte[]{(byte) index, 0x7});
+            return this;
+        }
+
+        public TransactionBuilder out(double value) {
+            tx.addOutput(value, null);
+            return this;
+        }
+
+        public Transaction build() {
+            tx.setHash(new byte[]{0x5, nextHash++});
+            for (int i = 0; i < signatures.size(); i++) {
+                tx.addSignature(signatures.get(i), i);
+            }
+            return tx;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+
+import static org.junit.Assert.*;
+
+public class TestTransactionCodec {
+    private PublicKey bob_p;
+    private PrivateKey alice_pr;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        bob_p = keyPairGenerator.generateKeyPair().getPublic();
+        alice_pr = keyPairGenerator.generateKeyPair().getPrivate();
+    }
+
+    @Test
+    public void shouldRoundTrip() throws GeneralSecurityException {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x1, 0x2}, 3);
+        tx.addInput(null, 300);
+        tx.addOutput(0.5d, bob_p);
+        tx.addOutput(1.5d, bob_p);
+        tx.addSignature(sign(tx.getRawDataToSign(0)), 0);
+        tx.setHash(tx.getRawTx());
+        ByteBuffer buffer = ByteBuffer.allocate(TransactionCodec.encodedLength(tx) + 3);
+        buffer.position(3);
+        // when
+        TransactionCodec.encode(tx, buffer);
+        buffer.flip().position(3);
+        Transaction decoded = TransactionCodec.decode(buffer);
+        // then
+        assertFalse(buffer.hasRemaining());
+        assertEquals(tx, decoded);
+        assertArrayEquals(tx.getRawTx(), decoded.getRawTx());
+        assertNull(decoded.getInput(1).prevTxHash);
+        assertEquals(300, decoded.getInput(1).outputIndex);
+        assertEquals(bob_p, decoded.getOutput(1).address);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedInput() {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x1}, 0);
+        tx.addOutput(1d, bob_p);
+        byte[] encoded = TransactionCodec.encode(tx);
+        // when
+        TransactionCodec.decode(ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+    }
+
+    @Test
+    public void shouldKeepLegacyRawDataToSign() {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x7}, 1);
+        tx.addOutput(2d, bob_p);
+        byte[] address = bob_p.getEncoded();
+        ByteBuffer expected = ByteBuffer.allocate(1 + 4 + 8 + address.length);
+        expected.put((byte) 0x7).putInt(1).putDouble(2d).put(address);
+        // when //then
+        assertArrayEquals(expected.array(), tx.getRawDataToSign(0));
+        assertNull(tx.getRawDataToSign(1));
+    }
+
+    @Test
+    public void shouldInvalidateDataToSign() {
+        // given
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x7}, 1);
+        tx.addOutput(2d, bob_p);
+        byte[] before = tx.getRawDataToSign(0);
+        // when
+        tx.addOutput(1d, bob_p);
+        // then
+        assertSame(tx.getRawDataToSign(0), tx.getRawDataToSign(0));
+        assertTrue(tx.getRawDataToSign(0).length > before.length);
+    }
+
+    private byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(alice_pr);
+        signature.update(data);
+        return signature.sign();
+    }
+}
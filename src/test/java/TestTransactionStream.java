@@ -0,0 +1,151 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class TestTransactionStream {
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("txs", ".sctx");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Test
+    public void shouldReadEpochsOfMappedFile() throws IOException {
+        // given
+        try (TransactionStream.Writer writer = TransactionStream.Writer.create(file)) {
+            writer.write(tx(1));
+            writer.write(tx(2));
+            writer.write(tx(3));
+            writer.endEpoch();
+            writer.write(tx(4));
+        }
+        // when
+        try (TransactionStream.Reader reader = TransactionStream.Reader.open(file)) {
+            Transaction[] first = reader.nextEpoch(2);
+            Transaction[] second = reader.nextEpoch(2);
+            Transaction[] third = reader.nextEpoch(2);
+            // then
+            assertArrayEquals(new Transaction[]{tx(1), tx(2)}, first);
+            assertArrayEquals(new Transaction[]{tx(3)}, second);
+            assertArrayEquals(new Transaction[]{tx(4)}, third);
+            assertNull(reader.nextEpoch(2));
+            assertEquals(4, reader.getTransactions());
+        }
+    }
+
+    @Test
+    public void shouldReadChannelFrameByFrame() throws IOException {
+        // given
+        Pipe pipe = Pipe.open();
+        Thread producer = new Thread(() -> {
+            try (TransactionStream.Writer writer = new TransactionStream.Writer(pipe.sink())) {
+                for (int i = 0; i < 5000; i++) {
+                    writer.write(tx(i));
+                    if (i % 1000 == 999) writer.endEpoch();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        producer.start();
+        // when
+        long epochs = 0;
+        long read = 0;
+        try (TransactionStream.Reader reader = new TransactionStream.Reader(pipe.source())) {
+            for (Transaction[] epoch = reader.nextEpoch(Integer.MAX_VALUE); epoch != null; epoch = reader.nextEpoch(Integer.MAX_VALUE)) {
+                assertEquals(tx((int) read), epoch[0]);
+                read += epoch.length;
+                epochs++;
+            }
+        }
+        // then
+        assertEquals(5000, read);
+        assertEquals(5, epochs);
+    }
+
+    @Test
+    public void shouldShareHashesWithinAnEpoch() throws IOException {
+        // given
+        Transaction parent = tx(1);
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash().clone(), 0);
+        child.addOutput(1, null);
+        child.setHash(new byte[]{0x6});
+        try (TransactionStream.Writer writer = TransactionStream.Writer.create(file)) {
+            writer.write(child);
+            writer.write(parent);
+            writer.endEpoch();
+            writer.write(parent);
+        }
+        // when
+        try (TransactionStream.Reader reader = TransactionStream.Reader.open(file)) {
+            Transaction[] first = reader.nextEpoch(10);
+            Transaction[] second = reader.nextEpoch(10);
+            // then
+            assertSame(first[1].getHash(), first[0].getInput(0).prevTxHash);
+            assertNotSame(first[1].getHash(), second[0].getHash());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void shouldFailOnTruncatedFrame() throws IOException {
+        // given
+        try (TransactionStream.Writer writer = TransactionStream.Writer.create(file)) {
+            writer.write(tx(1));
+            writer.write(tx(2));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        // when
+        try (TransactionStream.Reader reader = TransactionStream.Reader.open(file)) {
+            assertEquals(tx(1), reader.next());
+            reader.next();
+        }
+    }
+
+    @Test
+    public void shouldRejectFrameAboveMaximumSize() throws IOException {
+        // given
+        Pipe pipe = Pipe.open();
+        ByteBuffer stream = ByteBuffer.allocate(TransactionStream.MAGIC.length + 1 + Integer.BYTES);
+        stream.put(TransactionStream.MAGIC).put(TransactionStream.VERSION).putInt(TransactionStream.MAX_FRAME_BYTES + 1).flip();
+        pipe.sink().write(stream);
+        pipe.sink().close();
+        // when
+        IOException failure = null;
+        try (TransactionStream.Reader reader = new TransactionStream.Reader(pipe.source())) {
+            reader.next();
+        } catch (IOException e) {
+            failure = e;
+        }
+        // then
+        assertNotNull(failure);
+        assertFalse(failure instanceof EOFException);
+    }
+
+    private static Transaction tx(int i) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[]{0x1, (byte) i, (byte) (i >> 8)}, i);
+        tx.addOutput(i, null);
+        tx.setHash(new byte[]{0x5, (byte) i, (byte) (i >> 8)});
+        return tx;
+    }
+}
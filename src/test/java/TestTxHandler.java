@@ -2,8 +2,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.security.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -121,6 +121,155 @@ public class TestTxHandler {
         assertEquals(4, unspentCoins.getAllUTXO().size());
     }
 
+    @Test
+    public void shouldPreferSpenderLettingMoreThrough() {
+        // given
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.9d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.5d, bob_p).out(0.4d, tom_p).build();
+        Transaction tx3 = new TransactionBuilder().in(tx2.getHash(), 0, bob_pr).out(0.5d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder().in(tx2.getHash(), 1, tom_pr).out(0.4d, alice_p).build();
+        // when
+        Transaction[] handledTxs = handler.handleTxs(new Transaction[]{tx1, tx2, tx3, tx4});
+        // then
+        UTXOPool unspentCoins = handler.getUnspentCoins();
+        assertEquals(3, handledTxs.length);
+        assertFalse(unspentCoins.contains(utxo(0, tx1.getHash())));
+        assertTrue(unspentCoins.contains(utxo(0, tx3.getHash())));
+        assertTrue(unspentCoins.contains(utxo(0, tx4.getHash())));
+    }
+
+    @Test
+    public void shouldCountDescendantsReachedBySeveralPathsOnce() {
+        // given
+        Transaction diamond = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr).out(0.4d, bob_p).out(0.4d, tom_p).build();
+        Transaction left = new TransactionBuilder().in(diamond.getHash(), 0, bob_pr).out(0.4d, alice_p).build();
+        Transaction right = new TransactionBuilder().in(diamond.getHash(), 1, tom_pr).out(0.4d, alice_p).build();
+        Transaction bottom = new TransactionBuilder().in(left.getHash(), 0, alice_pr).in(right.getHash(), 0, alice_pr)
+                .out(0.8d, bob_p).build();
+        TransactionBuilder fanBuilder = new TransactionBuilder().in(new byte[]{0x1}, 0, alice_pr);
+        for (int i = 0; i < 4; i++) fanBuilder.out(0.2d, bob_p);
+        Transaction fan = fanBuilder.build();
+        List<Transaction> possibleTxs = new ArrayList<>(Arrays.asList(diamond, left, right, bottom, fan));
+        for (int i = 0; i < 4; i++) {
+            possibleTxs.add(new TransactionBuilder().in(fan.getHash(), i, bob_pr).out(0.2d, alice_p).build());
+        }
+        // when
+        Transaction[] handledTxs = handler.handleTxs(possibleTxs.toArray(new Transaction[0]));
+        // then
+        UTXOPool unspentCoins = handler.getUnspentCoins();
+        assertEquals(5, handledTxs.length);
+        assertFalse(unspentCoins.contains(utxo(0, bottom.getHash())));
+        for (Transaction tx : possibleTxs.subList(5, 9)) {
+            assertTrue(unspentCoins.contains(utxo(0, tx.getHash())));
+        }
+    }
+
+    @Test
+    public void shouldRejectIncorrectSignsInEpoch() {
+        // given
+        handler = new TxHandler(utxoPool, new ForkJoinPool(2));
+        Transaction tx1 = new TransactionBuilder().in(new byte[]{0x1}, 0, bob_pr).out(0.5d, bob_p).build();
+        Transaction tx2 = new TransactionBuilder().in(new byte[]{0x2}, 0, bob_pr).out(1.5d, tom_p).build();
+        Transaction tx3 = new TransactionBuilder().in(tx2.getHash(), 0, tom_pr).out(1.4d, alice_p).build();
+        Transaction tx4 = new TransactionBuilder().in(tx2.getHash(), 0, alice_pr).out(1.3d, alice_p).build();
+        // when
+        Transaction[] handledTxs = handler.handleTxs(new Transaction[]{tx1, tx3, tx4, tx2});
+        // then
+        UTXOPool unspentCoins = handler.getUnspentCoins();
+        assertEquals(2, handledTxs.length);
+        assertTrue(unspentCoins.contains(utxo(0, new byte[]{0x1})));
+        assertTrue(unspentCoins.contains(utxo(0, tx3.getHash())));
+        assertFalse(unspentCoins.contains(utxo(0, tx4.getHash())));
+    }
+
+    @Test
+    public void shouldHandleDeepChain() {
+        // given
+        int depth = 3000;
+        Transaction[] txs = new Transaction[depth];
+        byte[] prevHash = new byte[]{0x2};
+        for (int i = 0; i < depth; i++) {
+            Transaction tx = new TransactionBuilder().in(prevHash, 0, bob_pr).out(2d, bob_p).build();
+            tx.computeHash();
+            txs[depth - 1 - i] = tx;
+            prevHash = tx.getHash();
+        }
+        // when
+        Transaction[] handledTxs = handler.handleTxs(txs);
+        // then
+        UTXOPool unspentCoins = handler.getUnspentCoins();
+        assertEquals(depth, handledTxs.length);
+        assertTrue(unspentCoins.contains(utxo(0, txs[0].getHash())));
+        assertEquals(3, unspentCoins.getAllUTXO().size());
+    }
+
+    @Test
+    public void shouldHandleInOrderLikeApplyingOneByOne() {
+        // given
+        Random random = new Random(17);
+        PrivateKey[] keys = {alice_pr, bob_pr, tom_pr};
+        PublicKey[] addresses = {alice_p, bob_p, tom_p};
+        List<byte[]> hashes = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        List<Integer> unspent = new ArrayList<>();
+        for (int k = 0; k < 64; k++) {
+            hashes.add(new byte[]{(byte) (k + 1)});
+            owners.add(k % 3);
+            values.add(k % 3 + 1d);
+            unspent.add(k);
+            if (k >= 3) utxoPool.addUTXO(utxo(0, hashes.get(k)), out(values.get(k), addresses[k % 3]));
+        }
+        List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < 300 && !unspent.isEmpty(); i++) {
+            TransactionBuilder builder = new TransactionBuilder();
+            double sum = 0;
+            int inputs = 1 + random.nextInt(2);
+            for (int j = 0; j < inputs && !unspent.isEmpty(); j++) {
+                int coin = random.nextInt(8) == 0 ? random.nextInt(hashes.size())
+                        : unspent.remove(random.nextInt(unspent.size()));
+                int owner = owners.get(coin);
+                builder.in(hashes.get(coin), 0, random.nextInt(20) == 0 ? keys[(owner + 1) % 3] : keys[owner]);
+                sum += values.get(coin);
+            }
+            int receiver = random.nextInt(3);
+            double value = sum * (random.nextInt(10) == 0 ? 1.5 : 0.5 + random.nextDouble() / 4);
+            Transaction tx = builder.out(value, addresses[receiver]).out(value / 4, addresses[receiver]).build();
+            tx.computeHash();
+            txs.add(tx);
+            unspent.add(hashes.size());
+            hashes.add(tx.getHash());
+            owners.add(receiver);
+            values.add(value);
+        }
+        Collections.shuffle(txs.subList(txs.size() / 2, txs.size()), random);
+        Transaction[] epoch = txs.toArray(new Transaction[0]);
+
+        TxHandler sequential = new TxHandler(utxoPool);
+        List<Transaction> expected = new ArrayList<>();
+        for (Transaction tx : epoch) {
+            if (!sequential.isValidTx(tx)) continue;
+            for (Transaction.Input in : tx.getInputs()) {
+                sequential.getUnspentCoins().removeUTXO(utxo(in.outputIndex, in.prevTxHash));
+            }
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                sequential.getUnspentCoins().addUTXO(utxo(j, tx.getHash()), tx.getOutput(j));
+            }
+            expected.add(tx);
+        }
+        UTXOPool concurrentPool = new UTXOPool(new ConcurrentUTXOStore());
+        for (UTXO utxo : utxoPool.getAllUTXO()) {
+            concurrentPool.addUTXO(utxo, utxoPool.getTxOutput(utxo));
+        }
+        handler = new TxHandler(concurrentPool, new ForkJoinPool(4));
+        // when
+        Transaction[] handledTxs = handler.handleTxsInOrder(epoch);
+        // then
+        assertEquals(expected, Arrays.asList(handledTxs));
+        assertEquals(new HashSet<>(sequential.getUnspentCoins().getAllUTXO()),
+                new HashSet<>(handler.getUnspentCoins().getAllUTXO()));
+    }
+
     private Transaction.Output out(double value, PublicKey person) {
         return new TransactionBuilder().out(value, person).build().getOutput(0);
     }
@@ -150,7 +299,7 @@ public class TestTxHandler {
         }
 
         public Transaction build() {
-            tx.setHash(tx.getRawTx());
+            tx.computeHash();
             signInputs();
             return tx;
         }
@@ -0,0 +1,131 @@
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestUTXOPool {
+
+    @Test
+    public void shouldMatchHashMap() {
+        assertMatchesHashMap(new UTXOPool());
+    }
+
+    @Test
+    public void shouldMatchHashMapOffHeap() {
+        assertMatchesHashMap(new UTXOPool(new OffHeapUTXOStore(16)));
+    }
+
+    @Test
+    public void shouldMatchHashMapConcurrent() {
+        assertMatchesHashMap(new UTXOPool(new ConcurrentUTXOStore()));
+    }
+
+    @Test
+    public void shouldKeepCollidingUTXOs() {
+        // given
+        UTXO utxo1 = new UTXO(new byte[]{0x1}, 1);
+        UTXO utxo2 = new UTXO(new byte[]{0x20}, 0);
+        Transaction.Output output1 = new Transaction().new Output(1, null);
+        Transaction.Output output2 = new Transaction().new Output(2, null);
+        UTXOPool pool = new UTXOPool();
+        // when
+        pool.addUTXO(utxo1, output1);
+        pool.addUTXO(utxo2, output2);
+        pool.removeUTXO(utxo1);
+        // then
+        assertEquals(utxo1.hashCode(), utxo2.hashCode());
+        assertFalse(pool.contains(utxo1));
+        assertSame(output2, pool.getTxOutput(utxo2));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void shouldIsolateSnapshots() {
+        assertIsolatesSnapshots(new UTXOPool());
+    }
+
+    @Test
+    public void shouldIsolateSnapshotsOffHeap() {
+        assertIsolatesSnapshots(new UTXOPool(new OffHeapUTXOStore()));
+    }
+
+    private void assertIsolatesSnapshots(UTXOPool pool) {
+        // given
+        Transaction tx = new Transaction();
+        for (int i = 0; i < 1000; i++) {
+            pool.addUTXO(new UTXO(new byte[]{(byte) i, (byte) (i >> 8)}, 0), tx.new Output(i, null));
+        }
+        // when
+        UTXOPool snapshot = pool.snapshot();
+        UTXOPool copy = new UTXOPool(snapshot);
+        for (int i = 0; i < 500; i++) {
+            pool.removeUTXO(new UTXO(new byte[]{(byte) i, (byte) (i >> 8)}, 0));
+            copy.addUTXO(new UTXO(new byte[]{(byte) i, (byte) (i >> 8)}, 1), tx.new Output(i, null));
+        }
+        // then
+        assertEquals(500, pool.size());
+        assertEquals(1000, snapshot.size());
+        assertEquals(1500, copy.size());
+        assertTrue(snapshot.contains(new UTXO(new byte[]{0, 0}, 0)));
+        assertFalse(snapshot.contains(new UTXO(new byte[]{0, 0}, 1)));
+        assertFalse(pool.contains(new UTXO(new byte[]{0, 0}, 0)));
+    }
+
+    private void assertMatchesHashMap(UTXOPool pool) {
+        // given
+        Random random = new Random(42);
+        Map<UTXO, Transaction.Output> expected = new HashMap<>();
+        Transaction tx = new Transaction();
+        PublicKey[] addresses = {null, new TestKey(1), new TestKey(2)};
+        // when
+        for (int i = 0; i < 50000; i++) {
+            byte[] hash = new byte[random.nextInt(4) == 0 ? 40 : 32];
+            hash[random.nextInt(hash.length)] = (byte) random.nextInt(16);
+            UTXO utxo = new UTXO(hash, random.nextInt(8));
+            if (random.nextInt(3) == 0) {
+                pool.removeUTXO(utxo);
+                expected.remove(utxo);
+            } else {
+                Transaction.Output output = tx.new Output(i, addresses[random.nextInt(addresses.length)]);
+                pool.addUTXO(utxo, output);
+                expected.put(utxo, output);
+            }
+        }
+        // then
+        assertEquals(expected.size(), pool.size());
+        assertEquals(expected.keySet(), new HashSet<>(pool.getAllUTXO()));
+        for (Map.Entry<UTXO, Transaction.Output> entry : expected.entrySet()) {
+            Transaction.Output output = pool.getTxOutput(entry.getKey());
+            assertEquals(entry.getValue().value, output.value, 0);
+            assertSame(entry.getValue().address, output.address);
+            assertTrue(pool.contains(entry.getKey().getTxHash(), entry.getKey().getIndex()));
+            assertEquals(output.value, pool.getTxOutput(entry.getKey().getTxHash(), entry.getKey().getIndex()).value, 0);
+        }
+        assertFalse(pool.contains(new byte[32], 9));
+        assertFalse(pool.contains(null, 0));
+    }
+
+    private static class TestKey implements PublicKey {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        TestKey(int id) {
+            this.id = id;
+        }
+
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        public String getFormat() {
+            return "X.509";
+        }
+
+        public byte[] getEncoded() {
+            return new byte[]{(byte) id};
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TestUTXOSnapshot {
+    private Path file;
+    private PublicKey bob_p;
+    private PublicKey alice_p;
+
+    @Before
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        file = Files.createTempFile("utxo", ".snapshot");
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        bob_p = keyPairGenerator.generateKeyPair().getPublic();
+        alice_p = keyPairGenerator.generateKeyPair().getPublic();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Test
+    public void shouldRoundTripAcrossChunks() throws IOException {
+        // given
+        UTXOPool pool = new UTXOPool();
+        int coins = UTXOSnapshot.CHUNK_COINS * 2 + 5;
+        for (int i = 0; i < coins; i++) {
+            byte[] hash = {0x7, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            pool.addUTXO(new UTXO(hash, i % 3), output(i, i % 2 == 0 ? bob_p : alice_p));
+        }
+        pool.addUTXO(new UTXO(new byte[]{0x1}, 0), output(1d, null));
+        pool.addUTXO(new UTXO(new byte[]{0x1}, 1), null);
+        // when
+        long written = UTXOSnapshot.write(pool.snapshot(), file);
+        UTXOPool concurrent = UTXOSnapshot.read(file);
+        UTXOPool trie = UTXOSnapshot.read(file, new UTXOTrie());
+        // then
+        assertEquals(coins + 2, written);
+        for (UTXOPool read : new UTXOPool[]{concurrent, trie}) {
+            assertEquals(coins + 2, read.size());
+            assertEquals(42d, read.getTxOutput(new UTXO(new byte[]{0x7, 0, 0, 42}, 0)).value, 0);
+            assertEquals(alice_p, read.getTxOutput(new UTXO(new byte[]{0x7, 0, 0, 43}, 1)).address);
+            assertNull(read.getTxOutput(new UTXO(new byte[]{0x1}, 0)).address);
+            assertTrue(read.contains(new UTXO(new byte[]{0x1}, 1)));
+            assertNull(read.getTxOutput(new UTXO(new byte[]{0x1}, 1)));
+        }
+        assertSame(concurrent.getTxOutput(new UTXO(new byte[]{0x7, 0, 0, 2}, 2)).address,
+                concurrent.getTxOutput(new UTXO(new byte[]{0x7, 0, 1, 0}, 1)).address);
+    }
+
+    @Test
+    public void shouldWriteSameSnapshotFromSpilledRuns() throws IOException {
+        // given
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = {(byte) (i * 37), (byte) (i >> 8)};
+            pool.addUTXO(new UTXO(hash, i % 5), i % 7 == 0 ? null : output(i, i % 2 == 0 ? bob_p : alice_p));
+        }
+        Path directory = Files.createTempDirectory("utxo");
+        Path spilled = directory.resolve("utxo.snapshot");
+        Files.write(spilled, new byte[]{0x1});
+        // when
+        long written = UTXOSnapshot.write(pool, file);
+        long writtenSpilled = UTXOSnapshot.write(pool, spilled, 64);
+        // then
+        try {
+            assertEquals(written, writtenSpilled);
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(spilled));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertArrayEquals(new Object[]{spilled}, files.toArray());
+            }
+            assertEquals(pool.size(), UTXOSnapshot.read(spilled).size());
+        } finally {
+            Files.delete(spilled);
+            Files.delete(directory);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectCorruptChunk() throws IOException {
+        // given
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(new byte[]{0x1}, 0), output(1d, bob_p));
+        UTXOSnapshot.write(pool, file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0x1));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        }
+        // when
+        UTXOSnapshot.read(file);
+    }
+
+    private static Transaction.Output output(double value, PublicKey address) {
+        Transaction tx = new Transaction();
+        tx.addOutput(value, address);
+        return tx.getOutput(0);
+    }
+}
@@ -0,0 +1,44 @@
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds transactions whose inputs are signed with the given keys, for the tests */
+public class TransactionBuilder {
+    private final Transaction tx;
+    private List<PrivateKey> privateKeys;
+
+    public TransactionBuilder() {
+        tx = new Transaction();
+        privateKeys = new ArrayList<>();
+    }
+
+    public TransactionBuilder in(byte[] prevHash, int index, PrivateKey key) {
+        tx.addInput(prevHash, index);
+        privateKeys.add(key);
+        return this;
+    }
+
+    public TransactionBuilder out(double value, PublicKey person) {
+        tx.addOutput(value, person);
+        return this;
+    }
+
+    public Transaction build() {
+        tx.computeHash();
+        signInputs();
+        return tx;
+    }
+
+    private void signInputs() {
+        try {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign(privateKeys.get(i));
+                signature.update(tx.getRawDataToSign(i));
+                tx.addSignature(signature.sign(), i);
+            }
+        } catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+            e.printStackTrace();
+        }
+    }
+}